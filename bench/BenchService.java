@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Utilità comuni ai benchmark in-process: opzioni nella forma --chiave=valore (vedi ServerConfig)
+ * e un servizio WORTH senza connessioni di rete.
+ * Il servizio salva i progetti in res/ nella directory corrente come il server, quindi i
+ * benchmark vanno eseguiti in una directory di prova
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+class BenchService {
+
+    private BenchService() {}
+
+    /**
+     * @return WorthCore di un ServerCore non avviato (nessun socket né registry RMI)
+     * @throws IOException se non è possibile creare la directory res
+     */
+    static WorthCore create() throws IOException {
+        Files.createDirectories(Paths.get("res"));
+        return new WorthCore(new ServerCore(new ServerConfig(45678, 56789)));
+    }
+
+    /**
+     * registra un utente direttamente nel servizio
+     *
+     * @param service servizio creato con create
+     * @param nickname nome utente
+     * @param password password in chiaro
+     */
+    static void register(WorthCore service, String nickname, String password) {
+        try {
+            service.addUser(new User(nickname, HashPassword.getSaltedHash(password)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Impossibile registrare " + nickname, e);
+        }
+    }
+
+    /**
+     * sposta la card "c" + card nella lista successiva di un ciclo che non termina: da TODO a
+     * INPROGRESS, poi avanti e indietro tra INPROGRESS e TOBEREVISED
+     *
+     * @param states stato delle card del progetto, aggiornato (0 = TODO, 1 = INPROGRESS, 2 = TOBEREVISED)
+     * @param card indice della card
+     * @throws IllegalStateException se lo spostamento non riesce
+     */
+    static void moveNext(WorthCore service, String nickname, String project, byte[] states, int card) {
+        String source = states[card] == 0 ? "todo" : states[card] == 1 ? "inprogress" : "toberevised";
+        String destination = states[card] == 1 ? "toberevised" : "inprogress";
+        Response response = service.moveCard(nickname, project, "c" + card, source, destination, null).getResponse();
+        if (response != Response.OK)
+            throw new IllegalStateException("spostamento non riuscito: " + response);
+        states[card] = (byte) (states[card] == 1 ? 2 : 1);
+    }
+
+    /**
+     * @param args argomenti nella forma --chiave=valore
+     * @param defaults opzioni conosciute con il loro valore predefinito
+     * @return valori delle opzioni, quelli indicati negli argomenti al posto dei predefiniti
+     */
+    static Map<String, Integer> options(String[] args, Map<String, Integer> defaults) {
+        Map<String, Integer> options = new HashMap<>(defaults);
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2 || !option[0].startsWith("--"))
+                throw new IllegalArgumentException("Opzione non valida: " + arg);
+            String key = option[0].substring(2);
+            if (!defaults.containsKey(key))
+                throw new IllegalArgumentException("Opzione sconosciuta: " + option[0]);
+            options.put(key, Integer.parseInt(option[1]));
+        }
+        return options;
+    }
+
+    /**
+     * @param histogram latenze registrate
+     * @return percentili 50, 99, 99.9 e massimo in millisecondi, preceduti dal numero di campioni
+     */
+    static String percentiles(LatencyHistogram histogram) {
+        long[] stats = histogram.snapshot(0.5, 0.99, 0.999);
+        return String.format("%d operazioni, latenza p50 %.3f ms p99 %.3f ms p99.9 %.3f ms max %.3f ms",
+                stats[0], stats[1] / 1e6, stats[2] / 1e6, stats[3] / 1e6, stats[4] / 1e6);
+    }
+}
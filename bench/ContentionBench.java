@@ -0,0 +1,78 @@
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmark di contesa sui lock dei progetti: molti thread scrittori spostano card scelte a caso
+ * tra i progetti, direttamente su WorthCore (senza rete). Con i lock per progetto il throughput
+ * dipende dal numero di progetti su cui si distribuiscono gli scrittori: lanciandolo con
+ * --projects=1 tutti gli scrittori si contendono lo stesso lock.
+ * Ogni card viene spostata avanti e indietro tra INPROGRESS e TOBEREVISED, quindi ogni operazione
+ * è uno spostamento completo (validazione, lock, pubblicazione, salvataggio e notifica della chat).
+ * Va eseguito in una directory di prova (vedi BenchService).
+ *
+ * Uso: java -cp out:lib/* ContentionBench --writers=64 --projects=1000 --cards=16 --warmup=3 --duration=10
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class ContentionBench {
+
+    private static final String USER = "bench";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> options = BenchService.options(args,
+                Map.of("writers", 64, "projects", 1000, "cards", 16, "warmup", 3, "duration", 10));
+        int writers = options.get("writers");
+        int projects = options.get("projects");
+        int cards = options.get("cards");
+
+        WorthCore service = BenchService.create();
+        BenchService.register(service, USER, USER);
+        for (int p = 0; p < projects; p++) {
+            String project = "bench-contention-" + p;
+            service.createProject(USER, project);
+            for (int c = 0; c < cards; c++) {
+                service.addCard(USER, project, "c" + c, "card " + c);
+                service.moveCard(USER, project, "c" + c, "todo", "inprogress", null);
+            }
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder conflicts = new LongAdder();
+        long measureStart = System.nanoTime() + options.get("warmup") * 1_000_000_000L;
+        long end = measureStart + options.get("duration") * 1_000_000_000L;
+        ArrayList<Thread> threads = new ArrayList<>(writers);
+        for (int w = 0; w < writers; w++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    String project = "bench-contention-" + random.nextInt(projects);
+                    String card = "c" + random.nextInt(cards);
+                    //la lista della card non è nota: se non è in INPROGRESS è in TOBEREVISED
+                    Response response = service.moveCard(USER, project, card, "inprogress", "toberevised", null).getResponse();
+                    if (response == Response.NONEXISTENT_CARD)
+                        response = service.moveCard(USER, project, card, "toberevised", "inprogress", null).getResponse();
+                    if (now < measureStart)
+                        continue;
+                    if (response == Response.OK)
+                        latencies.record(System.nanoTime() - now);
+                    else
+                        conflicts.increment();
+                }
+            }, "writer-" + w);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        long[] stats = latencies.snapshot();
+        System.out.printf("ContentionBench: %d scrittori su %d progetti (%d card ciascuno), %.0f spostamenti/s, "
+                        + "%d non eseguiti (card spostata da un altro scrittore)%n", writers, projects, cards,
+                stats[0] / (double) options.get("duration"), conflicts.sum());
+        System.out.println("ContentionBench: " + BenchService.percentiles(latencies));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Misura i byte allocati per richiesta dal percorso di un frame sul server: decodifica di una
+ * richiesta SHOW_CARD e codifica della risposta che contiene la card.
+ * Confronta FrameCodec (buffer di lettura riutilizzato, frame in uscita presi da BufferPool) con la
+ * codifica senza riuso che lo ha preceduto, che per ogni frame alloca l'array del corpo ricevuto,
+ * lo stream di serializzazione e il ByteBuffer da scrivere. Il messaggio decodificato, la risposta
+ * e la serializzazione del formato restano in entrambe le misure.
+ * I byte sono letti con com.sun.management.ThreadMXBean.getThreadAllocatedBytes del thread
+ * corrente (HotSpot), dopo un riscaldamento che stabilizza il JIT e riempie il pool.
+ *
+ * Uso: java -cp out:lib/* FrameAllocationBench --iterations=200000 --format=binary
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class FrameAllocationBench {
+
+    private static int iterations = 200000;
+    private static WireFormat format = WireFormat.BINARY;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2)
+                throw new IllegalArgumentException("Opzione non valida: " + arg);
+            switch (option[0]) {
+                case "--iterations": iterations = Integer.parseInt(option[1]); break;
+                case "--format": format = WireFormat.valueOf(option[1].toUpperCase()); break;
+                default: throw new IllegalArgumentException("Opzione sconosciuta: " + option[0]);
+            }
+        }
+        byte[] requestFrame = unpooledFrame(new RequestMessage.ShowCard("utente", "progetto", "card"));
+        ResponseMessage.CardDetail response = (ResponseMessage.CardDetail) ResponseMessage.of(Request.SHOW_CARD);
+        response.setResponse(Response.OK);
+        response.setCard(new Card("card", "descrizione della card", "utente").frozen());
+
+        FrameCodec<RequestMessage> codec = new FrameCodec<>(RequestMessage.class);
+        //handshake come quello di un client che chiede il formato
+        codec.acceptFormat(new DataInputStream(new ByteArrayInputStream(
+                new byte[]{(byte) FrameCodec.MAGIC, (byte) format.ordinal()})), new ByteArrayOutputStream());
+
+        for (int i = 0; i < iterations; i++) {
+            unpooled(requestFrame, response);
+            pooled(codec, requestFrame, response);
+        }
+        double before = measure(() -> unpooled(requestFrame, response));
+        double after = measure(() -> pooled(codec, requestFrame, response));
+        System.out.printf("FrameAllocationBench %s, %d iterazioni: senza riuso %.0f byte/richiesta, "
+                + "FrameCodec %.0f byte/richiesta%n", format, iterations, before, after);
+    }
+
+    /**
+     * @return byte allocati in media da un'iterazione sul thread corrente
+     */
+    private static double measure(Step step) throws IOException {
+        long start = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < iterations; i++)
+            step.run();
+        return (THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - start) / (double) iterations;
+    }
+
+    /**
+     * FrameCodec: la richiesta viene copiata nel buffer di lettura (come farebbe la read dal canale)
+     * e la risposta viene codificata in un buffer del pool, poi restituito
+     */
+    private static void pooled(FrameCodec<RequestMessage> codec, byte[] requestFrame, ResponseMessage response)
+            throws IOException {
+        codec.inputBuffer().put(requestFrame);
+        if (codec.decode() == null)
+            throw new IllegalStateException("frame incompleto");
+        ByteBuffer frame = codec.encode(response);
+        codec.release(frame);
+    }
+
+    /**
+     * senza riuso: array del corpo ricevuto, stream di serializzazione e frame nuovi ad ogni richiesta
+     */
+    private static void unpooled(byte[] requestFrame, ResponseMessage response) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(requestFrame, 0, Integer.BYTES);
+        byte[] body = new byte[header.getInt()];
+        System.arraycopy(requestFrame, Integer.BYTES, body, 0, body.length);
+        if (format.decode(body, 0, body.length, RequestMessage.class) == null)
+            throw new IllegalStateException("frame vuoto");
+        ByteBuffer.wrap(unpooledFrame(response));
+    }
+
+    /**
+     * @return frame (lunghezza + corpo) codificato senza riuso di buffer
+     */
+    private static byte[] unpooledFrame(WireMessage message) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        format.encode(message, body);
+        return ByteBuffer.allocate(Integer.BYTES + body.size()).putInt(body.size()).put(body.toByteArray()).array();
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generatore di carico per confrontare le modalità di trasporto del server (THREADS, NIO, VIRTUAL):
+ * apre molte connessioni, ognuna delle quali invia un PING ogni intervallo (come gli heartbeat dei
+ * client inattivi), e misura la latenza di andata e ritorno di ogni PING.
+ * Tutte le connessioni sono gestite da un solo thread con un Selector, così il generatore non
+ * consuma un thread per connessione e non falsa il confronto sulla stessa macchina.
+ * Con --pid legge da /proc la memoria residente e i thread del server prima e dopo l'apertura
+ * delle connessioni (solo Linux).
+ * Con --storm-threads le connessioni vengono aperte tutte insieme da quel numero di thread
+ * (tempesta di connessioni), per verificare gli acceptor multipli e SO_REUSEPORT del server
+ * (--acceptors, --backlog): per ogni connessione viene misurata la latenza di connessione e
+ * handshake, che cresce quando la coda di backlog si riempie e il kernel ritrasmette i SYN.
+ * Con --duration=0 il generatore misura solo l'apertura.
+ * Su una JVM precedente alla 21 la modalità VIRTUAL del server ripiega su un cached thread pool
+ * (vedi ServerCore.newVirtualThreadPool), quindi in quel caso non misura i virtual thread.
+ *
+ * Uso: java -cp out:lib/* LoadDriver --connections=10000 --interval-ms=1000 --duration=30 --pid=PID_SERVER
+ *      java -cp out:lib/* LoadDriver --connections=10000 --storm-threads=64 --warmup=0 --duration=0
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class LoadDriver {
+
+    private String host = "localhost";
+    private int port = 45678;
+    /** numero di connessioni da aprire */
+    private int connections = 10000;
+    /** millisecondi tra due PING della stessa connessione */
+    private int intervalMillis = 1000;
+    /** secondi di carico prima della misura */
+    private int warmup = 5;
+    /** secondi di misura */
+    private int duration = 30;
+    /** formato dei frame richiesto nell'handshake */
+    private WireFormat format = WireFormat.BINARY;
+    /** pid del server di cui leggere memoria e thread (0 = non letti) */
+    private long pid;
+    /** thread che aprono le connessioni tutti insieme (0 = aperte una alla volta dal thread principale) */
+    private int stormThreads;
+
+    /** latenze dei PING durante la misura */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    /** latenze di connessione e handshake */
+    private final LatencyHistogram connectLatencies = new LatencyHistogram();
+    /** connessioni non aperte, rifiutate con SERVER_BUSY o chiuse dal server */
+    private int refused;
+    private int busy;
+    private int closed;
+
+    public static void main(String[] args) throws Exception {
+        LoadDriver driver = new LoadDriver();
+        driver.parseArgs(args);
+        driver.run();
+    }
+
+    /**
+     * legge le opzioni nella forma --chiave=valore (vedi ServerConfig)
+     */
+    private void parseArgs(String[] args) {
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2 || !option[0].startsWith("--"))
+                throw new IllegalArgumentException("Opzione non valida: " + arg);
+            switch (option[0]) {
+                case "--host": host = option[1]; break;
+                case "--port": port = Integer.parseInt(option[1]); break;
+                case "--connections": connections = Integer.parseInt(option[1]); break;
+                case "--interval-ms": intervalMillis = Integer.parseInt(option[1]); break;
+                case "--warmup": warmup = Integer.parseInt(option[1]); break;
+                case "--duration": duration = Integer.parseInt(option[1]); break;
+                case "--format": format = WireFormat.valueOf(option[1].toUpperCase()); break;
+                case "--pid": pid = Long.parseLong(option[1]); break;
+                case "--storm-threads": stormThreads = Integer.parseInt(option[1]); break;
+                default: throw new IllegalArgumentException("Opzione sconosciuta: " + option[0]);
+            }
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        long[] before = serverStatus();
+        Selector selector = Selector.open();
+        long openStart = System.nanoTime();
+        ArrayList<Connection> opened;
+        if (stormThreads > 0) {
+            opened = openAll(selector);
+        } else {
+            opened = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                try {
+                    opened.add(open(selector));
+                } catch (IOException e) {
+                    //con il pool saturo il server chiude le connessioni in eccesso durante l'handshake
+                    refused++;
+                }
+            }
+        }
+        double openSeconds = (System.nanoTime() - openStart) / 1e9;
+        //i primi PING sono distribuiti su un intervallo, poi ogni connessione ha il proprio ritmo
+        PriorityQueue<Connection> schedule = new PriorityQueue<>((c1, c2) -> Long.compare(c1.nextSend, c2.nextSend));
+        long now = System.nanoTime();
+        for (Connection connection : opened) {
+            connection.nextSend = now + ThreadLocalRandom.current().nextLong(intervalMillis * 1_000_000L);
+            schedule.add(connection);
+        }
+        long measureStart = now + warmup * 1_000_000_000L;
+        long end = measureStart + duration * 1_000_000_000L;
+        long[] loaded = null;
+        while ((now = System.nanoTime()) < end) {
+            if (loaded == null && now >= measureStart)
+                loaded = serverStatus();
+            while (!schedule.isEmpty() && schedule.peek().nextSend <= now) {
+                Connection connection = schedule.poll();
+                connection.send(now);
+            }
+            long wait = schedule.isEmpty() ? 10 : Math.max(1, (schedule.peek().nextSend - now) / 1_000_000);
+            selector.select(Math.min(wait, 10));
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Connection connection = (Connection) key.attachment();
+                if (connection.receive(now >= measureStart)) {
+                    connection.nextSend += intervalMillis * 1_000_000L;
+                    schedule.add(connection);
+                }
+            }
+        }
+        long[] stats = latencies.snapshot(0.5, 0.99, 0.999);
+        long[] connect = connectLatencies.snapshot(0.5, 0.99, 0.999);
+        System.out.printf("LoadDriver: %d connessioni aperte in %.1f s (%d non aperte, %d SERVER_BUSY, "
+                + "%d chiuse dal server)%n", opened.size(), openSeconds, refused, busy, closed);
+        System.out.printf("LoadDriver: apertura con %d thread (%.0f/s), latenza connessione e handshake p50 %.2f ms "
+                        + "p99 %.2f ms p99.9 %.2f ms max %.2f ms%n", Math.max(1, stormThreads), opened.size() / openSeconds,
+                connect[1] / 1e6, connect[2] / 1e6, connect[3] / 1e6, connect[4] / 1e6);
+        if (duration > 0)
+            System.out.printf("LoadDriver: %d PING in %d s (%.0f/s), latenza p50 %.2f ms p99 %.2f ms p99.9 %.2f ms max %.2f ms%n",
+                    stats[0], duration, stats[0] / (double) duration,
+                    stats[1] / 1e6, stats[2] / 1e6, stats[3] / 1e6, stats[4] / 1e6);
+        if (before != null && loaded != null) {
+            int live = opened.size() - busy - closed;
+            System.out.printf("LoadDriver: server RSS %d MB -> %d MB (%.1f KB per connessione), thread %d -> %d%n",
+                    before[0] / 1024, loaded[0] / 1024, live == 0 ? 0.0 : (loaded[0] - before[0]) / (double) live,
+                    before[1], loaded[1]);
+        }
+        for (Connection connection : opened)
+            connection.channel.close();
+    }
+
+    /**
+     * apre tutte le connessioni insieme da stormThreads thread. Il selector non è ancora in uso
+     * (nessuna select in corso), quindi i thread possono registrarvi i canali
+     *
+     * @return connessioni aperte, nell'ordine in cui sono state richieste
+     */
+    private ArrayList<Connection> openAll(Selector selector) throws InterruptedException {
+        ExecutorService openers = Executors.newFixedThreadPool(stormThreads);
+        ArrayList<Future<Connection>> pending = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++)
+            pending.add(openers.submit(() -> open(selector)));
+        ArrayList<Connection> opened = new ArrayList<>(connections);
+        for (Future<Connection> connection : pending) {
+            try {
+                opened.add(connection.get());
+            } catch (ExecutionException e) {
+                //connessione rifiutata, scaduta o chiusa durante l'handshake
+                refused++;
+            }
+        }
+        openers.shutdown();
+        return opened;
+    }
+
+    /**
+     * apre una connessione ed esegue l'handshake in modo bloccante, poi la registra sul selector
+     */
+    private Connection open(Selector selector) throws IOException {
+        long start = System.nanoTime();
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            //il DataInputStream non bufferizzato legge solo il byte di risposta all'handshake
+            connection.codec.requestFormat(format, false, new DataInputStream(Channels.newInputStream(channel)),
+                    Channels.newOutputStream(channel));
+            connectLatencies.record(System.nanoTime() - start);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, connection);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return memoria residente in KB e numero di thread del server, null se il pid non è indicato
+     */
+    private long[] serverStatus() throws IOException {
+        if (pid == 0)
+            return null;
+        long[] status = new long[2];
+        for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+            if (line.startsWith("VmRSS:"))
+                status[0] = Long.parseLong(line.replaceAll("\\D", ""));
+            else if (line.startsWith("Threads:"))
+                status[1] = Long.parseLong(line.replaceAll("\\D", ""));
+        }
+        return status;
+    }
+
+    /**
+     * una connessione del generatore: al più un PING in attesa di risposta alla volta
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final FrameCodec<ResponseMessage> codec = new FrameCodec<>(ResponseMessage.class);
+        /** istante di invio del PING in attesa di risposta (0 = nessuno) */
+        private long sentAt;
+        /** istante in cui va inviato il prossimo PING */
+        private long nextSend;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * invia un PING; il frame è piccolo e il buffer di invio è vuoto, quindi viene scritto tutto
+         */
+        void send(long now) {
+            ByteBuffer frame = null;
+            try {
+                frame = codec.encode(RequestMessage.of(Request.PING));
+                while (frame.hasRemaining())
+                    channel.write(frame);
+                sentAt = now;
+            } catch (IOException e) {
+                close();
+            } finally {
+                codec.release(frame);
+            }
+        }
+
+        /**
+         * legge le risposte arrivate
+         *
+         * @param measure true se la latenza va registrata
+         * @return true se è arrivata la risposta al PING e la connessione va ripianificata
+         */
+        boolean receive(boolean measure) {
+            try {
+                if (channel.read(codec.inputBuffer()) < 0) {
+                    close();
+                    return false;
+                }
+                ResponseMessage response = codec.decode();
+                if (response == null)
+                    return false;
+                if (response.getResponse() == Response.SERVER_BUSY) {
+                    busy++;
+                    channel.close();
+                    return false;
+                }
+                if (measure)
+                    latencies.record(System.nanoTime() - sentAt);
+                sentAt = 0;
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+
+        private void close() {
+            closed++;
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Microbenchmark dello spostamento di una card al crescere delle card del progetto, direttamente
+ * su WorthCore (senza rete) e da un solo thread. Ogni spostamento pubblica la nuova versione del
+ * progetto (copiando solo il blocco di PublishedCards che contiene la card) e scrive solo il file
+ * della card spostata, quindi il suo costo non deve dipendere dal numero di card.
+ * Le fasi sono misurate come nel server (LatencyStats): la logica comprende validazione e
+ * pubblicazione, il salvataggio la scrittura del file, il multicast la notifica della chat.
+ * Le card vengono aggiunte in un batch, che le salva una sola volta.
+ * Va eseguito in una directory di prova (vedi BenchService).
+ *
+ * Uso: java -cp out:lib/* MoveBench --max-cards=10000 --iterations=5000
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class MoveBench {
+
+    private static final String USER = "bench";
+    private static final String PROJECT = "bench-move";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> options = BenchService.options(args,
+                Map.of("max-cards", 10000, "iterations", 5000));
+        int maxCards = options.get("max-cards");
+
+        WorthCore service = BenchService.create();
+        BenchService.register(service, USER, USER);
+        service.createProject(USER, PROJECT);
+        byte[] states = new byte[maxCards];
+        int cards = 0;
+        RequestMessage move = RequestMessage.of(Request.MOVE_CARD);
+        for (int step = 100; ; step = Math.min(step * 10, maxCards)) {
+            service.beginBatch();
+            for (; cards < step; cards++)
+                service.addCard(USER, PROJECT, "c" + cards, "card " + cards);
+            service.commitBatch(USER);
+            LatencyStats.SHARED.reset();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < options.get("iterations"); i++) {
+                long start = LatencyStats.start();
+                BenchService.moveNext(service, USER, PROJECT, states, random.nextInt(cards));
+                LatencyStats.SHARED.dispatched(move, start);
+            }
+            System.out.printf("MoveBench: %d card, %d spostamenti%n%s%n%n", cards, options.get("iterations"),
+                    LatencyStats.format(LatencyStats.SHARED.snapshot()));
+            if (step == maxCards)
+                break;
+        }
+        System.exit(0);
+    }
+}
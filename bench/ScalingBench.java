@@ -0,0 +1,74 @@
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Misura la latenza di login, showCard e moveCard al crescere del numero di progetti, direttamente
+ * su WorthCore (senza rete): con gli indici per nome di utenti e progetti i tempi non devono
+ * dipendere dal numero di progetti creati. I progetti vengono creati a gradini (10, 100, 1000, ...
+ * fino a --max-projects) e ad ogni gradino le operazioni vengono ripetute su progetti e card a caso.
+ * Il login comprende il controllo PBKDF2 della password, quindi viene ripetuto meno volte.
+ * Va eseguito in una directory di prova (vedi BenchService).
+ *
+ * Uso: java -cp out:lib/* ScalingBench --max-projects=5000 --cards=8 --iterations=2000 --logins=50
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class ScalingBench {
+
+    private static final String USER = "bench";
+
+    /** stato di ogni card creata: 0 = TODO, 1 = INPROGRESS, 2 = TOBEREVISED */
+    private static final ArrayList<byte[]> states = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> options = BenchService.options(args,
+                Map.of("max-projects", 5000, "cards", 8, "iterations", 2000, "logins", 50));
+        int maxProjects = options.get("max-projects");
+        int cards = options.get("cards");
+
+        WorthCore service = BenchService.create();
+        BenchService.register(service, USER, USER);
+        System.out.println("ScalingBench: progetti | login p50 / p99 | showCard p50 / p99 | moveCard p50 / p99 (ms)");
+        for (int step = 10; ; step = Math.min(step * 10, maxProjects)) {
+            while (states.size() < step) {
+                String project = "bench-scaling-" + states.size();
+                service.createProject(USER, project);
+                for (int c = 0; c < cards; c++)
+                    service.addCard(USER, project, "c" + c, "card " + c);
+                states.add(new byte[cards]);
+            }
+            LatencyHistogram login = new LatencyHistogram();
+            for (int i = 0; i < options.get("logins"); i++) {
+                long start = System.nanoTime();
+                if (service.login(USER, USER).getResponse() != Response.OK)
+                    throw new IllegalStateException("login non riuscito");
+                login.record(System.nanoTime() - start);
+                service.logout(USER);
+            }
+            LatencyHistogram showCard = new LatencyHistogram();
+            LatencyHistogram moveCard = new LatencyHistogram();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < options.get("iterations"); i++) {
+                int project = random.nextInt(states.size());
+                int card = random.nextInt(cards);
+                long start = System.nanoTime();
+                if (service.showCard(USER, "bench-scaling-" + project, "c" + card).getResponse() != Response.OK)
+                    throw new IllegalStateException("card non trovata");
+                showCard.record(System.nanoTime() - start);
+                start = System.nanoTime();
+                BenchService.moveNext(service, USER, "bench-scaling-" + project, states.get(project), card);
+                moveCard.record(System.nanoTime() - start);
+            }
+            System.out.printf("ScalingBench: %8d | %s | %s | %s%n", step, millis(login), millis(showCard), millis(moveCard));
+            if (step == maxProjects)
+                break;
+        }
+        System.exit(0);
+    }
+
+    private static String millis(LatencyHistogram histogram) {
+        long[] stats = histogram.snapshot(0.5, 0.99);
+        return String.format("%7.3f / %7.3f", stats[1] / 1e6, stats[2] / 1e6);
+    }
+}
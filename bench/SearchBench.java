@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark di SEARCH_CARDS su un milione di card (100 progetti da 10000 card con i valori
+ * predefiniti), direttamente su CardIndex e sulle versioni pubblicate dei progetti, senza file né rete.
+ * Le descrizioni sono fatte di parole di un vocabolario con frequenze molto diverse (poche parole
+ * comuni, molte rare), così le query misurano sia liste di card lunghe che corte.
+ * Stampa il tempo di indicizzazione, la memoria occupata dopo un gc e, per ogni query, la mediana
+ * delle ricerche su tutti i progetti e su un solo progetto.
+ *
+ * Uso: java -Xmx3g -cp out:lib/* SearchBench --projects=100 --cards=10000 --repetitions=20
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class SearchBench {
+
+    /** query su parole di frequenza diversa, su più parole, senza risultati e sul nome di una card */
+    private static final String[] QUERIES = {"w0", "w1 w2", "w3k", "w0 w1 w2 w3", "zzz", "card5"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> options = BenchService.options(args,
+                Map.of("projects", 100, "cards", 10000, "words", 5000, "repetitions", 20));
+        String[] vocabulary = new String[options.get("words")];
+        for (int i = 0; i < vocabulary.length; i++)
+            vocabulary[i] = "w" + Integer.toString(i, 36);
+
+        Random random = new Random(1);
+        CardIndex index = new CardIndex();
+        ArrayList<Project> published = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int p = 0; p < options.get("projects"); p++) {
+            Project project = new Project("bench-search-" + p, "bench");
+            for (int i = 0; i < options.get("cards"); i++) {
+                StringBuilder description = new StringBuilder();
+                for (int k = 0; k < 6; k++) {
+                    //distribuzione concentrata sulle prime parole del vocabolario
+                    int word = (int) Math.min(vocabulary.length - 1, Math.abs(random.nextGaussian()) * 800);
+                    description.append(vocabulary[word]).append(' ');
+                }
+                Card card = new Card("card" + i + " " + vocabulary[random.nextInt(vocabulary.length)],
+                        description.toString());
+                project.addCard(card);
+                index.add(project, card, project.getCards().size() - 1);
+            }
+            project.publish();
+            published.add(project.snapshot());
+        }
+        long indexMillis = (System.nanoTime() - start) / 1_000_000;
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("SearchBench: %d card indicizzate in %d ms, heap occupato %d MB%n",
+                published.size() * options.get("cards"), indexMillis,
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+
+        List<Project> one = published.subList(0, 1);
+        for (String query : QUERIES) {
+            for (List<Project> scope : Arrays.asList(published, one)) {
+                LatencyHistogram latencies = new LatencyHistogram();
+                ResponseMessage.SearchResult result = new ResponseMessage.SearchResult();
+                int hits = 0;
+                for (int rep = 0; rep < options.get("repetitions"); rep++) {
+                    long searchStart = System.nanoTime();
+                    hits = index.search(scope, query, 100, result).size();
+                    latencies.record(System.nanoTime() - searchStart);
+                }
+                long[] stats = latencies.snapshot(0.5);
+                System.out.printf("SearchBench: %-12s progetti %3d, trovate %7d, pagina %3d, mediana %7.2f ms%n",
+                        query, scope.size(), result.getTotal(), hits, stats[1] / 1e6);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler di java.util.logging che pubblica i record su un thread dedicato: chi registra un
+ * record lo inserisce soltanto in una coda limitata, senza attendere la scrittura del record.
+ * Se la coda è piena il record viene scartato e conteggiato, così il logging non rallenta mai
+ * il thread che sta servendo una richiesta
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class AsyncLogHandler extends Handler {
+
+    /** handler che scrive effettivamente i record */
+    private final Handler delegate;
+    /** record in attesa di essere scritti */
+    private final ArrayBlockingQueue<LogRecord> queue;
+    /** record scartati perché la coda era piena */
+    private final LongAdder dropped;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param delegate handler su cui scrivere i record
+     * @param capacity numero massimo di record in attesa
+     */
+    public AsyncLogHandler(Handler delegate, int capacity) {
+        this.delegate = delegate;
+        queue = new ArrayBlockingQueue<>(capacity);
+        dropped = new LongAdder();
+        writer = new Thread(this::drain, "async-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record))
+            return;
+        if (!queue.offer(record))
+            dropped.increment();
+    }
+
+    /**
+     * eseguito dal thread writer: scrive i record man mano che arrivano
+     */
+    private void drain() {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                LogRecord record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record == null)
+                    continue;
+                delegate.publish(record);
+                if (queue.isEmpty())
+                    delegate.flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return record scartati perché la coda era piena
+     */
+    public long droppedRecords() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void flush() {
+        delegate.flush();
+    }
+
+    /**
+     * smette di accettare record, attende che quelli in coda vengano scritti e chiude il delegato
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+}
@@ -0,0 +1,818 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Codifica binaria dei messaggi (formato WireFormat.BINARY).
+ * Un messaggio inizia con l'ordinale della Request, che ne determina il tipo, seguito dall'id di
+ * correlazione e dai campi di quel tipo in ordine fisso; i campi che possono mancare sono scritti
+ * come valore + 1 (0 indica null). Gli interi sono varint (7 bit per byte), le stringhe e le liste
+ * sono precedute dalla loro lunghezza e gli enum Request/Response viaggiano come ordinale, quindi
+ * i loro nuovi valori vanno aggiunti sempre in fondo.
+ * User, Chat, Project e Card sono invece sequenze di campi "tag + valore" terminate dal tag 0,
+ * in cui vengono scritti solo i campi presenti.
+ * In un progetto le card vengono scritte una sola volta: le quattro liste di stato contengono
+ * soltanto gli indici delle card nella lista di tutte le card.
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class BinaryCodec {
+
+    /** tag di fine oggetto */
+    private static final int END = 0;
+
+    /** tag dei campi di User */
+    private static final int USER_NICKNAME = 1;
+    private static final int USER_PASSWORD = 2;
+    private static final int USER_ONLINE = 3;
+    private static final int USER_USERS = 4;
+    private static final int USER_CHATS = 5;
+
+    /** tag dei campi di Chat */
+    private static final int CHAT_ADDRESS = 1;
+    private static final int CHAT_PROJECT = 2;
+    private static final int CHAT_MESSAGES = 3;
+
+    /** tag dei campi di Project */
+    private static final int PROJECT_NAME = 1;
+    private static final int PROJECT_CARDS = 2;
+    private static final int PROJECT_MEMBERS = 3;
+    private static final int PROJECT_CHAT_ADDRESS = 4;
+    private static final int PROJECT_TODO = 5;
+    private static final int PROJECT_INPROGRESS = 6;
+    private static final int PROJECT_TOBEREVISED = 7;
+    private static final int PROJECT_DONE = 8;
+    private static final int PROJECT_VERSION = 9;
+
+    /** tag dei campi di Card */
+    private static final int CARD_NAME = 1;
+    private static final int CARD_DESCRIPTION = 2;
+    /** storico nel formato stringa: non viene più scritto (le card delle risposte non hanno storico,
+     *  che si legge con CARD_HISTORY) ma viene ancora accettato in lettura */
+    private static final int CARD_HISTORY = 3;
+    private static final int CARD_POSITION = 4;
+    private static final int CARD_VERSION = 5;
+
+    private BinaryCodec() {}
+
+    /**
+     * codifica il messaggio scrivendolo sullo stream
+     *
+     * @param message richiesta o risposta da codificare
+     * @param out stream di destinazione
+     * @throws IOException errore di scrittura
+     */
+    public static void encode(WireMessage message, OutputStream out) throws IOException {
+        if (message instanceof RequestMessage)
+            writeRequest((RequestMessage) message, out);
+        else
+            writeResponse((ResponseMessage) message, out);
+    }
+
+    /**
+     * decodifica un messaggio
+     *
+     * @param buffer array che contiene il frame
+     * @param offset posizione del primo byte del messaggio
+     * @param length lunghezza del messaggio
+     * @param type RequestMessage o ResponseMessage
+     * @return messaggio decodificato
+     * @throws IOException se il messaggio è troncato o non valido
+     */
+    public static <T extends WireMessage> T decode(byte[] buffer, int offset, int length, Class<T> type)
+            throws IOException {
+        Input in = new Input(buffer, offset, offset + length);
+        WireMessage message = type == RequestMessage.class ? readRequest(in, false) : readResponse(in, false);
+        if (in.pos != in.end)
+            throw new IOException("Byte in eccesso alla fine del messaggio binario");
+        return type.cast(message);
+    }
+
+    /* ----------------------------- scrittura ----------------------------- */
+
+    private static void writeRequest(RequestMessage m, OutputStream out) throws IOException {
+        writeVarint(out, m.getRequest().ordinal());
+        writeOptionalLong(out, m.getRequestId());
+        writeOptionalString(out, m.getNickname());
+        if (m instanceof RequestMessage.ProjectRequest)
+            writeOptionalString(out, ((RequestMessage.ProjectRequest) m).getProjectName());
+        switch (m.getRequest()) {
+            case LOGIN:
+                writeOptionalString(out, ((RequestMessage.Login) m).getPassword());
+                break;
+            case ADD_MEMBER:
+                writeOptionalString(out, ((RequestMessage.AddMember) m).getNewMember());
+                writeOptionalLong(out, ((RequestMessage.AddMember) m).getExpectedVersion());
+                break;
+            case SHOW_CARD:
+                writeOptionalString(out, ((RequestMessage.ShowCard) m).getCardName());
+                break;
+            case CARD_HISTORY:
+                writeOptionalString(out, ((RequestMessage.History) m).getCardName());
+                break;
+            case SEARCH_CARDS:
+                writeOptionalString(out, ((RequestMessage.SearchCards) m).getQuery());
+                break;
+            case ADD_CARD: {
+                RequestMessage.AddCard addCard = (RequestMessage.AddCard) m;
+                writeOptionalString(out, addCard.getCardName());
+                writeOptionalString(out, addCard.getDescription());
+                break;
+            }
+            case MOVE_CARD: {
+                RequestMessage.MoveCard moveCard = (RequestMessage.MoveCard) m;
+                writeOptionalString(out, moveCard.getCardName());
+                writeOptionalString(out, moveCard.getSourceList());
+                writeOptionalString(out, moveCard.getDestList());
+                writeOptionalLong(out, moveCard.getExpectedVersion());
+                break;
+            }
+            case BATCH: {
+                ArrayList<RequestMessage> batch = ((RequestMessage.Batch) m).getBatch();
+                writeVarint(out, batch == null ? 0 : batch.size() + 1);
+                if (batch != null) {
+                    for (RequestMessage operation : batch)
+                        writeRequest(operation, out);
+                }
+                break;
+            }
+            default:
+        }
+        if (m instanceof RequestMessage.Paged) {
+            RequestMessage.Paged paged = (RequestMessage.Paged) m;
+            Integer pageSize = paged.getPageSize();
+            writeOptionalLong(out, pageSize == null ? null : (long) pageSize);
+            writeOptionalString(out, paged.getCursor());
+        }
+    }
+
+    private static void writeResponse(ResponseMessage m, OutputStream out) throws IOException {
+        writeVarint(out, m.getRequest().ordinal());
+        writeOptionalLong(out, m.getRequestId());
+        writeVarint(out, m.getResponse() == null ? 0 : m.getResponse().ordinal() + 1);
+        if (m instanceof ResponseMessage.PagedResult) {
+            ResponseMessage.PagedResult paged = (ResponseMessage.PagedResult) m;
+            writeVarint(out, paged.getTotal());
+            writeOptionalString(out, paged.getNextCursor());
+        }
+        switch (m.getRequest()) {
+            case LOGIN: {
+                User user = ((ResponseMessage.LoginResult) m).getUser();
+                writeVarint(out, user == null ? 0 : 1);
+                if (user != null)
+                    writeUser(user, out);
+                break;
+            }
+            case LIST_ALL_PROJECTS: {
+                ArrayList<Project> projects = ((ResponseMessage.ProjectList) m).getProjects();
+                writeVarint(out, projects == null ? 0 : projects.size() + 1);
+                if (projects != null) {
+                    for (Project project : projects)
+                        writeProject(project, out);
+                }
+                break;
+            }
+            case SHOW_ALL_MEMBERS: {
+                List<String> members = ((ResponseMessage.MemberList) m).getMembers();
+                writeVarint(out, members == null ? 0 : 1);
+                if (members != null)
+                    writeStrings(members, out);
+                break;
+            }
+            case SHOW_ALL_CARDS: {
+                List<Card> cards = ((ResponseMessage.CardList) m).getCards();
+                writeVarint(out, cards == null ? 0 : cards.size() + 1);
+                if (cards != null) {
+                    for (Card card : cards)
+                        writeCard(card, out);
+                }
+                break;
+            }
+            case SHOW_CARD: {
+                Card card = ((ResponseMessage.CardDetail) m).getCard();
+                writeVarint(out, card == null ? 0 : 1);
+                if (card != null)
+                    writeCard(card, out);
+                break;
+            }
+            case BATCH: {
+                ArrayList<ResponseMessage> batch = ((ResponseMessage.BatchResult) m).getBatch();
+                writeVarint(out, batch == null ? 0 : batch.size() + 1);
+                if (batch != null) {
+                    for (ResponseMessage result : batch)
+                        writeResponse(result, out);
+                }
+                break;
+            }
+            case STATS: {
+                ArrayList<LatencyStats.Entry> latencies = ((ResponseMessage.StatsResult) m).getLatencies();
+                writeVarint(out, latencies == null ? 0 : latencies.size() + 1);
+                if (latencies != null) {
+                    for (LatencyStats.Entry entry : latencies) {
+                        writeVarint(out, entry.getRequest().ordinal());
+                        writeVarint(out, entry.getPhase().ordinal());
+                        writeVarint(out, entry.getCount());
+                        writeVarint(out, entry.getP50());
+                        writeVarint(out, entry.getP90());
+                        writeVarint(out, entry.getP99());
+                        writeVarint(out, entry.getMax());
+                    }
+                }
+                break;
+            }
+            case CARD_HISTORY: {
+                ArrayList<CardHistory.Event> events = ((ResponseMessage.HistoryPage) m).getEvents();
+                writeVarint(out, events == null ? 0 : events.size() + 1);
+                if (events != null) {
+                    for (CardHistory.Event event : events) {
+                        writeVarint(out, event.getList().ordinal());
+                        writeVarint(out, event.getTime());
+                        writeOptionalString(out, event.getActor());
+                    }
+                }
+                break;
+            }
+            case BOARD_SUMMARY: {
+                ResponseMessage.BoardResult board = (ResponseMessage.BoardResult) m;
+                writeVarint(out, board.getVersion());
+                writeVarint(out, board.getWorkInProgress());
+                ArrayList<ResponseMessage.ListSummary> lists = board.getLists();
+                writeVarint(out, lists == null ? 0 : lists.size() + 1);
+                if (lists != null) {
+                    for (ResponseMessage.ListSummary list : lists) {
+                        writeVarint(out, list.getList().ordinal());
+                        writeVarint(out, list.getCards());
+                        writeVarint(out, list.getCompletedStays());
+                        writeVarint(out, list.getAverageMillis());
+                    }
+                }
+                break;
+            }
+            case SEARCH_CARDS: {
+                ArrayList<CardIndex.Hit> hits = ((ResponseMessage.SearchResult) m).getHits();
+                writeVarint(out, hits == null ? 0 : hits.size() + 1);
+                if (hits != null) {
+                    for (CardIndex.Hit hit : hits) {
+                        writeOptionalString(out, hit.getProjectName());
+                        writeVarint(out, hit.getScore());
+                        writeCard(hit.getCard(), out);
+                    }
+                }
+                break;
+            }
+            default:
+        }
+    }
+
+    private static void writeOptionalLong(OutputStream out, Long value) throws IOException {
+        writeVarint(out, value == null ? 0 : value + 1);
+    }
+
+    private static void writeOptionalString(OutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeUser(User user, OutputStream out) throws IOException {
+        writeStringField(out, USER_NICKNAME, user.getNickname());
+        writeStringField(out, USER_PASSWORD, user.getPassword());
+        writeVarint(out, USER_ONLINE);
+        writeVarint(out, user.isOnline() ? 1 : 0);
+        if (user.getUsers() != null) {
+            writeVarint(out, USER_USERS);
+            writeVarint(out, user.getUsers().size());
+            for (User other : user.getUsers())
+                writeUser(other, out);
+        }
+        if (user.getChats() != null) {
+            writeVarint(out, USER_CHATS);
+            writeVarint(out, user.getChats().size());
+            for (Chat chat : user.getChats())
+                writeChat(chat, out);
+        }
+        writeVarint(out, END);
+    }
+
+    private static void writeChat(Chat chat, OutputStream out) throws IOException {
+        if (chat.getAddress() != null) {
+            writeVarint(out, CHAT_ADDRESS);
+            writeBytes(chat.getAddress().getAddress(), out);
+        }
+        writeStringField(out, CHAT_PROJECT, chat.getProject());
+        if (chat.getMessages() != null) {
+            writeVarint(out, CHAT_MESSAGES);
+            writeStrings(chat.getMessages(), out);
+        }
+        writeVarint(out, END);
+    }
+
+    private static void writeProject(Project project, OutputStream out) throws IOException {
+        writeStringField(out, PROJECT_NAME, project.getName());
+        List<Card> cards = project.getCards();
+        writeVarint(out, PROJECT_CARDS);
+        writeVarint(out, cards.size());
+        for (Card card : cards)
+            writeCard(card, out);
+        writeVarint(out, PROJECT_MEMBERS);
+        writeStrings(project.getMembers(), out);
+        if (project.getChatAddress() != null) {
+            writeVarint(out, PROJECT_CHAT_ADDRESS);
+            writeBytes(project.getChatAddress().getAddress(), out);
+        }
+        HashMap<Card, Integer> indexes = new HashMap<>(cards.size() * 2);
+        for (int i = 0; i < cards.size(); i++)
+            indexes.put(cards.get(i), i);
+        writeCardIndexes(out, PROJECT_TODO, project.getToDo(), indexes);
+        writeCardIndexes(out, PROJECT_INPROGRESS, project.getInProgress(), indexes);
+        writeCardIndexes(out, PROJECT_TOBEREVISED, project.getToBeRevised(), indexes);
+        writeCardIndexes(out, PROJECT_DONE, project.getDone(), indexes);
+        writeVarint(out, PROJECT_VERSION);
+        writeVarint(out, project.getVersion());
+        writeVarint(out, END);
+    }
+
+    private static void writeCardIndexes(OutputStream out, int tag, Collection<Card> list,
+                                         HashMap<Card, Integer> indexes) throws IOException {
+        writeVarint(out, tag);
+        writeVarint(out, list.size());
+        for (Card card : list)
+            writeVarint(out, indexes.get(card));
+    }
+
+    private static void writeCard(Card card, OutputStream out) throws IOException {
+        writeStringField(out, CARD_NAME, card.getName());
+        writeStringField(out, CARD_DESCRIPTION, card.getDescription());
+        writeStringField(out, CARD_POSITION, card.getPosition());
+        writeVarint(out, CARD_VERSION);
+        writeVarint(out, card.getVersion());
+        writeVarint(out, END);
+    }
+
+    private static void writeStringField(OutputStream out, int tag, String value) throws IOException {
+        if (value == null)
+            return;
+        writeVarint(out, tag);
+        writeString(value, out);
+    }
+
+    private static void writeStrings(List<String> values, OutputStream out) throws IOException {
+        writeVarint(out, values.size());
+        for (String value : values)
+            writeString(value, out);
+    }
+
+    private static void writeString(String value, OutputStream out) throws IOException {
+        writeBytes(value.getBytes(StandardCharsets.UTF_8), out);
+    }
+
+    private static void writeBytes(byte[] bytes, OutputStream out) throws IOException {
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * scrive un intero non negativo in formato varint: 7 bit per byte, il bit più
+     * significativo indica che seguono altri byte
+     */
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        if (value < 0)
+            throw new IOException("Valore negativo non codificabile: " + value);
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /* ----------------------------- lettura ----------------------------- */
+
+    /**
+     * @param nested true se la richiesta è un'operazione di un BATCH: un batch annidato può solo essere
+     *               vuoto (il dispatcher lo rifiuta comunque), così la decodifica non ricorre senza limite
+     */
+    private static RequestMessage readRequest(Input in, boolean nested) throws IOException {
+        RequestMessage m = RequestMessage.of(in.readEnum(Request.values()));
+        m.setRequestId(in.readOptionalLong());
+        m.setNickname(in.readOptionalString());
+        if (m instanceof RequestMessage.ProjectRequest)
+            ((RequestMessage.ProjectRequest) m).setProjectName(in.readOptionalString());
+        switch (m.getRequest()) {
+            case LOGIN:
+                ((RequestMessage.Login) m).setPassword(in.readOptionalString());
+                break;
+            case ADD_MEMBER:
+                ((RequestMessage.AddMember) m).setNewMember(in.readOptionalString());
+                ((RequestMessage.AddMember) m).setExpectedVersion(in.readOptionalLong());
+                break;
+            case SHOW_CARD:
+                ((RequestMessage.ShowCard) m).setCardName(in.readOptionalString());
+                break;
+            case CARD_HISTORY:
+                ((RequestMessage.History) m).setCardName(in.readOptionalString());
+                break;
+            case SEARCH_CARDS:
+                ((RequestMessage.SearchCards) m).setQuery(in.readOptionalString());
+                break;
+            case ADD_CARD: {
+                RequestMessage.AddCard addCard = (RequestMessage.AddCard) m;
+                addCard.setCardName(in.readOptionalString());
+                addCard.setDescription(in.readOptionalString());
+                break;
+            }
+            case MOVE_CARD: {
+                RequestMessage.MoveCard moveCard = (RequestMessage.MoveCard) m;
+                moveCard.setCardName(in.readOptionalString());
+                moveCard.setSourceList(in.readOptionalString());
+                moveCard.setDestList(in.readOptionalString());
+                moveCard.setExpectedVersion(in.readOptionalLong());
+                break;
+            }
+            case BATCH: {
+                int size = in.readOptionalSize();
+                if (nested && size > 0)
+                    throw new IOException("Batch annidato non ammesso nel messaggio binario");
+                if (size >= 0) {
+                    ArrayList<RequestMessage> batch = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                        batch.add(readRequest(in, true));
+                    ((RequestMessage.Batch) m).setBatch(batch);
+                }
+                break;
+            }
+            default:
+        }
+        if (m instanceof RequestMessage.Paged) {
+            RequestMessage.Paged paged = (RequestMessage.Paged) m;
+            Long pageSize = in.readOptionalLong();
+            if (pageSize != null && pageSize > Integer.MAX_VALUE)
+                throw new IOException("Dimensione di pagina non valida: " + pageSize);
+            paged.setPageSize(pageSize == null ? null : pageSize.intValue());
+            paged.setCursor(in.readOptionalString());
+        }
+        return m;
+    }
+
+    /**
+     * @param nested true se il responso è il risultato di un'operazione di un BATCH (vedi readRequest)
+     */
+    private static ResponseMessage readResponse(Input in, boolean nested) throws IOException {
+        ResponseMessage m = ResponseMessage.of(in.readEnum(Request.values()));
+        m.setRequestId(in.readOptionalLong());
+        int response = in.readInt();
+        if (response != 0)
+            m.setResponse(in.enumAt(Response.values(), response - 1));
+        if (m instanceof ResponseMessage.PagedResult) {
+            ResponseMessage.PagedResult paged = (ResponseMessage.PagedResult) m;
+            paged.setTotal(in.readInt());
+            paged.setNextCursor(in.readOptionalString());
+        }
+        switch (m.getRequest()) {
+            case LOGIN:
+                if (in.readInt() != 0)
+                    ((ResponseMessage.LoginResult) m).setUser(readUser(in));
+                break;
+            case LIST_ALL_PROJECTS: {
+                int size = in.readOptionalSize();
+                if (size >= 0) {
+                    ArrayList<Project> projects = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                        projects.add(readProject(in));
+                    ((ResponseMessage.ProjectList) m).setProjects(projects);
+                }
+                break;
+            }
+            case SHOW_ALL_MEMBERS:
+                if (in.readInt() != 0)
+                    ((ResponseMessage.MemberList) m).setMembers(readStrings(in));
+                break;
+            case SHOW_ALL_CARDS: {
+                int size = in.readOptionalSize();
+                if (size >= 0) {
+                    ArrayList<Card> cards = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                        cards.add(readCard(in));
+                    ((ResponseMessage.CardList) m).setCards(cards);
+                }
+                break;
+            }
+            case SHOW_CARD:
+                if (in.readInt() != 0)
+                    ((ResponseMessage.CardDetail) m).setCard(readCard(in));
+                break;
+            case BATCH: {
+                int size = in.readOptionalSize();
+                if (nested && size > 0)
+                    throw new IOException("Batch annidato non ammesso nel messaggio binario");
+                if (size >= 0) {
+                    ArrayList<ResponseMessage> batch = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                        batch.add(readResponse(in, true));
+                    ((ResponseMessage.BatchResult) m).setBatch(batch);
+                }
+                break;
+            }
+            case STATS: {
+                int size = in.readOptionalSize();
+                if (size >= 0) {
+                    ArrayList<LatencyStats.Entry> latencies = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        latencies.add(new LatencyStats.Entry(in.readEnum(Request.values()),
+                                in.readEnum(LatencyStats.Phase.values()), in.readVarint(), in.readVarint(),
+                                in.readVarint(), in.readVarint(), in.readVarint()));
+                    }
+                    ((ResponseMessage.StatsResult) m).setLatencies(latencies);
+                }
+                break;
+            }
+            case CARD_HISTORY: {
+                int size = in.readOptionalSize();
+                if (size >= 0) {
+                    ArrayList<CardHistory.Event> events = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        events.add(new CardHistory.Event(in.readEnum(CardState.values()), in.readVarint(),
+                                in.readOptionalString()));
+                    }
+                    ((ResponseMessage.HistoryPage) m).setEvents(events);
+                }
+                break;
+            }
+            case BOARD_SUMMARY: {
+                ResponseMessage.BoardResult board = (ResponseMessage.BoardResult) m;
+                board.setVersion(in.readVarint());
+                board.setWorkInProgress(in.readInt());
+                int size = in.readOptionalSize();
+                if (size >= 0) {
+                    ArrayList<ResponseMessage.ListSummary> lists = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        lists.add(new ResponseMessage.ListSummary(in.readEnum(CardState.values()), in.readInt(),
+                                in.readInt(), in.readVarint()));
+                    }
+                    board.setLists(lists);
+                }
+                break;
+            }
+            case SEARCH_CARDS: {
+                int size = in.readOptionalSize();
+                if (size >= 0) {
+                    ArrayList<CardIndex.Hit> hits = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        String projectName = in.readOptionalString();
+                        int score = in.readInt();
+                        hits.add(new CardIndex.Hit(projectName, readCard(in), score));
+                    }
+                    ((ResponseMessage.SearchResult) m).setHits(hits);
+                }
+                break;
+            }
+            default:
+        }
+        return m;
+    }
+
+    private static User readUser(Input in) throws IOException {
+        String nickname = null;
+        String password = null;
+        boolean online = false;
+        ArrayList<User> users = null;
+        ArrayList<Chat> chats = null;
+        int tag;
+        while ((tag = in.readInt()) != END) {
+            switch (tag) {
+                case USER_NICKNAME: nickname = in.readString(); break;
+                case USER_PASSWORD: password = in.readString(); break;
+                case USER_ONLINE: online = in.readInt() != 0; break;
+                case USER_USERS: {
+                    int size = in.readSize();
+                    users = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                        users.add(readUser(in));
+                    break;
+                }
+                case USER_CHATS: {
+                    int size = in.readSize();
+                    chats = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                        chats.add(readChat(in));
+                    break;
+                }
+                default: throw new IOException("Tag sconosciuto nell'utente binario: " + tag);
+            }
+        }
+        User user = new User(nickname, password);
+        user.setOnline(online);
+        if (users != null)
+            user.setUsersList(users);
+        if (chats != null)
+            user.getChats().addAll(chats);
+        return user;
+    }
+
+    private static Chat readChat(Input in) throws IOException {
+        InetAddress address = null;
+        String project = null;
+        ArrayList<String> messages = null;
+        int tag;
+        while ((tag = in.readInt()) != END) {
+            switch (tag) {
+                case CHAT_ADDRESS: address = InetAddress.getByAddress(in.readBytes()); break;
+                case CHAT_PROJECT: project = in.readString(); break;
+                case CHAT_MESSAGES: messages = readStrings(in); break;
+                default: throw new IOException("Tag sconosciuto nella chat binaria: " + tag);
+            }
+        }
+        Chat chat = new Chat(address, project);
+        if (messages != null)
+            chat.getMessages().addAll(messages);
+        return chat;
+    }
+
+    private static Project readProject(Input in) throws IOException {
+        String name = null;
+        ArrayList<Card> cards = new ArrayList<>();
+        ArrayList<String> members = new ArrayList<>();
+        InetAddress chatAddress = null;
+        long version = 0;
+        int[][] lists = new int[4][];
+        int tag;
+        while ((tag = in.readInt()) != END) {
+            switch (tag) {
+                case PROJECT_NAME: name = in.readString(); break;
+                case PROJECT_CARDS: cards = readCards(in); break;
+                case PROJECT_MEMBERS: members = readStrings(in); break;
+                case PROJECT_CHAT_ADDRESS: chatAddress = InetAddress.getByAddress(in.readBytes()); break;
+                case PROJECT_VERSION: version = in.readVarint(); break;
+                case PROJECT_TODO:
+                case PROJECT_INPROGRESS:
+                case PROJECT_TOBEREVISED:
+                case PROJECT_DONE: {
+                    int size = in.readSize();
+                    int[] indexes = new int[size];
+                    for (int i = 0; i < size; i++)
+                        indexes[i] = in.readInt();
+                    lists[tag - PROJECT_TODO] = indexes;
+                    break;
+                }
+                default: throw new IOException("Tag sconosciuto nel progetto binario: " + tag);
+            }
+        }
+        Project project = new Project(name);
+        project.getCards().addAll(cards);
+        project.getMembers().addAll(members);
+        project.setChatAddress(chatAddress);
+        project.setVersion(version);
+        addByIndex(lists[0], cards, project.getToDo());
+        addByIndex(lists[1], cards, project.getInProgress());
+        addByIndex(lists[2], cards, project.getToBeRevised());
+        addByIndex(lists[3], cards, project.getDone());
+        return project;
+    }
+
+    private static void addByIndex(int[] indexes, ArrayList<Card> cards, Collection<Card> list) throws IOException {
+        if (indexes == null)
+            return;
+        for (int index : indexes) {
+            if (index < 0 || index >= cards.size())
+                throw new IOException("Indice di card non valido nel progetto binario: " + index);
+            list.add(cards.get(index));
+        }
+    }
+
+    private static ArrayList<Card> readCards(Input in) throws IOException {
+        int size = in.readSize();
+        ArrayList<Card> cards = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            cards.add(readCard(in));
+        return cards;
+    }
+
+    private static Card readCard(Input in) throws IOException {
+        String name = null;
+        String description = null;
+        CardHistory history = null;
+        String position = null;
+        long version = 0;
+        int tag;
+        while ((tag = in.readInt()) != END) {
+            switch (tag) {
+                case CARD_NAME: name = in.readString(); break;
+                case CARD_DESCRIPTION: description = in.readString(); break;
+                case CARD_HISTORY: history = CardHistory.parse(in.readString()); break;
+                case CARD_POSITION: position = in.readString(); break;
+                case CARD_VERSION: version = in.readVarint(); break;
+                default: throw new IOException("Tag sconosciuto nella card binaria: " + tag);
+            }
+        }
+        return new Card(name, description, history, position, version);
+    }
+
+    private static ArrayList<String> readStrings(Input in) throws IOException {
+        int size = in.readSize();
+        ArrayList<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            values.add(in.readString());
+        return values;
+    }
+
+    /**
+     * cursore sui byte del messaggio da decodificare
+     */
+    private static class Input {
+
+        private final byte[] buffer;
+        private int pos;
+        private final int end;
+
+        Input(byte[] buffer, int pos, int end) {
+            this.buffer = buffer;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end)
+                    throw new IOException("Messaggio binario troncato");
+                byte b = buffer[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Varint troppo lungo nel messaggio binario");
+        }
+
+        int readInt() throws IOException {
+            long value = readVarint();
+            if (value > Integer.MAX_VALUE)
+                throw new IOException("Valore fuori intervallo nel messaggio binario: " + value);
+            return (int) value;
+        }
+
+        /** lunghezza di una lista o di una stringa, che non può superare i byte rimasti */
+        int readSize() throws IOException {
+            int size = readInt();
+            if (size > end - pos)
+                throw new IOException("Lunghezza non valida nel messaggio binario: " + size);
+            return size;
+        }
+
+        /** valore scritto con writeOptionalLong */
+        Long readOptionalLong() throws IOException {
+            long value = readVarint();
+            return value == 0 ? null : value - 1;
+        }
+
+        /** lunghezza di una lista che può mancare: -1 indica null */
+        int readOptionalSize() throws IOException {
+            int size = readInt();
+            if (size - 1 > end - pos)
+                throw new IOException("Lunghezza non valida nel messaggio binario: " + size);
+            return size - 1;
+        }
+
+        /** stringa scritta con writeOptionalString */
+        String readOptionalString() throws IOException {
+            int length = readOptionalSize();
+            if (length < 0)
+                return null;
+            String value = new String(buffer, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+            return enumAt(values, readInt());
+        }
+
+        <E extends Enum<E>> E enumAt(E[] values, int ordinal) throws IOException {
+            if (ordinal >= values.length)
+                throw new IOException("Ordinale sconosciuto nel messaggio binario: " + ordinal);
+            return values[ordinal];
+        }
+
+        String readString() throws IOException {
+            int length = readSize();
+            String value = new String(buffer, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readSize();
+            byte[] bytes = new byte[length];
+            System.arraycopy(buffer, pos, bytes, 0, length);
+            pos += length;
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool di ByteBuffer riutilizzabili divisi in classi di dimensione (potenze di due da 4KB a 1MB).
+ * Le code sono ArrayBlockingQueue, che a differenza delle code concatenate non allocano nodi
+ * ad ogni inserimento, così in regime stazionario acquire/release non producono garbage.
+ * I buffer più grandi della classe massima non vengono conservati.
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class BufferPool {
+
+    /** pool condiviso da tutte le connessioni */
+    public static final BufferPool SHARED = new BufferPool(64);
+
+    /** classe di dimensione più piccola (2^12 = 4KB) */
+    private static final int MIN_SHIFT = 12;
+    /** classe di dimensione più grande (2^20 = 1MB) */
+    private static final int MAX_SHIFT = 20;
+
+    /** numero di classi di dimensione */
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /** una coda di buffer liberi per ogni classe di dimensione (la lista non cambia dopo il costruttore) */
+    private final ArrayList<ArrayBlockingQueue<ByteBuffer>> classes;
+
+    /**
+     * @param maxPerClass numero massimo di buffer liberi conservati per ogni classe di dimensione
+     */
+    public BufferPool(int maxPerClass) {
+        classes = new ArrayList<>(CLASSES);
+        for (int i = 0; i < CLASSES; i++)
+            classes.add(new ArrayBlockingQueue<>(maxPerClass));
+    }
+
+    /**
+     * restituisce un buffer vuoto con capacità almeno pari a quella richiesta
+     *
+     * @param capacity capacità minima
+     * @return buffer pronto per essere scritto
+     */
+    public ByteBuffer acquire(int capacity) {
+        int index = classIndex(capacity);
+        if (index >= CLASSES)
+            return ByteBuffer.allocate(capacity);
+        ByteBuffer buffer = classes.get(index).poll();
+        if (buffer == null)
+            return ByteBuffer.allocate(1 << (index + MIN_SHIFT));
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * restituisce al pool un buffer ottenuto con acquire; il chiamante non deve più usarlo
+     *
+     * @param buffer buffer da restituire (può essere null)
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        int capacity = buffer.capacity();
+        int index = classIndex(capacity);
+        //conservo solo i buffer che hanno esattamente la dimensione di una classe
+        if (index < CLASSES && capacity == 1 << (index + MIN_SHIFT))
+            classes.get(index).offer(buffer);
+    }
+
+    /**
+     * @param capacity capacità richiesta
+     * @return indice della classe di dimensione più piccola che la contiene
+     */
+    private static int classIndex(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Risponde SERVER_BUSY alle connessioni che il pool del server non può accettare.
+ * Un solo thread legge l'handshake e la prima richiesta del client (con un timeout breve,
+ * così un client lento non lo blocca), risponde nel formato concordato e chiude il socket;
+ * se anche questo thread è sommerso le connessioni in eccesso vengono chiuse senza risposta
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class BusyResponder {
+
+    /** tempo massimo di attesa della prima richiesta del client rifiutato */
+    private static final int READ_TIMEOUT_MS = 1000;
+    /** connessioni rifiutate in attesa di ricevere la risposta */
+    private static final int QUEUE_SIZE = 128;
+
+    private final ThreadPoolExecutor responder;
+
+    public BusyResponder() {
+        responder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE));
+    }
+
+    /**
+     * rifiuta una connessione appena accettata
+     *
+     * @param clientSocket socket del client da rifiutare
+     */
+    public void reject(Socket clientSocket) {
+        try {
+            responder.execute(() -> respond(clientSocket));
+        } catch (RejectedExecutionException e) {
+            close(clientSocket);
+        }
+    }
+
+    /**
+     * concorda il formato, legge la prima richiesta e risponde SERVER_BUSY con lo stesso id
+     *
+     * @param clientSocket socket del client da rifiutare
+     */
+    private void respond(Socket clientSocket) {
+        FrameCodec<RequestMessage> codec = new FrameCodec<>(RequestMessage.class);
+        try {
+            clientSocket.setSoTimeout(READ_TIMEOUT_MS);
+            DataInputStream inStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            OutputStream outStream = clientSocket.getOutputStream();
+            codec.acceptFormat(inStream, outStream);
+            RequestMessage reqMsg = codec.read(inStream);
+            ResponseMessage ansMsg = ResponseMessage.of(reqMsg.getRequest());
+            ansMsg.setResponse(Response.SERVER_BUSY);
+            ansMsg.setRequestId(reqMsg.getRequestId());
+            codec.write(ansMsg, outStream);
+            ServerStats.SHARED.busy();
+        } catch (IOException | RuntimeException e) {
+            //il client non ha inviato nulla in tempo, ha già chiuso o ha inviato un frame non valido
+        } finally {
+            codec.close();
+            close(clientSocket);
+        }
+    }
+
+    private static void close(Socket clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException ignored) {}
+    }
+}
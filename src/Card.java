@@ -1,3 +1,5 @@
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.io.Serializable;
 
 /**
@@ -5,7 +7,7 @@ import java.io.Serializable;
  */
 public class Card implements Serializable {
 
-    private static final long serialVersionUID = 8443194847660515023L;
+    private static final long serialVersionUID = 7160923348771045352L;
 
     /** nome card */
     private String name;
@@ -13,22 +15,58 @@ public class Card implements Serializable {
     /** descrizione card */
     private String description;
 
-    /** storico spostamenti card */
-    private String history;
+    /**
+     * storico spostamenti card, salvato nel file della card. Le copie pubblicate inviate ai client
+     * non lo contengono (i client lo leggono a intervalli con CARD_HISTORY) */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private CardHistory history;
+
+    /** storico delle copie pubblicate, letto solo dal server e mai serializzato */
+    private transient CardHistory publishedHistory;
+
+    /** lista corrente card (in json e nella codifica binaria viene scritta con il suo nome) */
+    private CardState position;
 
-    /** lista corrente card */
-    private String position;
+    /** versione della card: parte da 0 e aumenta ad ogni spostamento (controllo ottimistico di move_card) */
+    private long version;
+
+    /** ordine di ingresso della card nella sua lista (versione del progetto al momento dell'ingresso),
+     *  usato per ricostruire le liste di stato delle versioni pubblicate */
+    private transient long listSequence;
+
+    /** copia immutabile della card usata nelle versioni pubblicate dei progetti (null se la card è cambiata) */
+    private transient Card frozen;
 
 
     public Card(String name, String description){
+        this(name, description, null);
+    }
+
+    /**
+     * @param name nome card
+     * @param description descrizione card
+     * @param creator utente che crea la card (null se non noto)
+     */
+    public Card(String name, String description, String creator){
         this.name = name;
         this.description = description;
-        history = "TODO";
-        position = "TODO";
+        history = new CardHistory(CardState.TODO, System.currentTimeMillis(), creator);
+        position = CardState.TODO;
     }
 
     public Card(){}
 
+    /**
+     * ricostruisce una card con tutti i suoi campi (usato dalla decodifica binaria dei messaggi)
+     */
+    Card(String name, String description, CardHistory history, String position, long version){
+        this.name = name;
+        this.description = description;
+        this.history = history;
+        this.position = CardState.fromPosition(position);
+        this.version = version;
+    }
+
     /**
      * @return nome card
      */
@@ -37,30 +75,101 @@ public class Card implements Serializable {
     }
 
     /**
-     * @return storico spostamenti card
+     * @return descrizione card
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return storico spostamenti card (null se la card è stata ricevuta senza storico)
      */
-    public String getHistory() {
-        return history;
+    public CardHistory history() {
+        return history != null ? history : publishedHistory;
     }
 
     /**
-     * aggiorna lo storico degli spostamenti della card concatenando
-     * alla stringa delle liste in cui è stata la nuova lista in cui si trova
+     * aggiorna la lista in cui si trova la card e aggiunge l'evento in fondo al suo storico
      *
      * @param newList nuova lista in cui è stata inserita la card
+     * @param actor utente che ha spostato la card
      */
-    public void updateHistory(String newList){
-        this.history += " -> " + newList.toUpperCase();
-        this.position = newList.toUpperCase();
+    public void updateHistory(CardState newList, String actor){
+        if (history == null)
+            history = new CardHistory();
+        this.history.add(newList, System.currentTimeMillis(), actor);
+        this.position = newList;
+        this.version++;
+        this.frozen = null;
+    }
+
+    /**
+     * @return copia della card che non viene più modificata, la stessa finché la card non cambia.
+     * La copia condivide lo storico senza copiarlo e non lo serializza
+     */
+    public Card frozen() {
+        if (frozen == null) {
+            Card copy = new Card();
+            copy.name = name;
+            copy.description = description;
+            copy.publishedHistory = history == null ? new CardHistory() : history.view();
+            copy.position = position;
+            copy.version = version;
+            copy.listSequence = listSequence;
+            copy.frozen = copy;
+            frozen = copy;
+        }
+        return frozen;
+    }
+
+    /**
+     * @return copia della card da scrivere nel suo file: a differenza di frozen contiene lo storico
+     * (quello condiviso dalla copia pubblicata), quindi può essere salvata senza il lock del progetto
+     */
+    Card saved() {
+        Card published = frozen();
+        Card copy = new Card();
+        copy.name = name;
+        copy.description = description;
+        copy.history = published.publishedHistory;
+        copy.position = position;
+        copy.version = version;
+        return copy;
+    }
+
+    /**
+     * @return ordine di ingresso della card nella sua lista
+     */
+    long listSequence() {
+        return listSequence;
+    }
+
+    /**
+     * @param listSequence ordine di ingresso della card nella sua lista (versione del progetto)
+     */
+    void setListSequence(long listSequence) {
+        this.listSequence = listSequence;
+        this.frozen = null;
     }
 
     /**
-     * recupera la lista in cui si trova la card in quel momento prendendo
-     * l'ultima stringa concatenata alla history
-     *
      * @return stringa che indica il nome della lista nella quale si trova la card in quel momento
      */
     public String getPosition(){
+        return position == null ? null : position.name();
+    }
+
+    /**
+     * @return versione della card
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return lista nella quale si trova la card in quel momento
+     */
+    public CardState state() {
         return position;
     }
 
@@ -72,6 +181,7 @@ public class Card implements Serializable {
     public String toString() {
         return "    Name:        " + name + "\n" +
                 "    Status:      " + position + "\n" +
+                "    Version:     " + version + "\n" +
                 "    Description: " + description;
     }
 
@@ -87,6 +197,14 @@ public class Card implements Serializable {
         return this.name.equals(((Card) obj).getName());
     }
 
+    /**
+     * @return hash coerente con equals (basato sul nome)
+     */
+    @Override
+    public int hashCode() {
+        return this.name.hashCode();
+    }
+
 
 }
 
@@ -0,0 +1,250 @@
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Storico degli spostamenti di una card in forma compatta: per ogni evento la lista in cui è
+ * stata messa la card (ordinale di CardState), l'istante in millisecondi e l'utente che l'ha spostata.
+ * Gli eventi vengono solo aggiunti in fondo, in array con capacità di riserva: una copia
+ * ottenuta con view() condivide gli array e vede soltanto gli eventi presenti al momento della
+ * copia, quindi le versioni pubblicate delle card non copiano lo storico.
+ * In json gli array vengono scritti senza la capacità di riserva; la stringa
+ * "TODO -> INPROGRESS -> ..." dei file precedenti viene letta con parse e costruita solo su richiesta (render)
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class CardHistory implements Serializable {
+
+    private static final long serialVersionUID = 6730151823641785905L;
+
+    /** capacità iniziale degli array (una card appena creata ha un solo evento) */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /** separatore degli eventi nella stringa dello storico */
+    private static final String SEPARATOR = " -> ";
+
+    /** liste in cui è stata la card, come ordinali di CardState */
+    @JsonIgnore
+    private byte[] lists;
+
+    /* times e actors possono essere più corti di size solo dopo la lettura da json di uno storico
+     * senza quei campi: gli eventi mancanti valgono 0 e null, e add li riallinea alla capacità */
+
+    /** istanti degli spostamenti (0 se non noto, es. storico letto da un file precedente) */
+    @JsonIgnore
+    private long[] times;
+
+    /** utenti che hanno eseguito gli spostamenti (null se non noto) */
+    @JsonIgnore
+    private String[] actors;
+
+    /** numero di eventi: gli elementi oltre size sono capacità di riserva */
+    @JsonIgnore
+    private int size;
+
+    public CardHistory() {
+        lists = new byte[INITIAL_CAPACITY];
+        times = new long[INITIAL_CAPACITY];
+        actors = new String[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @param list lista in cui viene creata la card
+     * @param time istante di creazione
+     * @param actor utente che ha creato la card (null se non noto)
+     */
+    public CardHistory(CardState list, long time, String actor) {
+        this();
+        add(list, time, actor);
+    }
+
+    /**
+     * copia che condivide gli array (vedi view)
+     */
+    private CardHistory(byte[] lists, long[] times, String[] actors, int size) {
+        this.lists = lists;
+        this.times = times;
+        this.actors = actors;
+        this.size = size;
+    }
+
+    /**
+     * legge lo storico nel formato stringa usato dalle versioni precedenti ("TODO -> INPROGRESS")
+     *
+     * @param history stringa dello storico
+     * @return storico con gli eventi della stringa, senza istanti né utenti
+     */
+    @JsonCreator
+    public static CardHistory parse(String history) {
+        CardHistory parsed = new CardHistory();
+        if (history == null || history.isEmpty())
+            return parsed;
+        for (String list : history.split(SEPARATOR)) {
+            CardState state = CardState.fromPosition(list.trim());
+            if (state != null)
+                parsed.add(state, 0, null);
+        }
+        return parsed;
+    }
+
+    /**
+     * aggiunge un evento in fondo allo storico: gli array vengono raddoppiati solo quando sono pieni
+     *
+     * @param list lista in cui è stata messa la card
+     * @param time istante dello spostamento
+     * @param actor utente che ha spostato la card (null se non noto)
+     */
+    public void add(CardState list, long time, String actor) {
+        if (size == lists.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+            lists = Arrays.copyOf(lists, capacity);
+            times = Arrays.copyOf(times, capacity);
+            actors = Arrays.copyOf(actors, capacity);
+        }
+        lists[size] = (byte) list.ordinal();
+        times[size] = time;
+        actors[size] = actor;
+        size++;
+    }
+
+    /**
+     * @return copia dello storico al momento della chiamata, che condivide gli array:
+     * gli eventi aggiunti in seguito scrivono solo oltre la sua dimensione (o in nuovi array)
+     */
+    public CardHistory view() {
+        return new CardHistory(lists, times, actors, size);
+    }
+
+    /**
+     * @return numero di eventi
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index posizione dell'evento
+     * @return lista dell'evento
+     */
+    public CardState list(int index) {
+        return CardState.values()[lists[index]];
+    }
+
+    /**
+     * @param index posizione dell'evento
+     * @return istante dell'evento (0 se non noto)
+     */
+    public long time(int index) {
+        return index < times.length ? times[index] : 0;
+    }
+
+    /**
+     * @param index posizione dell'evento
+     * @return utente dell'evento (null se non noto)
+     */
+    public String actor(int index) {
+        return index < actors.length ? actors[index] : null;
+    }
+
+    /**
+     * @param from posizione del primo evento
+     * @param to posizione successiva all'ultimo evento
+     * @return eventi nell'intervallo [from, to)
+     */
+    public ArrayList<Event> events(int from, int to) {
+        ArrayList<Event> events = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++)
+            events.add(new Event(list(i), time(i), actor(i)));
+        return events;
+    }
+
+    /**
+     * @return storico nel formato stringa delle versioni precedenti ("TODO -> INPROGRESS -> ...")
+     */
+    public String render() {
+        StringBuilder history = new StringBuilder(size * 12);
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                history.append(SEPARATOR);
+            history.append(list(i).name());
+        }
+        return history.toString();
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+
+    /* accessori usati da Jackson: gli array vengono scritti e letti senza la capacità di riserva */
+
+    @JsonProperty("lists")
+    private byte[] jsonLists() {
+        return Arrays.copyOf(lists, size);
+    }
+
+    @JsonProperty("lists")
+    private void jsonLists(byte[] lists) {
+        this.lists = lists;
+        this.size = lists.length;
+    }
+
+    @JsonProperty("times")
+    private long[] jsonTimes() {
+        return Arrays.copyOf(times, size);
+    }
+
+    @JsonProperty("times")
+    private void jsonTimes(long[] times) {
+        this.times = times;
+    }
+
+    @JsonProperty("actors")
+    private String[] jsonActors() {
+        return Arrays.copyOf(actors, size);
+    }
+
+    @JsonProperty("actors")
+    private void jsonActors(String[] actors) {
+        this.actors = actors;
+    }
+
+    /**
+     * un evento dello storico, come viene inviato ai client nella risposta CARD_HISTORY
+     */
+    public static class Event implements Serializable {
+
+        private static final long serialVersionUID = -2203916385519078427L;
+
+        /** lista in cui è stata messa la card */
+        private CardState list;
+        /** istante dello spostamento in millisecondi (0 se non noto) */
+        private long time;
+        /** utente che ha spostato la card (null se non noto) */
+        private String actor;
+
+        public Event() {}
+
+        public Event(CardState list, long time, String actor) {
+            this.list = list;
+            this.time = time;
+            this.actor = actor;
+        }
+
+        public CardState getList() {
+            return list;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getActor() {
+            return actor;
+        }
+    }
+}
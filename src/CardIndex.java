@@ -0,0 +1,268 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indice inverso delle parole contenute nei nomi e nelle descrizioni delle card, usato da SEARCH_CARDS.
+ * Per ogni progetto associa ad ogni parola le card che la contengono, come posizioni nella lista
+ * cards del progetto (a cui le card vengono solo aggiunte in fondo) con il peso della parola nella card.
+ * Le modifiche avvengono con il lock del progetto in scrittura, le ricerche senza lock: i risultati
+ * vengono presi dalla versione pubblicata del progetto, quindi le card non ancora pubblicate
+ * sono ignorate
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class CardIndex {
+
+    /* il peso di una parola in una card vale 2 se è nel nome, 1 se è nella descrizione, 3 se è in entrambi */
+
+    /** peso di una parola presente nel nome della card */
+    private static final int NAME_WEIGHT = 2;
+
+    /** peso di una parola presente nella descrizione della card */
+    private static final int DESCRIPTION_WEIGHT = 1;
+
+    /** bit del peso in ogni elemento di una lista di card (posizione << 2 | peso) */
+    private static final int WEIGHT_BITS = 2;
+    private static final int WEIGHT_MASK = (1 << WEIGHT_BITS) - 1;
+
+    /** nome progetto -> parola -> card che la contengono */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Postings>> projects;
+
+    public CardIndex() {
+        projects = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * indicizza una card appena aggiunta al progetto.
+     * Va chiamato con il lock del progetto in scrittura
+     *
+     * @param project progetto della card
+     * @param card card aggiunta
+     * @param position posizione della card nella lista cards del progetto
+     */
+    public void add(Project project, Card card, int position) {
+        HashMap<String, Integer> weights = new HashMap<>();
+        for (String word : words(card.getName()))
+            weights.merge(word, NAME_WEIGHT, (w1, w2) -> w1 | w2);
+        for (String word : words(card.getDescription()))
+            weights.merge(word, DESCRIPTION_WEIGHT, (w1, w2) -> w1 | w2);
+        ConcurrentHashMap<String, Postings> index =
+                projects.computeIfAbsent(project.getName(), n -> new ConcurrentHashMap<>());
+        for (HashMap.Entry<String, Integer> entry : weights.entrySet())
+            index.computeIfAbsent(entry.getKey(), w -> new Postings()).add(position << WEIGHT_BITS | entry.getValue());
+    }
+
+    /**
+     * indicizza tutte le card di un progetto letto dai file salvati
+     *
+     * @param project progetto
+     */
+    public void addAll(Project project) {
+        List<Card> cards = project.getCards();
+        for (int i = 0; i < cards.size(); i++)
+            add(project, cards.get(i), i);
+    }
+
+    /**
+     * toglie dall'indice tutte le card di un progetto cancellato
+     *
+     * @param project progetto
+     */
+    public void remove(Project project) {
+        projects.remove(project.getName());
+    }
+
+    /**
+     * cerca le card che contengono almeno una delle parole richieste e restituisce le prime in ordine
+     * di punteggio (somma dei pesi delle parole trovate), a parità di punteggio nell'ordine di creazione
+     * dei progetti e delle card. Vengono creati oggetti solo per i risultati che entrano tra i primi limit
+     *
+     * @param published versioni pubblicate dei progetti in cui cercare, nell'ordine di creazione
+     * @param query parole da cercare
+     * @param limit numero massimo di risultati da restituire
+     * @param result risposta in cui impostare il numero totale di card trovate
+     * @return i primi limit risultati in ordine
+     */
+    public ArrayList<Hit> search(Collection<Project> published, String query, int limit,
+                                 ResponseMessage.PagedResult result) {
+        ArrayList<String> words = words(query);
+        //i migliori limit risultati trovati finora, il peggiore in testa
+        PriorityQueue<Hit> best = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)),
+                (h1, h2) -> compare(h2.score, h2.sequence, h2.position, h1));
+        int total = 0;
+        int sequence = -1;
+        for (Project project : published) {
+            sequence++;
+            ConcurrentHashMap<String, Postings> index = projects.get(project.getName());
+            if (index == null)
+                continue;
+            List<Card> cards = project.getCards();
+            //copia locale delle liste delle parole cercate: size va letto prima di items
+            int[][] items = new int[words.size()][];
+            int[] sizes = new int[words.size()];
+            long candidates = 0;
+            for (int w = 0; w < words.size(); w++) {
+                Postings postings = index.get(words.get(w));
+                if (postings != null) {
+                    sizes[w] = postings.size;
+                    items[w] = postings.items;
+                    candidates += sizes[w];
+                }
+            }
+            if (candidates == 0)
+                continue;
+            //punteggi per posizione della card: in un array se le card trovate possono essere
+            //una parte consistente del progetto, altrimenti in una mappa
+            int[] dense = candidates * 16 >= cards.size() ? new int[cards.size()] : null;
+            HashMap<Integer, Integer> sparse = dense == null ? new HashMap<>() : null;
+            for (int w = 0; w < words.size(); w++) {
+                for (int i = 0; i < sizes[w]; i++) {
+                    int position = items[w][i] >>> WEIGHT_BITS;
+                    // card aggiunta dopo l'ultima pubblicazione del progetto
+                    if (position >= cards.size())
+                        continue;
+                    int weight = items[w][i] & WEIGHT_MASK;
+                    if (dense != null)
+                        dense[position] += weight;
+                    else
+                        sparse.merge(position, weight, Integer::sum);
+                }
+            }
+            if (dense != null) {
+                for (int position = 0; position < dense.length; position++) {
+                    if (dense[position] > 0) {
+                        total++;
+                        offer(best, limit, project, cards, sequence, position, dense[position]);
+                    }
+                }
+            } else {
+                total += sparse.size();
+                for (HashMap.Entry<Integer, Integer> entry : sparse.entrySet())
+                    offer(best, limit, project, cards, sequence, entry.getKey(), entry.getValue());
+            }
+        }
+        result.setTotal(total);
+        ArrayList<Hit> hits = new ArrayList<>(best);
+        hits.sort((h1, h2) -> compare(h1.score, h1.sequence, h1.position, h2));
+        return hits;
+    }
+
+    /**
+     * inserisce una card trovata tra i migliori risultati, se ne fa parte
+     */
+    private static void offer(PriorityQueue<Hit> best, int limit, Project project, List<Card> cards,
+                              int sequence, int position, int score) {
+        if (best.size() >= limit) {
+            if (limit == 0 || compare(score, sequence, position, best.peek()) >= 0)
+                return;
+            best.poll();
+        }
+        Hit hit = new Hit(project.getName(), cards.get(position), score);
+        hit.sequence = sequence;
+        hit.position = position;
+        best.add(hit);
+    }
+
+    /**
+     * ordine dei risultati: punteggio decrescente, poi ordine di creazione di progetti e card
+     *
+     * @return negativo se il primo risultato viene prima di hit, positivo se viene dopo
+     */
+    private static int compare(int score, int sequence, int position, Hit hit) {
+        if (score != hit.score)
+            return Integer.compare(hit.score, score);
+        if (sequence != hit.sequence)
+            return Integer.compare(sequence, hit.sequence);
+        return Integer.compare(position, hit.position);
+    }
+
+    /**
+     * @param text testo da dividere (può essere null)
+     * @return parole distinte del testo in minuscolo, nell'ordine in cui compaiono
+     */
+    static ArrayList<String> words(String text) {
+        LinkedHashSet<String> words = new LinkedHashSet<>();
+        if (text != null) {
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if (letter && start < 0) {
+                    start = i;
+                } else if (!letter && start >= 0) {
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                    start = -1;
+                }
+            }
+        }
+        return new ArrayList<>(words);
+    }
+
+    /**
+     * card che contengono una parola, come interi (posizione << 2 | peso). Gli elementi vengono
+     * solo aggiunti in fondo da un thread alla volta (con il lock del progetto); chi legge senza lock
+     * legge prima size e poi items, che contiene sempre almeno size elementi
+     */
+    private static class Postings {
+
+        private volatile int[] items = new int[2];
+        private volatile int size;
+
+        void add(int item) {
+            int[] current = items;
+            if (size == current.length) {
+                int[] grown = new int[current.length * 2];
+                System.arraycopy(current, 0, grown, 0, size);
+                items = grown;
+                current = grown;
+            }
+            current[size] = item;
+            size = size + 1;
+        }
+    }
+
+    /**
+     * una card trovata dalla ricerca, con il progetto a cui appartiene e il suo punteggio
+     */
+    public static class Hit implements Serializable {
+
+        private static final long serialVersionUID = -4127853390684712375L;
+
+        /** nome del progetto della card */
+        private String projectName;
+        /** card trovata (versione pubblicata) */
+        private Card card;
+        /** somma dei pesi delle parole trovate nella card */
+        private int score;
+
+        /** posizione del progetto e della card, usate solo per ordinare i risultati */
+        private transient int sequence;
+        private transient int position;
+
+        public Hit() {}
+
+        public Hit(String projectName, Card card, int score) {
+            this.projectName = projectName;
+            this.card = card;
+            this.score = score;
+        }
+
+        public String getProjectName() {
+            return projectName;
+        }
+
+        public Card getCard() {
+            return card;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+}
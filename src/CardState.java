@@ -0,0 +1,61 @@
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+
+/**
+ * Stato (lista del progetto) in cui può trovarsi una card, con la tabella degli spostamenti consentiti:
+ * TODO -> INPROGRESS, INPROGRESS -> TOBEREVISED o DONE, TOBEREVISED -> INPROGRESS o DONE.
+ * Il nome del valore è quello usato nella posizione e nello storico delle card
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public enum CardState {
+    TODO,
+    INPROGRESS,
+    TOBEREVISED,
+    DONE;
+
+    /** per ogni lista di partenza le liste in cui la card può essere spostata */
+    private static final EnumMap<CardState, EnumSet<CardState>> TRANSITIONS = new EnumMap<>(CardState.class);
+    /** liste indicizzate per il nome usato nei comandi del client (minuscolo) */
+    private static final HashMap<String, CardState> BY_COMMAND = new HashMap<>();
+
+    static {
+        TRANSITIONS.put(TODO, EnumSet.of(INPROGRESS));
+        TRANSITIONS.put(INPROGRESS, EnumSet.of(TOBEREVISED, DONE));
+        TRANSITIONS.put(TOBEREVISED, EnumSet.of(INPROGRESS, DONE));
+        TRANSITIONS.put(DONE, EnumSet.noneOf(CardState.class));
+        for (CardState list : values())
+            BY_COMMAND.put(list.name().toLowerCase(), list);
+    }
+
+    /**
+     * @param name nome della lista come indicato nei comandi del client (es. "inprogress")
+     * @return lista corrispondente, null se non esiste
+     */
+    public static CardState parse(String name) {
+        return name == null ? null : BY_COMMAND.get(name);
+    }
+
+    /**
+     * @param position posizione di una card (es. "INPROGRESS")
+     * @return lista corrispondente, null se la posizione è null o non valida
+     */
+    public static CardState fromPosition(String position) {
+        if (position == null)
+            return null;
+        try {
+            return valueOf(position);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param destination lista di destinazione
+     * @return true se una card in questa lista può essere spostata nella destinazione
+     */
+    public boolean canMoveTo(CardState destination) {
+        return TRANSITIONS.get(this).contains(destination);
+    }
+}
@@ -1,21 +1,25 @@
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-
 import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.RemoteObject;
 import java.rmi.server.UnicastRemoteObject;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Giuseppe Muschetta 564026 corso A
@@ -30,8 +34,8 @@ public class ClientCore extends RemoteObject implements ClientInterface {
     /** porta per la connessione tcp con il server */
     private final int serverPort;
 
-    /** utente gestito dal client */
-    private User user;
+    /** utente gestito dal client (letto anche dal thread degli heartbeat) */
+    private volatile User user;
 
     /** lista di riferimenti dei thread che eseguono il task ChatSaver */
     private final ArrayList<Thread> chatSavers;
@@ -39,6 +43,44 @@ public class ClientCore extends RemoteObject implements ClientInterface {
     /** socket client */
     private Socket socket;
 
+    /** stream associati al socket, creati una sola volta per ogni connessione */
+    private DataInputStream inStream;
+    private OutputStream outStream;
+
+    /** codifica/decodifica dei frame con buffer riutilizzati per tutta la connessione */
+    private FrameCodec<ResponseMessage> codec;
+
+    /** formato dei frame chiesto al server con l'handshake */
+    private final WireFormat wireFormat;
+
+    /** id di correlazione da assegnare alla prossima richiesta inviata in pipeline */
+    private long nextRequestId;
+
+    /** numero massimo di richieste inviate in pipeline senza averne ancora ricevuto la risposta */
+    private static final int PIPELINE_WINDOW = 32;
+
+    /** numero di elementi chiesti per ogni pagina delle liste di progetti, membri e card */
+    private static final int PAGE_SIZE = 100;
+
+    /** numero massimo di sotto-operazioni inviate in una singola richiesta BATCH */
+    private static final int BATCH_SIZE = 500;
+
+    /** numero massimo di volte che una richiesta rifiutata con SERVER_BUSY viene ripetuta */
+    private static final int MAX_RETRIES = 5;
+
+    /** attesa minima e massima prima di ripetere una richiesta rifiutata */
+    private static final long BASE_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 3000;
+
+    /** intervallo dopo il quale, senza altre richieste, viene inviato un PING al server */
+    private static final long HEARTBEAT_MS = 30_000;
+
+    /** mutua esclusione tra gli scambi richiesta/risposta e gli heartbeat */
+    private final ReentrantLock exchangeLock;
+
+    /** istante (System.nanoTime) dell'ultima richiesta inviata al server */
+    private volatile long lastSent;
+
     /** stub client registrato per le callbacks */
     private ClientInterface stub;
 
@@ -46,10 +88,24 @@ public class ClientCore extends RemoteObject implements ClientInterface {
     private ServerInterface server;
 
     public ClientCore(int portTCP, int portRegistry){
+        this(portTCP, portRegistry, WireFormat.BINARY);
+    }
+
+    public ClientCore(int portTCP, int portRegistry, WireFormat wireFormat){
         serverPort = portTCP;
         registryPort = portRegistry;
+        this.wireFormat = wireFormat;
         chatSavers = new ArrayList<>();
         socket = new Socket();
+        exchangeLock = new ReentrantLock();
+        //il server chiude le connessioni che restano troppo a lungo senza richieste
+        //(vedi ConnectionRegistry): mentre l'utente non fa nulla il client invia dei PING
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
     }
 
     public User getUser() {
@@ -75,7 +131,7 @@ public class ClientCore extends RemoteObject implements ClientInterface {
     /**
      * notifica il client in seguito ad un cambiamento di stato dei progetti.
      * Il server invoca il metodo sullo stub del client, ricevuto nel momento della registrazione alle
-     * callbacks, passando come parametro la lista aggiornata dei progetti
+     * callbacks, passando come parametro la lista aggiornata dei progetti di cui l'utente è membro
      *
      * @param createdProjects lista dei progetti creati nel servizio aggiornata
      * @throws RemoteException -
@@ -156,17 +212,20 @@ public class ClientCore extends RemoteObject implements ClientInterface {
      * @return stringa contentente il responso per l'operazione richiesta
      */
     public String login(String nickname, String password) throws IOException {
-        if (socket.isClosed())
-            socket = new Socket(InetAddress.getLocalHost(), serverPort);
-        if (!socket.isConnected())
-            socket.connect(new InetSocketAddress(InetAddress.getLocalHost(), serverPort));
-
-        Message message = new Message(Request.LOGIN);
-        message.setNickname(nickname);
-        message.setPassword(password);
-        sendToServer(message);
+        ResponseMessage.LoginResult receivedMsg;
+        for (int attempt = 0; ; attempt++) {
+            connect();
+            sendToServer(new RequestMessage.Login(nickname, password));
 
-        Message receivedMsg = receiveFromServer();
+            receivedMsg = receiveFromServer(ResponseMessage.LoginResult.class);
+            if (receivedMsg.getResponse() != Response.SERVER_BUSY)
+                break;
+            //il server saturo rifiuta la connessione: la riapro dopo un'attesa
+            socket.close();
+            if (attempt == MAX_RETRIES)
+                break;
+            backoff(attempt);
+        }
         switch (receivedMsg.getResponse()) {
             case OK :
                 user = receivedMsg.getUser();
@@ -176,7 +235,7 @@ public class ClientCore extends RemoteObject implements ClientInterface {
                     user.setClient(this);
                     //esportazione stub client da passare al server per le callbacks
                     stub = (ClientInterface) UnicastRemoteObject.exportObject(this, 0);
-                    server.registerForCallback(stub);
+                    server.registerForCallback(stub, user.getNickname());
                     return "ok";
                 }
                 break;
@@ -186,6 +245,8 @@ public class ClientCore extends RemoteObject implements ClientInterface {
                 return "Password errata";
             case ALREADY_LOGGED :
                 return "Utente già collegato";
+            case SERVER_BUSY :
+                return "Server occupato, riprovare più tardi";
             default :
                 return "Errore: errore nella comunicazione con il server";
         }
@@ -204,11 +265,7 @@ public class ClientCore extends RemoteObject implements ClientInterface {
             return "Nickname errato";
 
         if (user.isOnline()) {
-            Message message = new Message(Request.LOGOUT);
-            message.setNickname(nickname);
-            sendToServer(message);
-
-            Message receivedMsg = receiveFromServer();
+            ResponseMessage receivedMsg = request(new RequestMessage.Logout(nickname), ResponseMessage.class);
             switch (receivedMsg.getResponse()) {
                 case OK :
                     server.unregisterForCallback(stub);
@@ -266,29 +323,38 @@ public class ClientCore extends RemoteObject implements ClientInterface {
 
     /**
      * richiede la lista dei progetti di cui l'utente fa parte e la stampa usando
-     * printFormattedProjects() di ClientMenu
+     * printFormattedProjects() di ClientMenu.
+     * La lista viene chiesta una pagina alla volta e ogni pagina viene stampata appena arriva
      *
      * @return stringa contenente il responso per l'operazione richiesta
      */
     public String listProjects() throws IOException {
-        Message message = new Message(Request.LIST_ALL_PROJECTS);
-        message.setNickname(user.getNickname());
-        sendToServer(message);
-
-        Message receivedMsg = receiveFromServer();
-        switch (receivedMsg.getResponse()) {
-            case OK :
-                if(!receivedMsg.getProjects().isEmpty()) {
-                    String msg = receivedMsg.getProjects().size() == 1 ?
-                            "Fai parte di "+receivedMsg.getProjects().size()+" progetto" :
-                            "Fai parte di "+receivedMsg.getProjects().size()+" progetti" ;
-                    ClientMenu.printFormattedProjects(receivedMsg.getProjects(), msg);
-                    return "ok";
-                }
-                return "Non fai parte di nessun progetto";
-            case UNKNOWN_ERROR : return "Errore sconosciuto nel server";
-            default : return "Errore: errore nella comunicazione con il server";
-        }
+        String cursor = null;
+        boolean first = true;
+        do {
+            ResponseMessage.ProjectList receivedMsg = request(
+                    new RequestMessage.ListProjects(user.getNickname(), PAGE_SIZE, cursor),
+                    ResponseMessage.ProjectList.class);
+            switch (receivedMsg.getResponse()) {
+                case OK :
+                    break;
+                case UNKNOWN_ERROR : return "Errore sconosciuto nel server";
+                default : return "Errore: errore nella comunicazione con il server";
+            }
+            String msg = null;
+            if (first) {
+                int total = receivedMsg.getTotal();
+                if (total == 0)
+                    return "Non fai parte di nessun progetto";
+                msg = total == 1 ?
+                        "Fai parte di "+total+" progetto" :
+                        "Fai parte di "+total+" progetti" ;
+                first = false;
+            }
+            ClientMenu.printFormattedProjects(receivedMsg.getProjects(), msg);
+            cursor = receivedMsg.getNextCursor();
+        } while (cursor != null);
+        return "ok";
     }
 
     /**
@@ -299,12 +365,8 @@ public class ClientCore extends RemoteObject implements ClientInterface {
      */
     public String createProject(String projectName) throws IOException {
 
-        Message message = new Message(Request.CREATE_PROJECT);
-        message.setNickname(user.getNickname());
-        message.setProjectName(projectName);
-        sendToServer(message);
-
-        Message receivedMsg = receiveFromServer();
+        ResponseMessage receivedMsg = request(
+                new RequestMessage.CreateProject(user.getNickname(), projectName), ResponseMessage.class);
         switch (receivedMsg.getResponse()) {
             case OK :
                 return "ok";
@@ -327,19 +389,31 @@ public class ClientCore extends RemoteObject implements ClientInterface {
      * @return stringa contentente il responso per l'operazione richiesta
      */
     public String addMember(String projectName, String nickNewMember) throws IOException {
+        return addMember(projectName, nickNewMember, null);
+    }
 
-        Message message = new Message(Request.ADD_MEMBER);
-        message.setProjectName(projectName);
-        message.setNickname(user.getNickname());
-        message.setNewMember(nickNewMember);
-        sendToServer(message);
+    /**
+     * richiede l'aggiunta di un nuovo membro al progetto indicato, se il progetto
+     * è ancora alla versione attesa
+     *
+     * @param projectName nome progetto a cui aggiungere il nuovo membro
+     * @param nickNewMember nome utente del membro da aggiungere
+     * @param expectedVersion versione attesa del progetto (null per non controllarla)
+     * @return stringa contentente il responso per l'operazione richiesta
+     */
+    public String addMember(String projectName, String nickNewMember, Long expectedVersion) throws IOException {
 
-        Message receivedMsg = receiveFromServer();
+        ResponseMessage receivedMsg = request(
+                new RequestMessage.AddMember(user.getNickname(), projectName, nickNewMember, expectedVersion),
+                ResponseMessage.class);
         switch (receivedMsg.getResponse()) {
             case OK : return "ok";
             case NOT_REGISTERED : return "L'utente " + nickNewMember + " non esiste";
             case MEMBER_EXISTS : return "L'utente " + nickNewMember + " è già membro del progetto";
             case NONEXISTENT_PROJECT : return "Non sei membro di un progetto di nome " + projectName;
+            case VERSION_CONFLICT :
+                return "Il progetto " + projectName + " è stato modificato nel frattempo (versione diversa da "
+                        + expectedVersion + ")";
             default : return "Errore: errore nella comunicazione con il server";
         }
 
@@ -347,71 +421,84 @@ public class ClientCore extends RemoteObject implements ClientInterface {
 
     /**
      * richiede la lista dei membri del progetto e la stampa usando
-     * printFormattedUsers() di ClientMenu
+     * printFormattedUsers() di ClientMenu, una pagina alla volta
      *
      * @param projectName nome progetto del quale è stata richiesta la lista dei membri
      * @return stringa da inviare al client contenente la lista dei membri del progetto
      */
     public String showMembers(String projectName) throws IOException {
-
-        Message message = new Message(Request.SHOW_ALL_MEMBERS);
-        message.setProjectName(projectName);
-        message.setNickname(user.getNickname());
-        sendToServer(message);
-
-        Message receivedMsg = receiveFromServer();
-        switch (receivedMsg.getResponse()) {
-            case OK :
-                if (!receivedMsg.getMembers().isEmpty()) {
-                    ArrayList<User> members = new ArrayList<>();
-                    for (String memberName : receivedMsg.getMembers()) {
-                        int memberIndex = user.getUsers().indexOf(new User(memberName, null));
-                        members.add(user.getUsers().get(memberIndex));
-                    }
-                    String msg = receivedMsg.getMembers().size() == 1 ?
-                            "Il progetto "+projectName+" è composto da " + receivedMsg.getMembers().size() + " membro" :
-                            "Il progetto "+projectName+" è composto da " + receivedMsg.getMembers().size() + " membri" ;
-                    ClientMenu.printFormattedUsers(members, msg);
-                    return "ok";
-                }
-                return "Nel progetto non e' presente nessun membro";
-            case NONEXISTENT_PROJECT :
-                return "Non sei membro di un progetto di nome " + projectName;
-            default :
-                return "Errore: errore nella comunicazione con il server";
-        }
-
+        String cursor = null;
+        boolean first = true;
+        do {
+            ResponseMessage.MemberList receivedMsg = request(
+                    new RequestMessage.ShowMembers(user.getNickname(), projectName, PAGE_SIZE, cursor),
+                    ResponseMessage.MemberList.class);
+            switch (receivedMsg.getResponse()) {
+                case OK :
+                    break;
+                case NONEXISTENT_PROJECT :
+                    return "Non sei membro di un progetto di nome " + projectName;
+                case INVALID_CURSOR :
+                    return "La lista dei membri è cambiata durante la lettura";
+                default :
+                    return "Errore: errore nella comunicazione con il server";
+            }
+            String msg = null;
+            if (first) {
+                int total = receivedMsg.getTotal();
+                if (total == 0)
+                    return "Nel progetto non e' presente nessun membro";
+                msg = total == 1 ?
+                        "Il progetto "+projectName+" è composto da " + total + " membro" :
+                        "Il progetto "+projectName+" è composto da " + total + " membri" ;
+                first = false;
+            }
+            ArrayList<User> members = new ArrayList<>();
+            for (String memberName : receivedMsg.getMembers()) {
+                int memberIndex = user.getUsers().indexOf(new User(memberName, null));
+                members.add(user.getUsers().get(memberIndex));
+            }
+            ClientMenu.printFormattedUsers(members, msg);
+            cursor = receivedMsg.getNextCursor();
+        } while (cursor != null);
+        return "ok";
     }
 
     /**
      * richiede la lista di cards del progetto e la stampa usando
-     * printFormattedCards() di ClientMenu
+     * printFormattedCards() di ClientMenu, una pagina alla volta
      *
      * @param projectName nome progetto del quale e' stata richiesta la lista di cards
      * @return stringa da inviare al client contenente la lista delle cards del progetto
      */
     public String showCards(String projectName) throws IOException {
-
-        Message message = new Message(Request.SHOW_ALL_CARDS);
-        message.setProjectName(projectName);
-        message.setNickname(user.getNickname());
-        sendToServer(message);
-
-        Message receivedMsg = receiveFromServer();
-        switch (receivedMsg.getResponse()) {
-            case OK :
-                if (!receivedMsg.getCards().isEmpty()) {
-                    String msg = "Il progetto "+projectName+" è composto da " + receivedMsg.getCards().size() +" card";
-                    ClientMenu.printFormattedCards(receivedMsg.getCards(), msg);
-                    return "ok";
-                }
-                return "Nel progetto non è presente nessuna card";
-            case NONEXISTENT_PROJECT :
-                return "Non sei membro di un progetto di nome " + projectName;
-            default :
-                return "Errore: errore nella comunicazione con il server";
-        }
-
+        String cursor = null;
+        boolean first = true;
+        do {
+            ResponseMessage.CardList receivedMsg = request(
+                    new RequestMessage.ShowCards(user.getNickname(), projectName, PAGE_SIZE, cursor),
+                    ResponseMessage.CardList.class);
+            switch (receivedMsg.getResponse()) {
+                case OK :
+                    break;
+                case NONEXISTENT_PROJECT :
+                    return "Non sei membro di un progetto di nome " + projectName;
+                case INVALID_CURSOR :
+                    return "La lista delle card è cambiata durante la lettura";
+                default :
+                    return "Errore: errore nella comunicazione con il server";
+            }
+            String msg = null;
+            if (first) {
+                if (receivedMsg.getTotal() == 0)
+                    return "Nel progetto non è presente nessuna card";
+                msg = "Il progetto "+projectName+" è composto da " + receivedMsg.getTotal() +" card";
+                first = false;
+            }
+            ClientMenu.printFormattedCards(receivedMsg.getCards(), msg);
+            cursor = receivedMsg.getNextCursor();
+        } while (cursor != null);
+        return "ok";
     }
 
     /**
@@ -424,13 +511,9 @@ public class ClientCore extends RemoteObject implements ClientInterface {
      */
     public String showCard(String projectName, String cardName) throws IOException {
 
-        Message message = new Message(Request.SHOW_CARD);
-        message.setProjectName(projectName);
-        message.setNickname(user.getNickname());
-        message.setCardName(cardName);
-        sendToServer(message);
-
-        Message receivedMsg = receiveFromServer();
+        ResponseMessage.CardDetail receivedMsg = request(
+                new RequestMessage.ShowCard(user.getNickname(), projectName, cardName),
+                ResponseMessage.CardDetail.class);
         switch (receivedMsg.getResponse()) {
             case OK :
                 ClientMenu.printCard(receivedMsg.getCard());
@@ -445,6 +528,86 @@ public class ClientCore extends RemoteObject implements ClientInterface {
 
     }
 
+    /**
+     * richiede più card dello stesso progetto e le stampa usando printCard() di ClientMenu.
+     * Le richieste vengono inviate in pipeline con un id di correlazione, senza attendere ogni
+     * volta la risposta: il server le esegue in parallelo e le risposte, che possono arrivare
+     * in un ordine diverso, vengono riassociate alle card tramite l'id
+     * Le richieste rifiutate con SERVER_BUSY vengono ripetute dopo un'attesa, riducendo
+     * il numero di richieste inviate senza attendere la risposta
+     *
+     * @param projectName nome progetto a cui appartengono le card
+     * @param cardNames nomi delle card richieste
+     * @return stringa contenente il responso per l'operazione richiesta
+     * @throws IOException -
+     */
+    public String showCards(String projectName, List<String> cardNames) throws IOException {
+        ResponseMessage.CardDetail[] responses = new ResponseMessage.CardDetail[cardNames.size()];
+        //id delle richieste in attesa di risposta -> indice della card richiesta
+        HashMap<Long, Integer> pending = new HashMap<>();
+        ArrayDeque<Integer> toSend = new ArrayDeque<>();
+        for (int i = 0; i < cardNames.size(); i++)
+            toSend.add(i);
+        //tentativi già fatti per ogni card e tentativi della richiesta rifiutata più di recente
+        //(-1 se dall'ultima attesa nessuna richiesta è stata rifiutata con SERVER_BUSY)
+        int[] attempts = new int[cardNames.size()];
+        int retry = -1;
+        //richieste in volo consentite: si dimezza ad ogni rifiuto e risale di uno ad ogni risposta
+        int window = PIPELINE_WINDOW;
+        //le richieste in pipeline non devono intrecciarsi con gli heartbeat
+        exchangeLock.lock();
+        try {
+            int received = 0;
+            while (received < cardNames.size()) {
+                //se il server era saturo smetto di inviare, attendo le risposte in volo
+                //e poi aspetto prima di ripetere le richieste rifiutate
+                if (retry >= 0 && pending.isEmpty()) {
+                    backoff(retry);
+                    retry = -1;
+                }
+                //mantengo al massimo window richieste in attesa di risposta
+                while (retry < 0 && !toSend.isEmpty() && pending.size() < window) {
+                    int i = toSend.poll();
+                    RequestMessage message = new RequestMessage.ShowCard(user.getNickname(), projectName,
+                            cardNames.get(i));
+                    message.setRequestId(nextRequestId);
+                    pending.put(nextRequestId++, i);
+                    sendToServer(message);
+                }
+                ResponseMessage.CardDetail receivedMsg = receiveFromServer(ResponseMessage.CardDetail.class);
+                int i = pending.remove(receivedMsg.getRequestId());
+                if (receivedMsg.getResponse() == Response.SERVER_BUSY && attempts[i] < MAX_RETRIES) {
+                    retry = Math.max(retry, attempts[i]++);
+                    window = Math.max(1, window / 2);
+                    toSend.add(i);
+                    continue;
+                }
+                window = Math.min(PIPELINE_WINDOW, window + 1);
+                responses[i] = receivedMsg;
+                received++;
+            }
+        } finally {
+            exchangeLock.unlock();
+        }
+
+        for (int i = 0; i < cardNames.size(); i++) {
+            ResponseMessage.CardDetail receivedMsg = responses[i];
+            switch (receivedMsg.getResponse()) {
+                case OK :
+                    ClientMenu.printCard(receivedMsg.getCard());
+                    break;
+                case NONEXISTENT_PROJECT :
+                    return "Non sei membro di un progetto di nome " + projectName;
+                case NONEXISTENT_CARD :
+                    System.out.println("< Non esiste nessuna carta di nome " + cardNames.get(i) + " nel progetto");
+                    break;
+                default :
+                    return "Errore: errore nella comunicazione con il server";
+            }
+        }
+        return "ok";
+    }
+
     /**
      * richiede l'aggiunta della card con i dettagli forniti al progetto
      *
@@ -455,14 +618,9 @@ public class ClientCore extends RemoteObject implements ClientInterface {
      */
     public String addCard(String projectName, String cardName, String description) throws IOException {
 
-        Message message = new Message(Request.ADD_CARD);
-        message.setProjectName(projectName);
-        message.setCardName(cardName);
-        message.setDescription(description);
-        message.setNickname(user.getNickname());
-        sendToServer(message);
-
-        Message receivedMsg = receiveFromServer();
+        ResponseMessage receivedMsg = request(
+                new RequestMessage.AddCard(user.getNickname(), projectName, cardName, description),
+                ResponseMessage.class);
         switch (receivedMsg.getResponse()) {
             case OK : return "ok";
             case NONEXISTENT_PROJECT : return "Non sei membro di un progetto di nome " + projectName;
@@ -472,6 +630,51 @@ public class ClientCore extends RemoteObject implements ClientInterface {
 
     }
 
+    /**
+     * importa nel progetto le card elencate in un file di testo, una per riga nella forma
+     * "nome_card descrizione", inviandole con richieste BATCH da al più BATCH_SIZE card
+     * invece che con una richiesta ADD_CARD per card
+     *
+     * @param projectName nome progetto al quale aggiungere le card
+     * @param filename path del file da importare
+     * @return stringa contentente il responso per l'operazione richiesta
+     * @throws IOException errore nella lettura del file o nella comunicazione con il server
+     */
+    public String importCards(String projectName, String filename) throws IOException {
+        ArrayList<RequestMessage.AddCard> operations = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split(" ", 2);
+            if (fields[0].isEmpty())
+                continue;
+            //il nome utente delle sotto-operazioni viene impostato dal server con quello del batch
+            operations.add(new RequestMessage.AddCard(null, projectName, fields[0],
+                    fields.length == 2 ? fields[1] : ""));
+        }
+        if (operations.isEmpty())
+            return "Il file " + filename + " non contiene nessuna card";
+
+        int imported = 0;
+        ArrayList<String> existing = new ArrayList<>();
+        for (int from = 0; from < operations.size(); from += BATCH_SIZE) {
+            ArrayList<RequestMessage> chunk = new ArrayList<>(
+                    operations.subList(from, Math.min(from + BATCH_SIZE, operations.size())));
+            ResponseMessage.BatchResult receivedMsg = request(
+                    new RequestMessage.Batch(user.getNickname(), chunk), ResponseMessage.BatchResult.class);
+            if (receivedMsg.getResponse() != Response.OK)
+                return "Errore: errore nella comunicazione con il server";
+            for (int i = 0; i < chunk.size(); i++) {
+                switch (receivedMsg.getBatch().get(i).getResponse()) {
+                    case OK : imported++; break;
+                    case CARD_EXISTS : existing.add(operations.get(from + i).getCardName()); break;
+                    case NONEXISTENT_PROJECT : return "Non sei membro di un progetto di nome " + projectName;
+                    default : return "Errore: errore nella comunicazione con il server";
+                }
+            }
+        }
+        ClientMenu.printImportResult(imported, existing);
+        return "ok";
+    }
+
     /**
      *  richiede lo spostamento della card, se consentito, da una lista di partenza a una di destinazione
      *
@@ -482,16 +685,26 @@ public class ClientCore extends RemoteObject implements ClientInterface {
      * @return stringa contentente il responso per l'operazione richiesta
      */
     public String moveCard(String projectName, String cardName, String sourceList, String destList) throws IOException {
+        return moveCard(projectName, cardName, sourceList, destList, null);
+    }
 
-        Message message = new Message(Request.MOVE_CARD);
-        message.setProjectName(projectName);
-        message.setCardName(cardName);
-        message.setSourceList(sourceList);
-        message.setDestList(destList);
-        message.setNickname(user.getNickname());
-        sendToServer(message);
+    /**
+     *  richiede lo spostamento della card, se consentito e se la card è ancora alla versione attesa
+     *
+     * @param projectName nome progetto di cui fa parte la card
+     * @param cardName nome card da spostare
+     * @param sourceList lista di partenza da cui spostare la card
+     * @param destList lista di destinazione in cui spostare la card
+     * @param expectedVersion versione attesa della card (null per non controllarla)
+     * @return stringa contentente il responso per l'operazione richiesta
+     */
+    public String moveCard(String projectName, String cardName, String sourceList, String destList,
+                           Long expectedVersion) throws IOException {
 
-        Message receivedMsg = receiveFromServer();
+        ResponseMessage receivedMsg = request(
+                new RequestMessage.MoveCard(user.getNickname(), projectName, cardName, sourceList, destList,
+                        expectedVersion),
+                ResponseMessage.class);
         switch (receivedMsg.getResponse()) {
             case OK : return "ok";
             case NONEXISTENT_PROJECT :
@@ -504,41 +717,108 @@ public class ClientCore extends RemoteObject implements ClientInterface {
                 return "Vietato spostare la card da " + sourceList + " a " + destList;
             case CARD_EXISTS :
                 return "La card " + cardName + " è già nella lista di destinazione";
+            case VERSION_CONFLICT :
+                return "La card " + cardName + " è stata modificata nel frattempo (versione diversa da "
+                        + expectedVersion + ")";
             default : return "Errore: errore nella comunicazione con il server";
         }
     }
 
     /**
-     * richiede la card e ne stampa lo storico degli spostamenti utilizzando
-     * il metodo printCardHistory() di ClientMenu
+     * richiede lo storico degli spostamenti della card, una pagina di eventi alla volta,
+     * e lo stampa utilizzando il metodo printCardHistory() di ClientMenu
      * @param projectName nome progetto di cui fa parte la card
      * @param cardName nome card
      * @return stringa contenente il responso per l'operazione richiesta
      * @throws IOException -
      */
     public String getCardHistory(String projectName, String cardName) throws IOException {
+        String cursor = null;
+        boolean first = true;
+        do {
+            ResponseMessage.HistoryPage receivedMsg = request(
+                    new RequestMessage.History(user.getNickname(), projectName, cardName, PAGE_SIZE, cursor),
+                    ResponseMessage.HistoryPage.class);
+            switch (receivedMsg.getResponse()) {
+                case OK :
+                    break;
+                case NONEXISTENT_PROJECT :
+                    return "Non sei membro di un progetto di nome " + projectName;
+                case NONEXISTENT_CARD :
+                    return "Non esiste nessuna carta di nome " + cardName + " nel progetto";
+                case INVALID_CURSOR :
+                    return "Lo storico della card è cambiato durante la lettura";
+                default :
+                    return "Errore: errore nella comunicazione con il server";
+            }
+            String msg = null;
+            if (first) {
+                msg = "Sequenza spostamenti card (" + receivedMsg.getTotal() + "):";
+                first = false;
+            }
+            ClientMenu.printCardHistory(receivedMsg.getEvents(), msg);
+            cursor = receivedMsg.getNextCursor();
+        } while (cursor != null);
+        return "ok";
+    }
 
-        //chiedo al server la card e da questa mi prenderò la history
-        Message message = new Message(Request.SHOW_CARD);
-        message.setProjectName(projectName);
-        message.setNickname(user.getNickname());
-        message.setCardName(cardName);
-        sendToServer(message);
-
-        Message receivedMsg = receiveFromServer();
+    /**
+     * richiede il riepilogo della board del progetto e lo stampa
+     * utilizzando il metodo printBoard() di ClientMenu
+     * @param projectName nome progetto
+     * @return stringa contenente il responso per l'operazione richiesta
+     * @throws IOException -
+     */
+    public String boardSummary(String projectName) throws IOException {
+        ResponseMessage.BoardResult receivedMsg = request(
+                new RequestMessage.BoardSummary(user.getNickname(), projectName),
+                ResponseMessage.BoardResult.class);
         switch (receivedMsg.getResponse()) {
             case OK :
-                ClientMenu.printCardHistory(receivedMsg.getCard());
+                ClientMenu.printBoard(projectName, receivedMsg);
                 return "ok";
             case NONEXISTENT_PROJECT :
                 return "Non sei membro di un progetto di nome " + projectName;
-            case NONEXISTENT_CARD :
-                return "Non esiste nessuna carta di nome " + cardName + " nel progetto";
             default :
                 return "Errore: errore nella comunicazione con il server";
         }
     }
 
+    /**
+     * cerca le parole nei nomi e nelle descrizioni delle card dei progetti dell'utente,
+     * una pagina di risultati alla volta, e stampa le card trovate in ordine di punteggio
+     * @param query parole da cercare
+     * @return stringa contenente il responso per l'operazione richiesta
+     * @throws IOException -
+     */
+    public String searchCards(String query) throws IOException {
+        String cursor = null;
+        boolean first = true;
+        do {
+            ResponseMessage.SearchResult receivedMsg = request(
+                    new RequestMessage.SearchCards(user.getNickname(), query, PAGE_SIZE, cursor),
+                    ResponseMessage.SearchResult.class);
+            switch (receivedMsg.getResponse()) {
+                case OK :
+                    break;
+                case INVALID_CURSOR :
+                    return "I risultati della ricerca sono cambiati durante la lettura";
+                default :
+                    return "Errore: errore nella comunicazione con il server";
+            }
+            String msg = null;
+            if (first) {
+                if (receivedMsg.getTotal() == 0)
+                    return "Nessuna card trovata";
+                msg = "Card trovate: " + receivedMsg.getTotal();
+                first = false;
+            }
+            ClientMenu.printSearchResult(receivedMsg.getHits(), msg);
+            cursor = receivedMsg.getNextCursor();
+        } while (cursor != null);
+        return "ok";
+    }
+
     /**
      * invia un messaggio sulla chat di progetto
      * @param projectName nome progetto relativo alla chat su cui inviare il messaggio
@@ -576,12 +856,8 @@ public class ClientCore extends RemoteObject implements ClientInterface {
      */
     public String cancelProject(String projectName) throws IOException {
 
-        Message message = new Message(Request.CANCEL_PROJECT);
-        message.setProjectName(projectName);
-        message.setNickname(user.getNickname());
-        sendToServer(message);
-
-        Message receivedMsg = receiveFromServer();
+        ResponseMessage receivedMsg = request(
+                new RequestMessage.CancelProject(user.getNickname(), projectName), ResponseMessage.class);
         switch (receivedMsg.getResponse()) {
             case OK :
                 return "ok";
@@ -595,52 +871,130 @@ public class ClientCore extends RemoteObject implements ClientInterface {
     }
 
     /**
-     * invia al server un messaggio per una richiesta, facendo una gathering write sul
-     * socket channel su cui è stata stabilita la connessione. Scrive due buffer, il primo
-     * per indicare la dimensione del messaggio inviato, il secondo per il messaggio vero e proprio
+     * richiede al server le latenze misurate per ogni tipo di richiesta e le stampa
+     * utilizzando il metodo printLatencies() di ClientMenu
+     *
+     * @return stringa contenente il responso per l'operazione richiesta
+     * @throws IOException -
+     */
+    public String stats() throws IOException {
+
+        ResponseMessage.StatsResult receivedMsg = request(
+                new RequestMessage.Stats(user.getNickname()), ResponseMessage.StatsResult.class);
+        if (receivedMsg.getResponse() != Response.OK)
+            return "Errore: errore nella comunicazione con il server";
+        ClientMenu.printLatencies(receivedMsg.getLatencies());
+        return "ok";
+    }
+
+    /**
+     * apre la connessione con il server se non è già aperta e concorda il formato dei frame
+     *
+     * @throws IOException errore durante la connessione o l'handshake
+     */
+    private void connect() throws IOException {
+        boolean reconnect = socket.isClosed() || !socket.isConnected();
+        if (socket.isClosed())
+            socket = new Socket(InetAddress.getLocalHost(), serverPort);
+        if (!socket.isConnected())
+            socket.connect(new InetSocketAddress(InetAddress.getLocalHost(), serverPort));
+        if (reconnect) {
+            inStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outStream = socket.getOutputStream();
+            codec = new FrameCodec<>(ResponseMessage.class);
+            //concordo il formato dei frame prima di inviare il primo messaggio
+            //e chiedo che le risposte più grandi arrivino compresse
+            codec.requestFormat(wireFormat, true, inStream, outStream);
+        }
+    }
+
+    /**
+     * invia una richiesta e ne attende la risposta; se il server è saturo e risponde SERVER_BUSY
+     * la richiesta viene ripetuta dopo un'attesa crescente, al più MAX_RETRIES volte
+     *
+     * @param message richiesta da inviare
+     * @param type tipo di risposta prevista per la richiesta
+     * @return risposta del server (SERVER_BUSY se il server è rimasto saturo)
+     * @throws IOException errore nella comunicazione con il server
+     */
+    private <T extends ResponseMessage> T request(RequestMessage message, Class<T> type) throws IOException {
+        exchangeLock.lock();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                sendToServer(message);
+                T receivedMsg = receiveFromServer(type);
+                if (receivedMsg.getResponse() != Response.SERVER_BUSY || attempt == MAX_RETRIES)
+                    return receivedMsg;
+                backoff(attempt);
+            }
+        } finally {
+            exchangeLock.unlock();
+        }
+    }
+
+    /**
+     * eseguito periodicamente dal thread degli heartbeat: se l'utente è collegato e da
+     * HEARTBEAT_MS non è stata inviata nessuna richiesta invia un PING e ne attende la risposta.
+     * Se è in corso un'altra richiesta non fa nulla, la connessione è già attiva
+     */
+    private void heartbeat() {
+        if (!exchangeLock.tryLock())
+            return;
+        try {
+            User current = user;
+            if (current == null || !current.isOnline()
+                    || System.nanoTime() - lastSent < TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS))
+                return;
+            sendToServer(new RequestMessage.Ping(current.getNickname()));
+            receiveFromServer(ResponseMessage.class);
+        } catch (IOException e) {
+            //la connessione è caduta: se ne accorgerà la prossima richiesta dell'utente
+        } finally {
+            exchangeLock.unlock();
+        }
+    }
+
+    /**
+     * attende prima di ripetere una richiesta rifiutata: l'attesa massima raddoppia ad ogni
+     * tentativo fino a MAX_BACKOFF_MS e quella effettiva è scelta a caso fino al massimo,
+     * così i client rifiutati insieme non tornano tutti nello stesso istante
+     *
+     * @param attempt numero di tentativi già falliti
+     */
+    private static void backoff(int attempt) {
+        long max = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MS / 2, max + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * invia al server un messaggio per una richiesta. Il codec serializza in un unico buffer
+     * la dimensione del messaggio seguita dal messaggio vero e proprio, scritti con una sola write
      *
      * @param message messaggio da inviare
      * @throws IOException errore durante la scrittura sul canale
      */
-    private void sendToServer(Message message) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
-        mapper.setDateFormat(new SimpleDateFormat("dd-MMM-yy"));
-        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-        byte[] byteArray = mapper.writeValueAsString(message).getBytes();
-        DataOutputStream outStream = new DataOutputStream(
-                new BufferedOutputStream(socket.getOutputStream()));
-        outStream.writeInt(byteArray.length);
-        outStream.write(byteArray);
-        outStream.flush();
+    private void sendToServer(RequestMessage message) throws IOException {
+        lastSent = System.nanoTime();
+        codec.write(message, outStream);
     }
 
     /**
-     * riceve dal server un messaggio, facendo due read sul socket channel su
-     * cui è stata stabilita la connessione. Legge due buffer, il primo
-     * conterrà la dimensione del messaggio inviato, utile per allocare il secondo
-     * buffer della dimensione esatta per contenere il messaggio vero e proprio
+     * riceve dal server un messaggio: il codec legge prima la dimensione del messaggio
+     * e poi il messaggio vero e proprio, in un buffer riutilizzato per tutta la connessione
      *
+     * @param type tipo di risposta prevista per la richiesta inviata
      * @return responso in seguito ad una richiesta al server
-     * @throws IOException errore nella fase di lettura sul canale
-     */
-    private Message receiveFromServer() throws IOException {
-        DataInputStream inStream = new DataInputStream(
-                new BufferedInputStream(socket.getInputStream()));
-        //leggere dal socket la dimensione dell'oggetto
-        int dim = inStream.readInt(); //abbiamo letto 4 posizioni da 1 byte ciascuna
-        byte[] arrayDiByte = new byte[dim];
-        //leggere dal socket l'oggetto in .json
-        inStream.readFully(arrayDiByte); //adesso dovremmo avere tutto l'oggetto nell'array di byte
-        //INIZIA LA DESERIALIZZAZIONE
-        //ora ho l'oggetto dentro l'array di byte che possiamo deserializzare con Jackson
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
-        mapper.setDateFormat(new SimpleDateFormat("dd-MM-yy"));
-        Message message = mapper.reader()
-                .forType(new TypeReference<Message>() {})
-                .readValue(arrayDiByte);
-        return message;
+     * @throws IOException errore nella fase di lettura sul canale o risposta di tipo diverso
+     */
+    private <T extends ResponseMessage> T receiveFromServer(Class<T> type) throws IOException {
+        ResponseMessage message = codec.read(inStream);
+        if (!type.isInstance(message))
+            throw new IOException("Risposta inattesa dal server: " + message.getRequest());
+        return type.cast(message);
     }
 
     /**
@@ -20,7 +20,8 @@ public interface ClientInterface extends Remote {
     /**
      * Notifica il client in seguito ad un cambiamento di stato dei progetti.
      * Il server invoca il metodo sullo stub del client, ricevuto nel momento della registrazione alle
-     * callbacks, passando come parametro la lista aggiornata dei progetti
+     * callbacks, passando come parametro la lista aggiornata dei progetti (solo quelli di cui
+     * l'utente è membro se il client si è registrato indicando il nickname)
      *
      * @param createdProjects lista dei progetti creati nel servizio aggiornata
      * @throws RemoteException -
@@ -9,7 +9,16 @@ public class ClientMain {
 
     public static void main(String[] args) {
 
-        ClientCore core = new ClientCore(portTCP,portRegistry);
+        //formato dei frame da chiedere al server: --format=json|binary (default binary)
+        WireFormat format = WireFormat.BINARY;
+        for (String arg : args) {
+            if (arg.startsWith("--format="))
+                format = WireFormat.valueOf(arg.substring("--format=".length()).toUpperCase());
+            else
+                throw new IllegalArgumentException("Opzione sconosciuta: " + arg);
+        }
+
+        ClientCore core = new ClientCore(portTCP,portRegistry,format);
         core.begin();
 
     }
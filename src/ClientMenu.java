@@ -1,7 +1,11 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 
 /**
  * @author Giuseppe Muschetta 564026 corso A
@@ -191,14 +195,20 @@ public class ClientMenu {
                         else System.out.println("< Progetto creato ");
                         break;
                     case "add_member":
-                        if (words.length != 3) {
-                            System.out.println("< Il comando add_member deve avere due argomenti");
+                        if (words.length != 3 && words.length != 4) {
+                            System.out.println("< Il comando add_member deve avere due argomenti " +
+                                    "(più la versione attesa del progetto, opzionale)");
                             System.out.println("< Digita \"help\" per rivedere la lista dei comandi disponibili");
                             break;
                         }
                         projectName = words[1];
                         nickname = words[2];
-                        response = worth.addMember(projectName, nickname);
+                        try {
+                            response = worth.addMember(projectName, nickname, parseVersion(words, 3));
+                        } catch (NumberFormatException e) {
+                            System.out.println("< La versione deve essere un numero");
+                            break;
+                        }
                         if (!response.equals("ok"))
                             System.out.println("< " + response);
                         else System.out.println("< Membro aggiunto ");
@@ -226,12 +236,19 @@ public class ClientMenu {
                             System.out.println("< " + response);
                         break;
                     case "show_card":
-                        if (words.length != 3) {
-                            System.out.println("< Il comando show_card deve avere due argomenti");
+                        if (words.length < 3) {
+                            System.out.println("< Il comando show_card deve avere almeno due argomenti");
                             System.out.println("< Digita \"help\" per rivedere la lista dei comandi disponibili");
                             break;
                         }
                         projectName = words[1];
+                        if (words.length > 3) {
+                            //più card: le richieste vengono inviate in pipeline
+                            response = worth.showCards(projectName, Arrays.asList(words).subList(2, words.length));
+                            if (!response.equals("ok"))
+                                System.out.println("< " + response);
+                            break;
+                        }
                         cardName = words[2];
                         response = worth.showCard(projectName, cardName);
                         if (!response.equals("ok"))
@@ -256,9 +273,21 @@ public class ClientMenu {
                             System.out.println("< " + response);
                         else System.out.println("< Card aggiunta ");
                         break;
+                    case "import_cards":
+                        if (words.length != 3) {
+                            System.out.println("< Il comando import_cards deve avere due argomenti");
+                            System.out.println("< Digita \"help\" per rivedere la lista dei comandi disponibili");
+                            break;
+                        }
+                        projectName = words[1];
+                        response = worth.importCards(projectName, words[2]);
+                        if (!response.equals("ok"))
+                            System.out.println("< " + response);
+                        break;
                     case "move_card":
-                        if (words.length != 5) {
-                            System.out.println("< Il comando move_card deve avere quattro argomenti");
+                        if (words.length != 5 && words.length != 6) {
+                            System.out.println("< Il comando move_card deve avere quattro argomenti " +
+                                    "(più la versione attesa della card, opzionale)");
                             System.out.println("< Digita \"help\" per rivedere la lista dei comandi disponibili");
                             break;
                         }
@@ -266,7 +295,13 @@ public class ClientMenu {
                         cardName = words[2];
                         sourceList = words[3];
                         destList = words[4];
-                        response = worth.moveCard(projectName, cardName, sourceList, destList);
+                        try {
+                            response = worth.moveCard(projectName, cardName, sourceList, destList,
+                                    parseVersion(words, 5));
+                        } catch (NumberFormatException e) {
+                            System.out.println("< La versione deve essere un numero");
+                            break;
+                        }
                         if (!response.equals("ok"))
                             System.out.println("< " + response);
                         else System.out.println("< Card spostata ");
@@ -283,6 +318,28 @@ public class ClientMenu {
                         if (!response.equals("ok"))
                             System.out.println("< " + response);
                         break;
+                    case "board":
+                        if (words.length != 2) {
+                            System.out.println("< Il comando board deve avere un argomento");
+                            System.out.println("< Digita \"help\" per rivedere la lista dei comandi disponibili");
+                            break;
+                        }
+                        projectName = words[1];
+                        response = worth.boardSummary(projectName);
+                        if (!response.equals("ok"))
+                            System.out.println("< " + response);
+                        break;
+                    case "search_cards":
+                        if (words.length < 2) {
+                            System.out.println("< Il comando search_cards deve avere come argomenti "
+                                    + "le parole da cercare");
+                            System.out.println("< Digita \"help\" per rivedere la lista dei comandi disponibili");
+                            break;
+                        }
+                        response = worth.searchCards(String.join(" ", Arrays.copyOfRange(words, 1, words.length)));
+                        if (!response.equals("ok"))
+                            System.out.println("< " + response);
+                        break;
                     case "send":
                         if (words.length < 3) {
                             System.out.println("< Il comando send deve avere come argomenti il nome del progetto "
@@ -325,6 +382,16 @@ public class ClientMenu {
                             System.out.println("< " + response);
                         else System.out.println("< Progetto cancellato");
                         break;
+                    case "stats":
+                        if (words.length != 1) {
+                            System.out.println("< Il comando stats non richiede argomenti");
+                            System.out.println("< Digita \"help\" per rivedere la lista dei comandi disponibili");
+                            break;
+                        }
+                        response = worth.stats();
+                        if (!response.equals("ok"))
+                            System.out.println("< " + response);
+                        break;
                     case "exit":
                         if (words.length != 1) {
                             System.out.println("< Il comando exit non richiede argomenti");
@@ -346,7 +413,7 @@ public class ClientMenu {
      * stampa una lista di progetti formattata includendo un messaggio
      *
      * @param projects lista dei progetti da stampare
-     * @param message  messaggio da includere nella stampa
+     * @param message  messaggio da includere nella stampa (null per le pagine successive alla prima)
      */
     static void printFormattedProjects(ArrayList<Project> projects, String message) {
         int maxNameLength = 0;
@@ -355,7 +422,8 @@ public class ClientMenu {
                 maxNameLength = project.getName().length();
         }
 
-        System.out.println("< " + message + ":");
+        if (message != null)
+            System.out.println("< " + message + ":");
         for (Project project : projects) {
             int distance = maxNameLength - project.getName().length();
             StringBuilder indent = new StringBuilder(distance);
@@ -365,7 +433,8 @@ public class ClientMenu {
             System.out.println("    Project: " + project.getName() + indent + "     Members: " + project.getMembers().size() +
                     "     Cards: " + project.getCards().size() +
                     "     TODO: " + project.getToDo().size() + "     INPROGRESS: " + project.getInProgress().size() +
-                    "     TOBEREVISED: " + project.getToBeRevised().size() + "     DONE : " + project.getDone().size());
+                    "     TOBEREVISED: " + project.getToBeRevised().size() + "     DONE : " + project.getDone().size() +
+                    "     Version: " + project.getVersion());
         }
     }
 
@@ -373,7 +442,7 @@ public class ClientMenu {
      * stampa una lista di utenti formattata includendo un messaggio
      *
      * @param users   lista di utenti da stampare
-     * @param message messaggio da includere nella stampa
+     * @param message messaggio da includere nella stampa (null per le pagine successive alla prima)
      */
     static void printFormattedUsers(ArrayList<User> users, String message) {
 
@@ -383,7 +452,8 @@ public class ClientMenu {
                 maxNameLength = user.getNickname().length();
         }
 
-        System.out.println("< " + message + ":");
+        if (message != null)
+            System.out.println("< " + message + ":");
         for (User member : users) {
             int distance = maxNameLength - member.getNickname().length();
             StringBuilder indent = new StringBuilder(distance);
@@ -399,26 +469,40 @@ public class ClientMenu {
      * stampa una lista di cards di un progetto formattata includendo un messaggio
      *
      * @param cards   lista di cards da stampare
-     * @param message messaggio da includere nella stampa
+     * @param message messaggio da includere nella stampa (null per le pagine successive alla prima)
      */
-    static void printFormattedCards(ArrayList<Card> cards, String message) {
+    static void printFormattedCards(List<Card> cards, String message) {
         int maxNameLength = 0;
         for (Card card : cards) {
             if (card.getName().length() > maxNameLength)
                 maxNameLength = card.getName().length();
         }
 
-        System.out.println("< " + message + ":");
+        if (message != null)
+            System.out.println("< " + message + ":");
         for (Card card : cards) {
             int distance = maxNameLength - card.getName().length();
             StringBuilder indent = new StringBuilder(distance);
             for (int i = 0; i < distance; i++) {
                 indent.append(" ");
             }
-            System.out.println("    Card: " + card.getName() + " " + indent + "    Status: " + card.getPosition());
+            System.out.println("    Card: " + card.getName() + " " + indent + "    Status: " + card.getPosition() +
+                    "    Version: " + card.getVersion());
         }
     }
 
+    /**
+     * stampa l'esito di un'importazione di card
+     *
+     * @param imported numero di card aggiunte al progetto
+     * @param existing nomi delle card non aggiunte perchè già presenti
+     */
+    static void printImportResult(int imported, ArrayList<String> existing) {
+        System.out.println("< Card importate: " + imported);
+        if (!existing.isEmpty())
+            System.out.println("< Card già presenti nel progetto: " + String.join(", ", existing));
+    }
+
     /**
      * stampa il dettaglio di una card
      *
@@ -430,13 +514,93 @@ public class ClientMenu {
     }
 
     /**
-     * stampa lo storico di una card
+     * stampa il riepilogo della board di un progetto
+     *
+     * @param projectName nome progetto
+     * @param board riepilogo ricevuto dal server
+     */
+    static void printBoard(String projectName, ResponseMessage.BoardResult board) {
+        System.out.println("< Board del progetto " + projectName + " (versione " + board.getVersion() + "), " +
+                "card in lavorazione: " + board.getWorkInProgress());
+        for (ResponseMessage.ListSummary list : board.getLists()) {
+            String average = list.getCompletedStays() == 0 ? "-" : formatDuration(list.getAverageMillis());
+            System.out.println("    " + String.format("%-12s", list.getList()) + " Cards: " +
+                    String.format("%-6d", list.getCards()) + " Tempo medio: " + average +
+                    " (" + list.getCompletedStays() + " spostamenti)");
+        }
+    }
+
+    /**
+     * @param millis durata in millisecondi
+     * @return durata nel formato giorni, ore, minuti e secondi
+     */
+    private static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        if (seconds < 60)
+            return String.format("%.1fs", millis / 1000.0);
+        if (seconds < 3600)
+            return String.format("%dm %02ds", seconds / 60, seconds % 60);
+        if (seconds < 86400)
+            return String.format("%dh %02dm", seconds / 3600, seconds % 3600 / 60);
+        return String.format("%dd %02dh", seconds / 86400, seconds % 86400 / 3600);
+    }
+
+    /**
+     * stampa una pagina dei risultati di una ricerca
+     *
+     * @param hits card trovate, in ordine di punteggio
+     * @param message intestazione da stampare prima delle card (null per non stamparla)
+     */
+    static void printSearchResult(ArrayList<CardIndex.Hit> hits, String message) {
+        if (message != null)
+            System.out.println("< " + message + ":");
+        for (CardIndex.Hit hit : hits) {
+            Card card = hit.getCard();
+            System.out.println("    Project: " + hit.getProjectName() + "    Card: " + card.getName() +
+                    "    Status: " + card.getPosition() + "    Score: " + hit.getScore());
+        }
+    }
+
+    /**
+     * stampa una pagina dello storico di una card, un evento per riga
+     *
+     * @param events eventi da stampare
+     * @param message intestazione da stampare prima degli eventi (null per non stamparla)
+     */
+    static void printCardHistory(ArrayList<CardHistory.Event> events, String message) {
+        if (message != null)
+            System.out.println("< " + message);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (CardHistory.Event event : events) {
+            StringBuilder line = new StringBuilder("    ").append(String.format("%-12s", event.getList()));
+            if (event.getTime() != 0)
+                line.append(" ").append(format.format(new Date(event.getTime())));
+            if (event.getActor() != null)
+                line.append(" ").append(event.getActor());
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * legge l'argomento opzionale con la versione attesa di un comando
+     *
+     * @param words parole del comando
+     * @param index posizione dell'argomento
+     * @return versione indicata, null se l'argomento manca
+     * @throws NumberFormatException se l'argomento non è un numero
+     */
+    private static Long parseVersion(String[] words, int index) {
+        return words.length > index ? Long.valueOf(words[index]) : null;
+    }
+
+    /**
+     * stampa le latenze del server per tipo di richiesta
      *
-     * @param card card di cui stampare lo storico
+     * @param latencies percentili ricevuti dal server
      */
-    static void printCardHistory(Card card) {
-        System.out.println("< Sequenza spostamenti card:");
-        System.out.println("    " + card.getHistory());
+    static void printLatencies(ArrayList<LatencyStats.Entry> latencies) {
+        System.out.println("< Latenze del server:");
+        System.out.println(LatencyStats.format(latencies));
     }
 
     /**
@@ -481,26 +645,35 @@ public class ClientMenu {
         System.out.println("    Mostra la lista dei progetti dell'utente.");
         System.out.print("    create_project      <project_name>                             ");
         System.out.println("    Crea un nuovo progetto.");
-        System.out.print("    add_member          <project_name> <nickname>                  ");
-        System.out.println("    Aggiunge un membro al progetto.");
+        System.out.print("    add_member          <project_name> <nickname> [version]        ");
+        System.out.println("    Aggiunge un membro al progetto (se è alla versione indicata).");
         System.out.print("    show_members        <project_name>                             ");
         System.out.println("    Mostra la lista dei membri del progetto.");
         System.out.print("    show_cards          <project_name>                             ");
         System.out.println("    Mostra la lista delle card del progetto.");
-        System.out.print("    show_card           <project_name> <card_name>                 ");
-        System.out.println("    Mostra in dettaglio la card.");
+        System.out.print("    show_card           <project_name> <card_name>...              ");
+        System.out.println("    Mostra in dettaglio una o più card.");
         System.out.print("    add_card            <project_name> <card_name> <description>   ");
         System.out.println("    Aggiunge la card al progetto. ");
+        System.out.print("    import_cards        <project_name> <file>                      ");
+        System.out.println("    Aggiunge al progetto le card del file (una per riga: nome descrizione).");
         System.out.print("    move_card           <project_name> <card_name> <source> <dest> ");
-        System.out.println("    Sposta la card nella lista di destinazione del progetto.");
+        System.out.println("    Sposta la card nella lista di destinazione del progetto " +
+                "(con un quinto argomento opzionale, solo se la card è alla versione indicata).");
         System.out.print("    get_card_history    <project_name> <card_name>                 ");
         System.out.println("    Mostra la sequenza degli spostamenti della card.");
+        System.out.print("    board               <project_name>                             ");
+        System.out.println("    Mostra le card per lista e il tempo medio di permanenza in ogni lista.");
+        System.out.print("    search_cards        <words>                                    ");
+        System.out.println("    Cerca le parole nei nomi e nelle descrizioni delle card dei tuoi progetti.");
         System.out.print("    send                <project_name> <message>                   ");
         System.out.println("    Invia il messaggio nella chat del progetto.");
         System.out.print("    receive             <project_name>                             ");
         System.out.println("    Visualizza i messaggi della chat del progetto.");
         System.out.print("    cancel_project      <project_name>                             ");
         System.out.println("    Cancella il progetto.");
+        System.out.print("    stats                                                          ");
+        System.out.println("    Mostra le latenze del server per tipo di richiesta.");
         System.out.print("    logout              <nickname>                                 ");
         System.out.println("    Effettua il logout dell'utente.");
     }
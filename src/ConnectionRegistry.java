@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro delle connessioni aperte con l'istante dell'ultima richiesta ricevuta su ciascuna.
+ * Le connessioni senza richieste (nemmeno PING) per più di idleTimeout vengono chiuse: il
+ * trasporto si accorge della chiusura ed effettua il logout dell'utente (vedi
+ * RequestDispatcher.disconnected), così i client morti senza chiudere il socket non restano
+ * online e non occupano un thread per sempre.
+ * Le scadenze sono gestite con una timing wheel: ogni connessione sta nello slot del secondo
+ * in cui scadrebbe; ad ogni tick si esaminano solo le connessioni dello slot corrente e quelle
+ * che nel frattempo hanno ricevuto richieste vengono spostate nello slot della nuova scadenza.
+ * Registrare un'attività costa quindi solo la scrittura di un campo volatile
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class ConnectionRegistry {
+
+    /** durata di un tick della timing wheel */
+    private static final long TICK_MS = 1000;
+
+    /** tempo massimo senza richieste prima della chiusura (0 = mai) */
+    private final long idleTimeoutNanos;
+    /** connessioni aperte */
+    private final Set<Handle> open;
+    /** connessioni chiuse per inattività */
+    private final LongAdder reaped;
+
+    /** slot della timing wheel, ognuno con le connessioni che scadono in quel tick */
+    private final ArrayList<ArrayList<Handle>> wheel;
+    /** slot corrispondente al tick corrente (protetto dal lock sulla wheel) */
+    private int current;
+
+    /**
+     * @param idleTimeoutSeconds secondi senza richieste dopo i quali una connessione viene chiusa (0 = mai)
+     */
+    public ConnectionRegistry(int idleTimeoutSeconds) {
+        idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        open = ConcurrentHashMap.newKeySet();
+        reaped = new LongAdder();
+        wheel = new ArrayList<>();
+        if (idleTimeoutSeconds > 0) {
+            //uno slot per ogni tick del timeout più uno, così una scadenza non torna mai nello slot corrente
+            long slots = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds) / TICK_MS + 2;
+            for (int i = 0; i < slots; i++)
+                wheel.add(new ArrayList<>());
+            ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "idle-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reaper.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        }
+        ServerStats.SHARED.connectionRegistry(this);
+    }
+
+    /**
+     * registra una nuova connessione
+     *
+     * @param closer chiude la connessione quando è rimasta inattiva troppo a lungo
+     * @return riferimento con cui il trasporto segnala l'attività e la chiusura della connessione
+     */
+    public Handle register(Runnable closer) {
+        Handle handle = new Handle(closer);
+        open.add(handle);
+        if (!wheel.isEmpty()) {
+            synchronized (wheel) {
+                schedule(handle, idleTimeoutNanos);
+            }
+        }
+        return handle;
+    }
+
+    /**
+     * esaminato ogni TICK_MS dal thread del reaper: chiude le connessioni scadute dello slot
+     * corrente e sposta le altre nello slot della loro nuova scadenza
+     */
+    private void tick() {
+        ArrayList<Handle> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (wheel) {
+            current = (current + 1) % wheel.size();
+            ArrayList<Handle> slot = wheel.get(current);
+            wheel.set(current, new ArrayList<>());
+            for (Handle handle : slot) {
+                if (handle.closed.get())
+                    continue;
+                long remaining = handle.lastActivity + idleTimeoutNanos - now;
+                if (remaining <= 0)
+                    expired.add(handle);
+                else
+                    schedule(handle, remaining);
+            }
+        }
+        //la chiusura avviene fuori dal lock perché può scrivere sul socket o attendere il trasporto
+        for (Handle handle : expired) {
+            reaped.increment();
+            try {
+                handle.closer.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            handle.close();
+        }
+    }
+
+    /**
+     * inserisce la connessione nello slot del tick in cui scade (chiamato con il lock sulla wheel)
+     *
+     * @param handle connessione da inserire
+     * @param remainingNanos tempo mancante alla scadenza
+     */
+    private void schedule(Handle handle, long remainingNanos) {
+        long ticks = (TimeUnit.NANOSECONDS.toMillis(remainingNanos) + TICK_MS - 1) / TICK_MS;
+        int offset = (int) Math.max(1, Math.min(ticks, wheel.size() - 1));
+        wheel.get((current + offset) % wheel.size()).add(handle);
+    }
+
+    /**
+     * @return numero di connessioni aperte
+     */
+    public int openConnections() {
+        return open.size();
+    }
+
+    /**
+     * @return numero di connessioni senza richieste da più di metà del timeout di inattività
+     */
+    public int idleConnections() {
+        if (idleTimeoutNanos == 0)
+            return 0;
+        long limit = System.nanoTime() - idleTimeoutNanos / 2;
+        int idle = 0;
+        for (Handle handle : open) {
+            if (handle.lastActivity < limit)
+                idle++;
+        }
+        return idle;
+    }
+
+    /**
+     * @return numero di connessioni chiuse per inattività
+     */
+    public long reapedConnections() {
+        return reaped.sum();
+    }
+
+    /**
+     * azzera il contatore delle connessioni chiuse per inattività
+     */
+    public void reset() {
+        reaped.reset();
+    }
+
+    /**
+     * una connessione registrata
+     */
+    public class Handle {
+
+        /** chiude la connessione (usato dal reaper) */
+        private final Runnable closer;
+        /** istante (System.nanoTime) dell'ultima richiesta ricevuta */
+        private volatile long lastActivity;
+        private final AtomicBoolean closed;
+
+        private Handle(Runnable closer) {
+            this.closer = closer;
+            this.lastActivity = System.nanoTime();
+            this.closed = new AtomicBoolean();
+        }
+
+        /**
+         * segnala che sulla connessione è arrivata una richiesta
+         */
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        /**
+         * toglie la connessione dal registro; la wheel la scarta al suo prossimo tick
+         */
+        public void close() {
+            if (closed.compareAndSet(false, true))
+                open.remove(this);
+        }
+    }
+}
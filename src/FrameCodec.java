@@ -0,0 +1,521 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codifica e decodifica dei frame scambiati tra client e server: 4 byte con la lunghezza
+ * seguiti dal messaggio nel formato scelto per la connessione (vedi WireFormat).
+ * All'apertura della connessione il client può inviare l'handshake [MAGIC, formato] e il server
+ * risponde con un byte contenente il formato accettato; i client che non lo inviano iniziano
+ * direttamente con un frame (il cui primo byte non può essere MAGIC) e parlano json.
+ * Se il client lo chiede nell'handshake e il server ha una soglia di compressione, i frame con
+ * corpo più grande della soglia vengono compressi con Deflater: il bit più significativo della
+ * lunghezza lo segnala e il corpo contiene la dimensione originale seguita dai dati compressi.
+ * I frame ricevuti più grandi di maxFrameSize, prima o dopo la decompressione, vengono rifiutati
+ * senza allocare il buffer, così un peer non può far allocare memoria arbitraria al server.
+ * Ogni connessione ha la propria istanza con un buffer di lettura riutilizzato
+ * tra un frame e l'altro, mentre i frame in uscita vengono serializzati direttamente in
+ * ByteBuffer presi da BufferPool. In regime stazionario il codec non alloca buffer per i frame:
+ * per richiesta restano le allocazioni del formato, cioè il messaggio decodificato e gli oggetti
+ * temporanei della serializzazione (misurate da bench/FrameAllocationBench).
+ * Il parametro di tipo indica i messaggi ricevuti: RequestMessage lato server, ResponseMessage lato client
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class FrameCodec<I extends WireMessage> {
+
+    /**
+     * primo byte dell'handshake: come primo byte della lunghezza di un frame corrisponderebbe
+     * a un messaggio di oltre 1GB, quindi non può essere confuso con un client senza handshake
+     */
+    public static final int MAGIC = 0x57;
+    /** bit del byte di handshake che contengono l'id del formato (gli altri sono riservati) */
+    private static final int FORMAT_MASK = 0x0F;
+    /** bit del byte di handshake con cui il client indica che accetta frame compressi */
+    public static final int FEATURE_COMPRESSION = 0x10;
+    /** bit della lunghezza del frame che indica un corpo compresso */
+    private static final int COMPRESSED = 0x80000000;
+    /** risultato di handshake() quando non sono ancora arrivati abbastanza byte */
+    public static final int HANDSHAKE_INCOMPLETE = -2;
+    /** risultato di handshake() quando il client non ha inviato l'handshake */
+    public static final int HANDSHAKE_NONE = -1;
+    /** dimensione massima predefinita di un frame ricevuto (16MB) */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /** stream di serializzazione riutilizzato da ogni thread che codifica frame */
+    private static final ThreadLocal<FrameOutput> OUTPUT = ThreadLocal.withInitial(FrameOutput::new);
+
+    /** pool da cui vengono presi i buffer */
+    private final BufferPool pool;
+
+    /** tipo dei messaggi ricevuti */
+    private final Class<I> incoming;
+
+    /**
+     * buffer di lettura della connessione: contiene i byte ricevuti e non ancora decodificati
+     * (in modalità NIO può contenere più frame o frame parziali)
+     */
+    private ByteBuffer in;
+
+    /** formato del corpo dei frame, json finché l'handshake non ne sceglie un altro */
+    private volatile WireFormat format = WireFormat.JSON;
+
+    /** dimensione del corpo oltre la quale i frame inviati vengono compressi (0 = mai) */
+    private final int compressionThreshold;
+    /** dimensione massima del corpo di un frame ricevuto, compresso o decompresso */
+    private final int maxFrameSize;
+    /** true se il peer ha dichiarato nell'handshake di accettare frame compressi */
+    private volatile boolean compression;
+    /**
+     * compressore della connessione, creato al primo frame da comprimere; i frame di una
+     * connessione possono essere codificati da più thread, quindi viene usato in mutua esclusione
+     */
+    private Deflater deflater;
+    private final ReentrantLock deflateLock = new ReentrantLock();
+    /** true dopo close(): il compressore è stato rilasciato */
+    private boolean closed;
+    /** decompressore della connessione, usato solo dal thread che legge i frame */
+    private Inflater inflater;
+    /** durata della decodifica dell'ultimo frame letto (usata solo dal thread che legge i frame) */
+    private long decodeNanos;
+    /** durata della lettura del corpo dell'ultimo frame dallo stream bloccante (0 in modalità NIO) */
+    private long readNanos;
+    /** dimensione in byte del corpo dell'ultimo frame letto */
+    private int frameSize;
+
+    public FrameCodec(Class<I> incoming) {
+        this(incoming, 0);
+    }
+
+    public FrameCodec(Class<I> incoming, int compressionThreshold) {
+        this(incoming, BufferPool.SHARED, compressionThreshold);
+    }
+
+    public FrameCodec(Class<I> incoming, int compressionThreshold, int maxFrameSize) {
+        this(incoming, BufferPool.SHARED, compressionThreshold, maxFrameSize);
+    }
+
+    public FrameCodec(Class<I> incoming, BufferPool pool, int compressionThreshold) {
+        this(incoming, pool, compressionThreshold, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public FrameCodec(Class<I> incoming, BufferPool pool, int compressionThreshold, int maxFrameSize) {
+        this.incoming = incoming;
+        this.pool = pool;
+        this.compressionThreshold = compressionThreshold;
+        this.maxFrameSize = maxFrameSize;
+        this.in = pool.acquire(0);
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * lato client: invia l'handshake chiedendo il formato indicato e legge quello accettato dal server
+     *
+     * @param requested formato richiesto
+     * @param compressed true se il client accetta frame compressi
+     * @param inStream stream associato al socket
+     * @param outStream stream associato al socket
+     * @return formato accettato dal server, usato da qui in avanti
+     * @throws IOException errore di comunicazione o risposta non valida
+     */
+    public WireFormat requestFormat(WireFormat requested, boolean compressed, DataInputStream inStream,
+                                    OutputStream outStream) throws IOException {
+        int features = compressed ? FEATURE_COMPRESSION : 0;
+        outStream.write(new byte[]{(byte) MAGIC, (byte) (requested.ordinal() | features)});
+        outStream.flush();
+        WireFormat accepted = WireFormat.fromId(inStream.readUnsignedByte() & FORMAT_MASK);
+        if (accepted == null)
+            throw new IOException("Formato non valido nella risposta all'handshake");
+        format = accepted;
+        return accepted;
+    }
+
+    /**
+     * lato server con stream bloccanti: se il client ha inviato l'handshake sceglie il formato
+     * e risponde, altrimenti lascia lo stream intatto e resta in json.
+     * Lo stream deve supportare mark/reset (ServerThread usa un BufferedInputStream)
+     *
+     * @param inStream stream associato al socket
+     * @param outStream stream associato al socket
+     * @throws IOException errore di comunicazione (EOFException se il client ha chiuso la connessione)
+     */
+    public void acceptFormat(DataInputStream inStream, OutputStream outStream) throws IOException {
+        inStream.mark(1);
+        int first = inStream.read();
+        if (first < 0)
+            throw new EOFException();
+        if (first != MAGIC) {
+            inStream.reset();
+            return;
+        }
+        outStream.write(choose(inStream.readUnsignedByte()));
+        outStream.flush();
+    }
+
+    /**
+     * lato server NIO: esamina i primi byte del buffer di lettura; se contengono l'handshake
+     * lo consuma e sceglie il formato
+     *
+     * @return byte da inviare al client in risposta, HANDSHAKE_NONE se il client non ha inviato
+     * l'handshake oppure HANDSHAKE_INCOMPLETE se servono altri byte per decidere
+     */
+    public int handshake() {
+        int received = in.position();
+        if (received == 0)
+            return HANDSHAKE_INCOMPLETE;
+        if ((in.get(0) & 0xFF) != MAGIC)
+            return HANDSHAKE_NONE;
+        if (received < 2)
+            return HANDSHAKE_INCOMPLETE;
+        int reply = choose(in.get(1) & 0xFF);
+        in.flip();
+        in.position(2);
+        in.compact();
+        return reply;
+    }
+
+    /**
+     * sceglie il formato richiesto dal client se è conosciuto, altrimenti resta in json, e abilita
+     * la compressione se il client la accetta e la soglia è configurata
+     *
+     * @param requested byte di handshake inviato dal client
+     * @return byte di risposta con il formato scelto e le funzionalità abilitate
+     */
+    private int choose(int requested) {
+        WireFormat chosen = WireFormat.fromId(requested & FORMAT_MASK);
+        format = chosen != null ? chosen : WireFormat.JSON;
+        compression = (requested & FEATURE_COMPRESSION) != 0 && compressionThreshold > 0;
+        return format.ordinal() | (compression ? FEATURE_COMPRESSION : 0);
+    }
+
+    /**
+     * legge un frame completo da uno stream bloccante e lo decodifica
+     *
+     * @param inStream stream associato al socket
+     * @return messaggio ricevuto
+     * @throws IOException errore di lettura (EOFException se il peer ha chiuso la connessione)
+     */
+    public I read(DataInputStream inStream) throws IOException {
+        int header = inStream.readInt();
+        int dim = checkSize(header & ~COMPRESSED);
+        ensureCapacity(dim);
+        long readStart = System.nanoTime();
+        inStream.readFully(in.array(), 0, dim);
+        long start = System.nanoTime();
+        I message = decodeBody(in.array(), 0, dim, (header & COMPRESSED) != 0);
+        decodeNanos = System.nanoTime() - start;
+        readNanos = start - readStart;
+        frameSize = dim;
+        return message;
+    }
+
+    /**
+     * @return durata in nanosecondi della decodifica dell'ultimo frame letto, esclusa l'attesa dei byte
+     */
+    public long decodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * @return durata in nanosecondi della lettura del corpo dell'ultimo frame, dopo l'header
+     *         (0 in modalità NIO, dove i byte sono già nel buffer quando il frame viene decodificato)
+     */
+    public long readNanos() {
+        return readNanos;
+    }
+
+    /**
+     * @return dimensione in byte del corpo dell'ultimo frame letto
+     */
+    public int frameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return buffer in cui il trasporto NIO deve leggere i byte ricevuti dal canale
+     */
+    public ByteBuffer inputBuffer() {
+        return in;
+    }
+
+    /**
+     * decodifica il prossimo frame completo presente nel buffer di lettura (modalità NIO).
+     * Se il frame è incompleto il buffer viene compattato, e se necessario ingrandito,
+     * in modo che la prossima lettura dal canale possa completarlo
+     *
+     * @return messaggio decodificato oppure null se non c'è ancora un frame completo
+     * @throws IOException se il frame non è valido
+     */
+    public I decode() throws IOException {
+        in.flip();
+        if (in.remaining() >= Integer.BYTES) {
+            int header = in.getInt(in.position());
+            int dim = checkSize(header & ~COMPRESSED);
+            if (in.remaining() - Integer.BYTES >= dim) {
+                int start = in.position() + Integer.BYTES;
+                long startNanos = System.nanoTime();
+                I message = decodeBody(in.array(), start, dim, (header & COMPRESSED) != 0);
+                decodeNanos = System.nanoTime() - startNanos;
+                frameSize = dim;
+                in.position(start + dim);
+                in.compact();
+                return message;
+            }
+            in.compact();
+            ensureCapacity(Integer.BYTES + dim);
+            return null;
+        }
+        in.compact();
+        return null;
+    }
+
+    /**
+     * @param size dimensione del corpo di un frame ricevuto, dichiarata dal peer
+     * @return la stessa dimensione, se non supera maxFrameSize
+     * @throws IOException se la dimensione supera maxFrameSize
+     */
+    private int checkSize(int size) throws IOException {
+        if (size > maxFrameSize)
+            throw new IOException("Frame di " + size + " byte oltre il massimo di " + maxFrameSize);
+        return size;
+    }
+
+    /**
+     * decodifica il corpo di un frame, decomprimendolo prima se necessario
+     *
+     * @param buffer array che contiene il corpo
+     * @param offset posizione del primo byte del corpo
+     * @param dim lunghezza del corpo
+     * @param compressed true se la lunghezza del frame aveva il bit COMPRESSED
+     * @return messaggio decodificato
+     * @throws IOException se il corpo non è valido
+     */
+    private I decodeBody(byte[] buffer, int offset, int dim, boolean compressed) throws IOException {
+        if (!compressed)
+            return format.decode(buffer, offset, dim, incoming);
+        if (dim < Integer.BYTES)
+            throw new IOException("Frame compresso non valido");
+        int size = (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+        if (size < 0)
+            throw new IOException("Dimensione del frame compresso non valida: " + size);
+        checkSize(size);
+        if (inflater == null)
+            inflater = new Inflater();
+        ByteBuffer inflated = pool.acquire(size);
+        try {
+            inflater.setInput(buffer, offset + Integer.BYTES, dim - Integer.BYTES);
+            int n = 0;
+            while (n < size && !inflater.finished()) {
+                int read = inflater.inflate(inflated.array(), n, size - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += read;
+            }
+            if (n != size || !inflater.finished())
+                throw new IOException("Frame compresso troncato");
+            return format.decode(inflated.array(), 0, size, incoming);
+        } catch (DataFormatException e) {
+            throw new IOException("Frame compresso non valido", e);
+        } finally {
+            inflater.reset();
+            pool.release(inflated);
+        }
+    }
+
+    /**
+     * serializza il messaggio in un frame (lunghezza + corpo) contenuto in un buffer del pool,
+     * compresso se supera la soglia e il peer lo accetta.
+     * Il chiamante diventa proprietario del buffer e deve restituirlo con release dopo averlo scritto
+     *
+     * @param message messaggio da codificare
+     * @return buffer pronto per essere scritto sul canale
+     * @throws IOException errore di serializzazione
+     */
+    public ByteBuffer encode(WireMessage message) throws IOException {
+        FrameOutput output = OUTPUT.get();
+        output.begin(pool);
+        try {
+            format.encode(message, output);
+        } catch (IOException | RuntimeException e) {
+            output.abort();
+            throw e;
+        }
+        ByteBuffer frame = output.finish();
+        if (compression && frame.limit() - Integer.BYTES >= compressionThreshold)
+            return compress(frame);
+        return frame;
+    }
+
+    /**
+     * comprime il corpo di un frame in un nuovo buffer del pool. Se il risultato non è più piccolo
+     * dell'originale viene restituito il frame non compresso
+     *
+     * @param frame frame non compresso, restituito al pool se la compressione riesce
+     * @return frame da inviare
+     */
+    private ByteBuffer compress(ByteBuffer frame) {
+        int size = frame.limit() - Integer.BYTES;
+        //dopo la lunghezza del frame e la dimensione originale devono restare meno byte del corpo
+        int maxOut = size - Integer.BYTES - 1;
+        long start = ServerStats.cpuTime();
+        ByteBuffer compressed = pool.acquire(frame.limit());
+        int n = 0;
+        boolean done = false;
+        deflateLock.lock();
+        try {
+            if (!closed) {
+                if (deflater == null)
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                deflater.setInput(frame.array(), Integer.BYTES, size);
+                deflater.finish();
+                while (!deflater.finished() && n < maxOut)
+                    n += deflater.deflate(compressed.array(), 2 * Integer.BYTES + n, maxOut - n);
+                done = deflater.finished();
+                deflater.reset();
+            }
+        } finally {
+            deflateLock.unlock();
+        }
+        if (!done) {
+            pool.release(compressed);
+            ServerStats.SHARED.incompressible(start);
+            return frame;
+        }
+        compressed.putInt(0, COMPRESSED | (Integer.BYTES + n));
+        compressed.putInt(Integer.BYTES, size);
+        compressed.position(0).limit(2 * Integer.BYTES + n);
+        pool.release(frame);
+        ServerStats.SHARED.compressed(size, n, start);
+        return compressed;
+    }
+
+    /**
+     * serializza il messaggio e lo scrive sullo stream con una sola write
+     *
+     * @param message messaggio da inviare
+     * @param outStream stream associato al socket
+     * @throws IOException errore di scrittura
+     */
+    public void write(WireMessage message, OutputStream outStream) throws IOException {
+        ByteBuffer frame = encode(message);
+        try {
+            outStream.write(frame.array(), 0, frame.limit());
+            outStream.flush();
+        } finally {
+            release(frame);
+        }
+    }
+
+    /**
+     * restituisce al pool un buffer ottenuto con encode
+     *
+     * @param frame buffer già scritto
+     */
+    public void release(ByteBuffer frame) {
+        pool.release(frame);
+    }
+
+    /**
+     * restituisce al pool il buffer di lettura; da chiamare quando la connessione viene chiusa
+     */
+    public void close() {
+        //la connessione può essere chiusa due volte (errore di lettura e reaper delle connessioni inattive)
+        if (in == null)
+            return;
+        pool.release(in);
+        in = null;
+        if (inflater != null)
+            inflater.end();
+        deflateLock.lock();
+        try {
+            closed = true;
+            if (deflater != null)
+                deflater.end();
+        } finally {
+            deflateLock.unlock();
+        }
+    }
+
+    /**
+     * ingrandisce il buffer di lettura (mantenendo i byte già ricevuti) se non può contenere
+     * la quantità di byte indicata
+     *
+     * @param capacity capacità necessaria
+     */
+    private void ensureCapacity(int capacity) {
+        if (in.capacity() >= capacity)
+            return;
+        ByteBuffer bigger = pool.acquire(capacity);
+        in.flip();
+        bigger.put(in);
+        pool.release(in);
+        in = bigger;
+    }
+
+    /**
+     * OutputStream che scrive direttamente in un ByteBuffer del pool, lasciando all'inizio
+     * lo spazio per la lunghezza del frame. Quando il buffer è pieno ne prende uno più grande
+     */
+    private static class FrameOutput extends OutputStream {
+
+        private BufferPool pool;
+        private ByteBuffer buffer;
+
+        void begin(BufferPool pool) {
+            this.pool = pool;
+            buffer = pool.acquire(0);
+            buffer.position(Integer.BYTES);
+        }
+
+        ByteBuffer finish() {
+            ByteBuffer frame = buffer;
+            buffer = null;
+            frame.putInt(0, frame.position() - Integer.BYTES);
+            frame.flip();
+            return frame;
+        }
+
+        /** restituisce al pool il buffer di un frame la cui serializzazione è fallita */
+        void abort() {
+            pool.release(buffer);
+            buffer = null;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buffer.put(b, off, len);
+        }
+
+        private void ensureRemaining(int len) {
+            if (buffer.remaining() >= len)
+                return;
+            ByteBuffer bigger = pool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + len));
+            buffer.flip();
+            bigger.put(buffer);
+            pool.release(buffer);
+            buffer = bigger;
+        }
+
+        /** Jackson chiude lo stream al termine della serializzazione: non c'è nulla da rilasciare */
+        @Override
+        public void close() {
+        }
+    }
+}
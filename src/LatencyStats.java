@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+
+/**
+ * Latenze delle richieste del server, con un LatencyHistogram per ogni tipo di richiesta e
+ * ogni fase della sua gestione (vedi Phase).
+ * Lettura, decodifica, codifica e tempo totale sono misurati dai trasporti; attesa dei lock sui
+ * progetti, salvataggio su file, invio multicast e callback RMI sono misurati dentro WorthCore e
+ * ServerCore e accumulati nel thread che sta eseguendo la richiesta, il resto del tempo passato
+ * nel dispatcher è logica applicativa.
+ * Se il log delle richieste lente è attivo le durate vengono conservate anche nella singola
+ * richiesta, così SlowRequestLog può riportarle quando il totale supera la soglia
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class LatencyStats {
+
+    /** istogrammi condivisi da tutto il server */
+    public static final LatencyStats SHARED = new LatencyStats();
+
+    /** percentili riportati da STATS e dal dump periodico */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    /** fasi della gestione di una richiesta */
+    public enum Phase {
+        /** decodifica del frame ricevuto */
+        DECODE,
+        /** attesa dei lock sui progetti (insieme dei progetti e singolo progetto) */
+        LOCK_WAIT,
+        /** esecuzione dell'operazione, esclusi lock, salvataggi e multicast */
+        LOGIC,
+        /** salvataggio dei progetti su file (ServerCore.saveProject) */
+        SAVE,
+        /** invio dei messaggi nelle chat multicast */
+        MULTICAST,
+        /** codifica della risposta */
+        ENCODE,
+        /** dalla ricezione del frame alla risposta pronta, compresa l'attesa dei worker */
+        TOTAL,
+        /** lettura del corpo del frame dal socket (solo trasporti bloccanti) */
+        READ,
+        /** callback RMI ai client registrati */
+        CALLBACK
+    }
+
+    /** ordine in cui le fasi vengono riportate (i nuovi valori di Phase sono in fondo per la codifica binaria) */
+    static final Phase[] PHASE_ORDER = {Phase.READ, Phase.DECODE, Phase.LOCK_WAIT, Phase.LOGIC, Phase.SAVE,
+            Phase.MULTICAST, Phase.CALLBACK, Phase.ENCODE, Phase.TOTAL};
+
+    /** fasi misurate dentro WorthCore e ServerCore, accumulate per il thread che esegue la richiesta */
+    private static final Phase[] INNER_PHASES = {Phase.LOCK_WAIT, Phase.SAVE, Phase.MULTICAST, Phase.CALLBACK};
+    private static final ThreadLocal<long[]> INNER = ThreadLocal.withInitial(() -> new long[Phase.values().length]);
+
+    /** istogrammi indicizzati per ordinale di richiesta e di fase */
+    private final LatencyHistogram[][] histograms;
+
+    private LatencyStats() {
+        histograms = new LatencyHistogram[Request.values().length][Phase.values().length];
+        for (LatencyHistogram[] phases : histograms) {
+            for (int i = 0; i < phases.length; i++)
+                phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * registra la durata di una fase
+     *
+     * @param request tipo di richiesta
+     * @param phase fase misurata
+     * @param nanos durata in nanosecondi
+     */
+    public void record(Request request, Phase phase, long nanos) {
+        histograms[request.ordinal()][phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * registra lettura e decodifica di una richiesta appena ricevuta dal trasporto
+     *
+     * @param reqMsg richiesta decodificata
+     * @param codec codec che l'ha letta (vedi FrameCodec.readNanos e FrameCodec.decodeNanos)
+     */
+    public void decoded(RequestMessage reqMsg, FrameCodec<?> codec) {
+        long readNanos = codec.readNanos();
+        long decodeNanos = codec.decodeNanos();
+        reqMsg.receivedAt(System.nanoTime() - decodeNanos - readNanos);
+        if (readNanos > 0)
+            record(reqMsg.getRequest(), Phase.READ, readNanos);
+        record(reqMsg.getRequest(), Phase.DECODE, decodeNanos);
+        if (SlowRequestLog.SHARED.enabled()) {
+            long[] phases = new long[Phase.values().length];
+            phases[Phase.READ.ordinal()] = readNanos;
+            phases[Phase.DECODE.ordinal()] = decodeNanos;
+            reqMsg.phaseNanos(phases);
+            reqMsg.frameSize(codec.frameSize());
+        }
+    }
+
+    /**
+     * registra la codifica della risposta e il tempo totale della richiesta
+     *
+     * @param reqMsg richiesta a cui si è risposto
+     * @param encodeStart System.nanoTime() all'inizio della codifica della risposta
+     */
+    public void encoded(RequestMessage reqMsg, long encodeStart) {
+        long now = System.nanoTime();
+        long total = now - reqMsg.receivedAt();
+        record(reqMsg.getRequest(), Phase.ENCODE, now - encodeStart);
+        record(reqMsg.getRequest(), Phase.TOTAL, total);
+        long[] phases = reqMsg.phaseNanos();
+        if (phases != null) {
+            phases[Phase.ENCODE.ordinal()] = now - encodeStart;
+            phases[Phase.TOTAL.ordinal()] = total;
+            SlowRequestLog.SHARED.check(reqMsg);
+        }
+    }
+
+    /**
+     * aggiunge tempo ad una fase interna (attesa lock, salvataggio, multicast, callback) della
+     * richiesta eseguita dal thread corrente; usato da WorthCore e ServerCore
+     *
+     * @param phase fase interna
+     * @param nanos durata in nanosecondi
+     */
+    public static void add(Phase phase, long nanos) {
+        INNER.get()[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * inizia la misura dell'esecuzione di una richiesta sul thread corrente
+     *
+     * @return istante da passare a dispatched
+     */
+    public static long start() {
+        long[] inner = INNER.get();
+        for (Phase phase : INNER_PHASES)
+            inner[phase.ordinal()] = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * conclude la misura dell'esecuzione di una richiesta da parte del dispatcher: registra le
+     * fasi interne accumulate durante l'esecuzione e attribuisce il resto del tempo alla logica
+     *
+     * @param reqMsg richiesta eseguita
+     * @param start valore restituito da start()
+     */
+    public void dispatched(RequestMessage reqMsg, long start) {
+        long elapsed = System.nanoTime() - start;
+        Request request = reqMsg.getRequest();
+        long[] inner = INNER.get();
+        long[] phases = reqMsg.phaseNanos();
+        long outside = 0;
+        for (Phase phase : INNER_PHASES) {
+            long nanos = inner[phase.ordinal()];
+            if (nanos > 0)
+                record(request, phase, nanos);
+            if (phases != null)
+                phases[phase.ordinal()] = nanos;
+            outside += nanos;
+        }
+        record(request, Phase.LOGIC, elapsed - outside);
+        if (phases != null)
+            phases[Phase.LOGIC.ordinal()] = elapsed - outside;
+    }
+
+    /**
+     * azzera tutti gli istogrammi
+     */
+    public void reset() {
+        for (LatencyHistogram[] phases : histograms) {
+            for (LatencyHistogram histogram : phases)
+                histogram.reset();
+        }
+    }
+
+    /**
+     * @return percentili di ogni fase di ogni tipo di richiesta con almeno una misura
+     */
+    public ArrayList<Entry> snapshot() {
+        ArrayList<Entry> entries = new ArrayList<>();
+        for (Request request : Request.values()) {
+            for (Phase phase : PHASE_ORDER) {
+                long[] values = histograms[request.ordinal()][phase.ordinal()].snapshot(QUANTILES);
+                if (values[0] > 0)
+                    entries.add(new Entry(request, phase, values));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @param entries percentili ottenuti con snapshot (anche da un server remoto con STATS)
+     * @return tabella leggibile, con le durate in millisecondi
+     */
+    public static String format(ArrayList<Entry> entries) {
+        if (entries == null || entries.isEmpty())
+            return "nessuna richiesta misurata";
+        StringBuilder table = new StringBuilder(String.format("%-18s %-10s %9s %9s %9s %9s %9s",
+                "richiesta", "fase", "n", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (Entry entry : entries) {
+            table.append(String.format("%n%-18s %-10s %9d %9.3f %9.3f %9.3f %9.3f",
+                    entry.getRequest(), entry.getPhase(), entry.getCount(), entry.getP50() / 1e6,
+                    entry.getP90() / 1e6, entry.getP99() / 1e6, entry.getMax() / 1e6));
+        }
+        return table.toString();
+    }
+
+    /**
+     * percentili di una fase di un tipo di richiesta, in nanosecondi
+     */
+    public static class Entry {
+
+        private Request request;
+        private Phase phase;
+        private long count;
+        private long p50;
+        private long p90;
+        private long p99;
+        private long max;
+
+        public Entry() {}
+
+        Entry(Request request, Phase phase, long[] values) {
+            this(request, phase, values[0], values[1], values[2], values[3], values[4]);
+        }
+
+        public Entry(Request request, Phase phase, long count, long p50, long p90, long p99, long max) {
+            this.request = request;
+            this.phase = phase;
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public Request getRequest() {
+            return request;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
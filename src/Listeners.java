@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Apre i socket di ascolto per i thread che accettano le connessioni.
+ * Con più acceptor, se il sistema supporta SO_REUSEPORT ogni acceptor ha un proprio socket
+ * legato alla stessa porta e il kernel distribuisce tra loro le nuove connessioni, ognuno con
+ * la propria coda di backlog; altrimenti tutti gli acceptor condividono un solo socket.
+ * In entrambi i casi viene restituito un elemento per ogni acceptor
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class Listeners {
+
+    private Listeners() {}
+
+    /**
+     * socket di ascolto bloccanti (trasporti THREADS e VIRTUAL)
+     *
+     * @param port porta su cui accettare le connessioni
+     * @param acceptors numero di thread che accettano le connessioni
+     * @param backlog lunghezza della coda delle connessioni in attesa di essere accettate
+     * @return un socket per ogni acceptor (lo stesso ripetuto se SO_REUSEPORT non è disponibile)
+     * @throws IOException errore nell'apertura dei socket
+     */
+    public static ServerSocket[] serverSockets(int port, int acceptors, int backlog) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[acceptors];
+        boolean reusePort = acceptors > 1 && reusePort(new ServerSocket());
+        for (int i = 0; i < acceptors; i++) {
+            if (i > 0 && !reusePort) {
+                sockets[i] = sockets[0];
+                continue;
+            }
+            ServerSocket socket = new ServerSocket();
+            if (reusePort)
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            socket.bind(new InetSocketAddress(port), backlog);
+            sockets[i] = socket;
+        }
+        report(acceptors, reusePort);
+        return sockets;
+    }
+
+    /**
+     * canali di ascolto per gli event loop del trasporto NIO
+     *
+     * @param port porta su cui accettare le connessioni
+     * @param acceptors numero di event loop che accettano le connessioni
+     * @param backlog lunghezza della coda delle connessioni in attesa di essere accettate
+     * @return un canale per ogni event loop (lo stesso ripetuto se SO_REUSEPORT non è disponibile)
+     * @throws IOException errore nell'apertura dei canali
+     */
+    public static ServerSocketChannel[] channels(int port, int acceptors, int backlog) throws IOException {
+        ServerSocketChannel[] channels = new ServerSocketChannel[acceptors];
+        boolean reusePort = false;
+        if (acceptors > 1) {
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+        }
+        for (int i = 0; i < acceptors; i++) {
+            if (i > 0 && !reusePort) {
+                channels[i] = channels[0];
+                continue;
+            }
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            if (reusePort)
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(port), backlog);
+            channels[i] = channel;
+        }
+        report(acceptors, reusePort);
+        return channels;
+    }
+
+    /**
+     * @param probe socket non ancora legato, usato solo per verificare le opzioni supportate
+     * @return true se il sistema supporta SO_REUSEPORT
+     * @throws IOException -
+     */
+    private static boolean reusePort(ServerSocket probe) throws IOException {
+        try (ServerSocket socket = probe) {
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private static void report(int acceptors, boolean reusePort) {
+        if (acceptors > 1)
+            System.out.println("Server: " + acceptors + " acceptor" +
+                    (reusePort ? " con SO_REUSEPORT" : " su un socket condiviso"));
+    }
+}
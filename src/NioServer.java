@@ -0,0 +1,429 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Modalità di trasporto non bloccante: un thread esegue l'event loop sul Selector,
+ * accetta le connessioni e decodifica in modo incrementale i frame (4 byte di lunghezza
+ * seguiti dal messaggio nel formato concordato con l'handshake, vedi FrameCodec).
+ * I messaggi completi vengono passati ad un piccolo pool di worker che invoca il servizio;
+ * i client inattivi non occupano nessun thread.
+ * Con più acceptor il server avvia più istanze, ognuna con il proprio selector e le proprie
+ * connessioni, che condividono il pool di worker.
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class NioServer implements Runnable {
+
+    /** canale di ascolto, proprio o condiviso con gli altri event loop (vedi Listeners) */
+    private final ServerSocketChannel serverChannel;
+    /** smista le richieste verso le funzionalità del servizio */
+    private final RequestDispatcher dispatcher;
+    /** pool di worker che eseguono le richieste decodificate */
+    private final ExecutorService workers;
+    /** dimensione oltre la quale le risposte vengono compresse (0 = mai) */
+    private final int compressionThreshold;
+    /** dimensione massima di un frame ricevuto */
+    private final int maxFrameSize;
+    /** registro in cui le connessioni segnalano l'ultima attività */
+    private final ConnectionRegistry registry;
+
+    /** numero massimo di connessioni accettate ad ogni risveglio del selector */
+    private static final int MAX_ACCEPTS = 64;
+    /**
+     * numero massimo di richieste in coda, in esecuzione e di risposte da scrivere per una connessione
+     * (come ServerThread.MAX_PIPELINED): raggiunto il limite il selector smette di leggere dal client
+     */
+    private static final int MAX_BACKLOG = 64;
+
+    /** selector dell'event loop */
+    private Selector selector;
+    /** connessioni con risposte pronte da inviare o richieste terminate, registrate dai worker per l'event loop */
+    private final ConcurrentLinkedQueue<Connection> pendingWrites;
+    /** connessioni inattive da chiudere, segnalate dal ConnectionRegistry per l'event loop */
+    private final ConcurrentLinkedQueue<Connection> pendingCloses;
+
+    public NioServer(ServerSocketChannel serverChannel, RequestDispatcher dispatcher, ExecutorService workers,
+                     ConnectionRegistry registry, int compressionThreshold, int maxFrameSize) {
+        this.serverChannel = serverChannel;
+        this.dispatcher = dispatcher;
+        this.workers = workers;
+        this.registry = registry;
+        this.compressionThreshold = compressionThreshold;
+        this.maxFrameSize = maxFrameSize;
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.pendingCloses = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * event loop: accetta le connessioni, legge i frame in arrivo e scrive le risposte
+     * preparate dai worker
+     */
+    @Override
+    public void run() {
+        try {
+            selector = Selector.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            while (true) {
+                selector.select();
+                //le risposte preparate dai worker (e le letture sospese che possono ripartire)
+                //vanno abilitate dal thread del selector
+                Connection ready;
+                while ((ready = pendingWrites.poll()) != null) {
+                    try {
+                        ready.updateInterest();
+                    } catch (IOException e) {
+                        //frame non valido tra quelli ricevuti mentre la lettura era sospesa
+                        ready.close();
+                    }
+                }
+                //anche le chiusure per inattività avvengono sul thread del selector
+                while ((ready = pendingCloses.poll()) != null)
+                    ready.close();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable())
+                                connection.read();
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                        }
+                    } catch (IOException e) {
+                        //il client si è disconnesso oppure la connessione è caduta
+                        if (key.attachment() != null)
+                            ((Connection) key.attachment()).close();
+                    } catch (RuntimeException | Error e) {
+                        //errore imprevisto su una connessione: si chiude solo quella, l'event loop
+                        //deve continuare a servire le altre
+                        e.printStackTrace();
+                        if (key.attachment() != null)
+                            ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * accetta le connessioni in attesa (al più MAX_ACCEPTS per volta, per non trascurare
+     * le connessioni già aperte) e le registra sul selector in lettura.
+     * Se il canale è condiviso un altro event loop può averle già accettate
+     *
+     * @throws IOException -
+     */
+    private void accept() throws IOException {
+        for (int i = 0; i < MAX_ACCEPTS; i++) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null)
+                return;
+            ServerStats.SHARED.accepted();
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    /**
+     * stato di una connessione client: buffer per il frame in lettura, messaggi in attesa di
+     * essere eseguiti e risposte in attesa di essere scritte.
+     * Le richieste senza id di uno stesso client vengono eseguite una alla volta e nell'ordine
+     * di arrivo, quelle con id in parallelo (vedi RequestDispatcher.isPipelined).
+     * Quando richieste e risposte pendenti raggiungono MAX_BACKLOG la connessione smette di essere
+     * letta, così un client che invia troppo o non legge le risposte non occupa memoria senza limite
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+
+        /** codifica/decodifica dei frame, con il buffer di lettura della connessione */
+        private final FrameCodec<RequestMessage> codec =
+                new FrameCodec<>(RequestMessage.class, compressionThreshold, maxFrameSize);
+
+        /** richieste decodificate in attesa di essere passate ai worker */
+        private final ArrayDeque<RequestMessage> requests = new ArrayDeque<>();
+        /** frame di risposta in attesa di essere scritti sul canale */
+        private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+        /** numero di richieste di questa connessione in esecuzione sui worker */
+        private int running;
+        /** true se è in esecuzione una richiesta che va eseguita da sola (senza id, login, logout) */
+        private boolean barrier;
+        /** true se la connessione va chiusa dopo aver scritto le risposte (logout) */
+        private boolean closing;
+        /** nome utente che ha effettuato il login su questa connessione (null se nessuno) */
+        private volatile String clientUser;
+        /** true quando è stato deciso il formato dei frame (handshake ricevuto o assente) */
+        private boolean negotiated;
+        /** riferimento nel registro delle connessioni, per segnalare l'attività */
+        private final ConnectionRegistry.Handle handle;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.handle = registry.register(() -> {
+                pendingCloses.add(this);
+                selector.wakeup();
+            });
+        }
+
+        /**
+         * legge i byte disponibili sul canale e decodifica tutti i frame completi
+         *
+         * @throws IOException se il client ha chiuso la connessione
+         */
+        void read() throws IOException {
+            int read;
+            do {
+                read = channel.read(codec.inputBuffer());
+                if (!negotiated && !negotiate())
+                    continue;
+                if (!decode())
+                    break;
+            } while (read > 0);
+            if (read < 0)
+                throw new IOException("Connessione chiusa dal client");
+            updateInterest();
+        }
+
+        /**
+         * decodifica i frame completi presenti nel buffer di lettura finché c'è posto nel backlog;
+         * gli altri restano nel buffer e vengono decodificati quando la lettura riparte
+         *
+         * @return false se il backlog è pieno
+         * @throws IOException se un frame non è valido
+         */
+        private boolean decode() throws IOException {
+            RequestMessage message;
+            while (!backlogFull() && (message = codec.decode()) != null) {
+                LatencyStats.SHARED.decoded(message, codec);
+                submit(message);
+            }
+            return !backlogFull();
+        }
+
+        /**
+         * @return true se richieste in coda, in esecuzione e risposte da scrivere hanno raggiunto MAX_BACKLOG
+         */
+        private synchronized boolean backlogFull() {
+            return requests.size() + running + responses.size() >= MAX_BACKLOG;
+        }
+
+        /**
+         * aggiorna gli eventi di interesse (solo dal thread del selector): lettura se c'è posto nel
+         * backlog, scrittura se ci sono risposte. Se la lettura era sospesa decodifica prima i frame
+         * già ricevuti, per i quali il selector non segnalerebbe altri eventi
+         *
+         * @throws IOException se un frame già ricevuto non è valido
+         */
+        void updateInterest() throws IOException {
+            if (!key.isValid())
+                return;
+            if (negotiated && (key.interestOps() & SelectionKey.OP_READ) == 0 && !backlogFull())
+                decode();
+            int ops = backlogFull() ? 0 : SelectionKey.OP_READ;
+            synchronized (this) {
+                if (!responses.isEmpty())
+                    ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * esamina i primi byte ricevuti: se contengono l'handshake accoda la risposta, che viene
+         * così scritta prima di qualsiasi altra
+         *
+         * @return true se il formato è stato deciso e si possono decodificare i frame
+         */
+        private boolean negotiate() {
+            int reply = codec.handshake();
+            if (reply == FrameCodec.HANDSHAKE_INCOMPLETE)
+                return false;
+            negotiated = true;
+            if (reply != FrameCodec.HANDSHAKE_NONE) {
+                synchronized (this) {
+                    responses.add(ByteBuffer.wrap(new byte[]{(byte) reply}));
+                }
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            return true;
+        }
+
+        /**
+         * accoda una richiesta decodificata e passa ai worker tutte quelle eseguibili
+         */
+        private void submit(RequestMessage message) {
+            handle.touch();
+            synchronized (this) {
+                requests.add(message);
+            }
+            schedule();
+        }
+
+        /**
+         * passa ai worker le richieste in testa alla coda che possono partire: le richieste con id
+         * partono subito in parallelo, quelle senza id (o login/logout) aspettano che non ci sia
+         * nient'altro in esecuzione e bloccano le successive finché non sono completate.
+         * Se i worker sono saturi la richiesta riceve subito SERVER_BUSY e si passa alla successiva
+         */
+        private void schedule() {
+            while (true) {
+                RequestMessage reqMsg;
+                synchronized (this) {
+                    if (closing || barrier || requests.isEmpty())
+                        return;
+                    if (!RequestDispatcher.isPipelined(requests.peek())) {
+                        if (running > 0)
+                            return;
+                        barrier = true;
+                    }
+                    reqMsg = requests.poll();
+                    running++;
+                }
+                try {
+                    workers.execute(() -> execute(reqMsg));
+                } catch (RejectedExecutionException e) {
+                    ResponseMessage busy = ResponseMessage.of(reqMsg.getRequest());
+                    busy.setResponse(Response.SERVER_BUSY);
+                    ServerStats.SHARED.busy();
+                    complete(reqMsg, busy);
+                }
+            }
+        }
+
+        /**
+         * eseguito dai worker: risolve la richiesta e fa partire le richieste successive
+         */
+        private void execute(RequestMessage reqMsg) {
+            ResponseMessage ansMsg;
+            try {
+                ansMsg = dispatcher.dispatch(reqMsg);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                ansMsg = RequestDispatcher.failed(reqMsg);
+            }
+            //login e logout sono eseguiti da soli (vedi isPipelined), quindi non si sovrappongono
+            //ad altre richieste della connessione che leggono o cambiano clientUser
+            if (!RequestDispatcher.isPipelined(reqMsg))
+                clientUser = RequestDispatcher.sessionUser(clientUser, reqMsg, ansMsg);
+            complete(reqMsg, ansMsg);
+            schedule();
+        }
+
+        /**
+         * prepara il frame di risposta (con lo stesso id della richiesta) e segna la richiesta
+         * come terminata. Se la risposta non può essere codificata il client riceve UNKNOWN_ERROR
+         *
+         * @param reqMsg richiesta terminata
+         * @param ansMsg risposta da inviare
+         */
+        private void complete(RequestMessage reqMsg, ResponseMessage ansMsg) {
+            ByteBuffer frame = null;
+            try {
+                ansMsg.setRequestId(reqMsg.getRequestId());
+                long encodeStart = System.nanoTime();
+                frame = codec.encode(ansMsg);
+                if (ansMsg.getResponse() != Response.SERVER_BUSY)
+                    LatencyStats.SHARED.encoded(reqMsg, encodeStart);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                ansMsg = RequestDispatcher.failed(reqMsg);
+                try {
+                    frame = codec.encode(ansMsg);
+                } catch (IOException | RuntimeException e2) {
+                    e2.printStackTrace();
+                }
+            }
+            if (frame != null) {
+                synchronized (this) {
+                    responses.add(frame);
+                    if (reqMsg.getRequest() == Request.LOGOUT && ansMsg.getResponse() != Response.SERVER_BUSY)
+                        closing = true;
+                }
+            }
+            synchronized (this) {
+                running--;
+                if (!RequestDispatcher.isPipelined(reqMsg))
+                    barrier = false;
+            }
+            //il selector abilita la scrittura e, se il backlog si è liberato, riprende la lettura
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * scrive sul canale le risposte in coda; quando sono state tutte scritte
+         * disabilita l'interesse in scrittura e riprende la lettura se era sospesa
+         * (o chiude la connessione dopo un logout)
+         *
+         * @throws IOException -
+         */
+        void write() throws IOException {
+            boolean logout;
+            synchronized (this) {
+                while (!responses.isEmpty()) {
+                    ByteBuffer frame = responses.peek();
+                    channel.write(frame);
+                    if (frame.hasRemaining())
+                        return;
+                    codec.release(responses.poll());
+                }
+                logout = closing;
+            }
+            if (logout) {
+                //il logout è già stato effettuato dal servizio
+                clientUser = null;
+                close();
+                return;
+            }
+            //risposte scritte: il backlog può essersi liberato
+            updateInterest();
+        }
+
+        /**
+         * chiude la connessione; se il client non aveva effettuato il logout
+         * lo effettua al posto suo
+         */
+        void close() {
+            handle.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                closing = true;
+                while (!responses.isEmpty())
+                    codec.release(responses.poll());
+                codec.close();
+            }
+            String user = clientUser;
+            clientUser = null;
+            if (user != null) {
+                try {
+                    workers.execute(() -> dispatcher.disconnected(user));
+                } catch (RejectedExecutionException e) {
+                    //worker saturi: il logout è breve, lo esegue direttamente il selector
+                    dispatcher.disconnected(user);
+                }
+            }
+        }
+    }
+}
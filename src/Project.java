@@ -1,31 +1,70 @@
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * @author Giuseppe Muschetta 564026 corso A
  */
 public class Project implements Serializable {
 
-    private static final long serialVersionUID = -1225614063308839028L;
+    private static final long serialVersionUID = 2486915120733512958L;
 
     /** nome progetto */
     private String name;
 
+    /* le cards di ogni stato sono tenute in insiemi ordinati per inserimento:
+     * lo spostamento di una card non scorre né ricompatta la lista.
+     * Le versioni pubblicate non hanno questi insiemi (sono null): vengono ricostruiti dalle cards
+     * solo quando servono, una sola volta per versione, cioè per inviare il progetto ai client (vedi publishedList) */
+
     /** lista di cards nello stato di TODO */
-    private ArrayList<Card> toDo;
+    private LinkedHashSet<Card> toDo;
 
     /** lista di cards nello stato di INPROGRESS */
-    private ArrayList<Card> inProgress;
+    private LinkedHashSet<Card> inProgress;
 
     /** lista di cards nello stato di TOBEREVISED */
-    private ArrayList<Card> toBeRevised;
+    private LinkedHashSet<Card> toBeRevised;
 
     /** lista di cards nello stato di DONE */
-    private ArrayList<Card> done;
+    private LinkedHashSet<Card> done;
+
+    /**
+     * lista di tutte le cards del progetto, in ordine di creazione (usata per la paginazione).
+     * Nelle versioni pubblicate è una PublishedCards che condivide i blocchi non modificati */
+    private List<Card> cards;
+
+    /**
+     * posizione di ogni card nella lista cards, per nome. Le cards non vengono mai rimosse né
+     * cambiano posizione, quindi l'indice viene solo esteso e le versioni pubblicate lo condividono
+     * con il progetto (una posizione oltre la loro dimensione è di una card non ancora pubblicata).
+     * Viene ricostruito se contiene meno cards della lista (progetto deserializzato o lista riempita direttamente) */
+    private transient ConcurrentHashMap<String, Integer> positions;
+
+    /** cards spostate dall'ultima pubblicazione (protetto dal lock del progetto) */
+    private transient ArrayList<Card> moved;
 
-    /** lista di tutte le cards del progetto */
-    private ArrayList<Card> cards;
+    /** numero di cards in ogni lista, solo nelle versioni pubblicate (indice = ordinale di CardState) */
+    private transient int[] listSizes;
+
+    /**
+     * liste di stato di una versione pubblicata (indice = ordinale di CardState): sono ricostruite
+     * con una sola scansione delle cards alla prima richiesta e poi condivise da tutte le letture
+     * della versione, che non cambia più. Non vengono costruite durante la pubblicazione, così
+     * spostare una card non costa O(cards) se nessuno richiede le liste */
+    private transient volatile List<LinkedHashSet<Card>> publishedLists;
 
     /** lista di tutti i membri del progetto */
     private ArrayList<String> members;
@@ -33,16 +72,76 @@ public class Project implements Serializable {
     /** indirizzo multicast della chat di progetto */
     private InetAddress chatAddress;
 
-    public Project(){}
+    /**
+     * versione del progetto: aumenta ad ogni modifica (nuovo membro, nuova card, spostamento di una card).
+     * Non viene salvata: all'avvio del server è ricostruita dai membri e dalle card salvate
+     * e non risulta inferiore a quella precedente al riavvio */
+    private long version;
+
+    /**
+     * lock del progetto usato dal server: le modifiche (non le scritture su file, vedi pendingSaves) sono
+     * in mutua esclusione, senza bloccare gli altri progetti; le letture dei client usano la
+     * versione pubblicata e non lo acquisiscono. Non viene serializzato né inviato ai client
+     * (le versioni pubblicate non ne hanno uno) */
+    private transient ReentrantReadWriteLock lock;
+
+    /** posizione del progetto nell'ordine di creazione, assegnata dal server */
+    private transient long sequence;
+
+    /**
+     * ultima versione pubblicata del progetto (vedi publish): una copia che non viene più
+     * modificata, letta dai client senza lock e serializzata in modo consistente */
+    private transient volatile Project snapshot;
+
+    /**
+     * metriche di flusso per ogni lista (indice = ordinale di CardState): tempo totale trascorso
+     * dalle card nella lista prima di lasciarla e numero di permanenze concluse. Sono aggiornate
+     * da addCard e moveCard, così BOARD_SUMMARY non scorre le card né i loro storici */
+    private transient long[] dwellMillis;
+    private transient int[] dwellCount;
+
+    /** parti modificate dall'ultima pubblicazione (bit CHANGED_*, protetto dal lock del progetto) */
+    private transient int changes;
+
+    private static final int CHANGED_MEMBERS = 1;
+    private static final int CHANGED_CARDS = 1 << 1;
+
+    /**
+     * cards aggiunte o spostate dall'ultimo salvataggio e membri cambiati (protetti dal lock del progetto):
+     * a differenza di changes non vengono azzerati da publish, che durante un batch può essere
+     * chiamato più volte prima del salvataggio */
+    private transient LinkedHashSet<Card> unsavedCards;
+    private transient boolean unsavedMembers;
+
+    /**
+     * modifiche in attesa di essere scritte su file, nell'ordine in cui sono state fatte: vengono
+     * accodate con il lock del progetto e scritte dopo averlo rilasciato, da un thread alla volta
+     * (saveLock), così le scritture non bloccano le modifiche successive del progetto */
+    private transient ConcurrentLinkedQueue<Changes> pendingSaves;
+    private transient ReentrantLock saveLock;
+
+    public Project(){
+        this.lock = new ReentrantReadWriteLock();
+        this.pendingSaves = new ConcurrentLinkedQueue<>();
+        this.saveLock = new ReentrantLock();
+        this.dwellMillis = new long[CardState.values().length];
+        this.dwellCount = new int[CardState.values().length];
+    }
 
     public Project(String name) {
         this.name = name;
-        this.toDo = new ArrayList<>();
-        this.inProgress = new ArrayList<>();
-        this.toBeRevised = new ArrayList<>();
-        this.done = new ArrayList<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.pendingSaves = new ConcurrentLinkedQueue<>();
+        this.saveLock = new ReentrantLock();
+        this.toDo = new LinkedHashSet<>();
+        this.inProgress = new LinkedHashSet<>();
+        this.toBeRevised = new LinkedHashSet<>();
+        this.done = new LinkedHashSet<>();
         this.cards = new ArrayList<>();
+        this.positions = new ConcurrentHashMap<>();
         this.members = new ArrayList<>();
+        this.dwellMillis = new long[CardState.values().length];
+        this.dwellCount = new int[CardState.values().length];
     }
 
     /**
@@ -52,16 +151,96 @@ public class Project implements Serializable {
      */
     public Project(String name, String nickFirstMember) {
         this.name = name;
-        this.toDo = new ArrayList<>();
-        this.inProgress = new ArrayList<>();
-        this.toBeRevised = new ArrayList<>();
-        this.done = new ArrayList<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.pendingSaves = new ConcurrentLinkedQueue<>();
+        this.saveLock = new ReentrantLock();
+        this.toDo = new LinkedHashSet<>();
+        this.inProgress = new LinkedHashSet<>();
+        this.toBeRevised = new LinkedHashSet<>();
+        this.done = new LinkedHashSet<>();
         this.cards = new ArrayList<>();
+        this.positions = new ConcurrentHashMap<>();
         this.members = new ArrayList<>();
         this.members.add(nickFirstMember);
+        this.unsavedMembers = true;
+        this.dwellMillis = new long[CardState.values().length];
+        this.dwellCount = new int[CardState.values().length];
     }
 
+    /**
+     * costruisce una versione pubblicata del progetto: membri e dati delle cards non modificati
+     * dall'ultima pubblicazione vengono condivisi con la versione precedente. Delle cards vengono
+     * copiate solo le nuove e quelle spostate (con i blocchi che le contengono, vedi PublishedCards),
+     * quindi il costo non dipende dal numero di cards del progetto
+     *
+     * @param live progetto da pubblicare
+     * @param previous versione pubblicata precedente (null se è la prima)
+     * @param changed parti modificate (bit CHANGED_*)
+     */
+    private Project(Project live, Project previous, int changed) {
+        this.name = live.name;
+        this.chatAddress = live.chatAddress;
+        this.sequence = live.sequence;
+        this.version = live.version;
+        this.members = (changed & CHANGED_MEMBERS) != 0 ? new ArrayList<>(live.members) : previous.members;
+        this.positions = live.positions();
+        if ((changed & CHANGED_CARDS) != 0) {
+            PublishedCards.Builder published = (previous == null ? new PublishedCards() :
+                    (PublishedCards) previous.cards).next();
+            int unchanged = published.size();
+            if (live.moved != null) {
+                for (Card card : live.moved) {
+                    int position = positions.get(card.getName());
+                    if (position < unchanged)
+                        published.set(position, card.frozen());
+                }
+            }
+            for (int i = unchanged; i < live.cards.size(); i++)
+                published.add(live.cards.get(i).frozen());
+            this.cards = published.build();
+            this.listSizes = new int[CardState.values().length];
+            for (CardState state : CardState.values())
+                this.listSizes[state.ordinal()] = live.getList(state).size();
+            this.dwellMillis = live.dwellMillis.clone();
+            this.dwellCount = live.dwellCount.clone();
+        } else {
+            this.cards = previous.cards;
+            this.listSizes = previous.listSizes;
+            this.dwellMillis = previous.dwellMillis;
+            this.dwellCount = previous.dwellCount;
+        }
+    }
+
+    /**
+     * @return true se è una versione pubblicata (vedi publish)
+     */
+    private boolean isPublished() {
+        return listSizes != null;
+    }
 
+    /**
+     * lista di stato di una versione pubblicata: le cards nello stato, nell'ordine in cui sono
+     * entrate nella lista. Alla prima richiesta le quattro liste vengono ricostruite insieme, con
+     * una sola scansione delle cards; due letture concorrenti possono ricostruirle entrambe, ma
+     * il risultato è lo stesso. Le liste sono condivise: non vanno modificate
+     */
+    private LinkedHashSet<Card> publishedList(CardState state) {
+        List<LinkedHashSet<Card>> lists = publishedLists;
+        if (lists == null) {
+            ArrayList<ArrayList<Card>> inState = new ArrayList<>(listSizes.length);
+            for (int size : listSizes)
+                inState.add(new ArrayList<>(size));
+            for (Card card : cards)
+                inState.get(card.state().ordinal()).add(card);
+            lists = new ArrayList<>(inState.size());
+            for (ArrayList<Card> list : inState) {
+                list.sort(Comparator.comparingLong(Card::listSequence));
+                lists.add(new LinkedHashSet<>(list));
+            }
+            publishedLists = lists;
+        }
+        return lists.get(state.ordinal());
+    }
 
     /**
      * @return nome progetto
@@ -80,36 +259,50 @@ public class Project implements Serializable {
     /**
      * @return lista di cards del progetto
      */
-    public ArrayList<Card> getCards() {
+    public List<Card> getCards() {
         return cards;
     }
 
     /**
      * @return lista _TODO
      */
-    public ArrayList<Card> getToDo() {
-        return toDo;
+    public LinkedHashSet<Card> getToDo() {
+        return getList(CardState.TODO);
     }
 
     /**
      * @return lista INPROGRESS
      */
-    public ArrayList<Card> getInProgress() {
-        return inProgress;
+    public LinkedHashSet<Card> getInProgress() {
+        return getList(CardState.INPROGRESS);
     }
 
     /**
      * @return lista TOBEREVISED
      */
-    public ArrayList<Card> getToBeRevised() {
-        return toBeRevised;
+    public LinkedHashSet<Card> getToBeRevised() {
+        return getList(CardState.TOBEREVISED);
     }
 
     /**
      * @return lista DONE
      */
-    public ArrayList<Card> getDone() {
-        return done;
+    public LinkedHashSet<Card> getDone() {
+        return getList(CardState.DONE);
+    }
+
+    /**
+     * @return versione del progetto
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param version versione del progetto (usato dalla decodifica binaria dei messaggi)
+     */
+    void setVersion(long version) {
+        this.version = version;
     }
 
     /**
@@ -127,20 +320,247 @@ public class Project implements Serializable {
     }
 
     /**
-     * effettua il parsing del nome della lista ritornando la lista effettiva
-     * @param list nome della lista da parsare
-     * @return lista richiesta
+     * @param state stato richiesto
+     * @return insieme delle cards che si trovano in quello stato (in una versione pubblicata
+     * viene ricostruito alla prima richiesta e non va modificato: per il solo numero di cards usare listSize)
      */
-    public ArrayList<Card> parseList(String list) {
-        ArrayList<Card> parsedList;
-        switch (list.toUpperCase()) {
-            case "TODO" : parsedList = this.getToDo(); break;
-            case "INPROGRESS" : parsedList = this.getInProgress(); break;
-            case "TOBEREVISED" : parsedList = this.getToBeRevised(); break;
-            case "DONE" : parsedList = this.getDone(); break;
-            default : parsedList = null;
+    public LinkedHashSet<Card> getList(CardState state) {
+        if (isPublished())
+            return publishedList(state);
+        switch (state) {
+            case TODO : return toDo;
+            case INPROGRESS : return inProgress;
+            case TOBEREVISED : return toBeRevised;
+            default : return done;
         }
-        return parsedList;
+    }
+
+    /**
+     * @param state lista richiesta
+     * @return numero di cards nella lista
+     */
+    public int listSize(CardState state) {
+        return isPublished() ? listSizes[state.ordinal()] : getList(state).size();
+    }
+
+    /**
+     * @param state lista richiesta
+     * @return numero di volte in cui una card ha lasciato la lista (con istanti noti)
+     */
+    public int completedStays(CardState state) {
+        return dwellCount[state.ordinal()];
+    }
+
+    /**
+     * @param state lista richiesta
+     * @return tempo medio in millisecondi trascorso dalle card nella lista prima di lasciarla
+     * (0 se nessuna card l'ha ancora lasciata)
+     */
+    public long averageDwell(CardState state) {
+        int count = dwellCount[state.ordinal()];
+        return count == 0 ? 0 : dwellMillis[state.ordinal()] / count;
+    }
+
+    /**
+     * conta una permanenza conclusa della card, tra due eventi consecutivi del suo storico.
+     * Gli eventi letti dai file delle versioni precedenti non hanno istante e non vengono contati
+     *
+     * @param history storico della card
+     * @param index posizione dell'evento con cui la card è entrata nella lista
+     */
+    private void addDwell(CardHistory history, int index) {
+        if (index < 0)
+            return;
+        long entered = history.time(index);
+        long left = history.time(index + 1);
+        if (entered == 0 || left < entered)
+            return;
+        int list = history.list(index).ordinal();
+        dwellMillis[list] += left - entered;
+        dwellCount[list]++;
+    }
+
+    /**
+     * @param cardName nome della card
+     * @return card con quel nome, null se non appartiene al progetto
+     */
+    public Card getCard(String cardName) {
+        Integer position = positions().get(cardName);
+        return position == null || position >= cards.size() ? null : cards.get(position);
+    }
+
+    /**
+     * aggiunge una card al progetto, nella lista indicata dalla sua posizione
+     * @param card card da aggiungere (non deve essere già presente)
+     */
+    public void addCard(Card card) {
+        //l'indice va letto prima di aggiungere la card, altrimenti risulterebbe non allineato e verrebbe ricostruito
+        ConcurrentHashMap<String, Integer> byName = positions();
+        cards.add(card);
+        byName.put(card.getName(), cards.size() - 1);
+        getList(card.state()).add(card);
+        //una card letta dai file conta anche i suoi spostamenti
+        version += 1 + card.getVersion();
+        card.setListSequence(version);
+        CardHistory history = card.history();
+        if (history != null)
+            for (int i = 0; i + 1 < history.size(); i++)
+                addDwell(history, i);
+        changes |= CHANGED_CARDS;
+        unsavedCards().add(card);
+    }
+
+    /**
+     * sposta una card del progetto nella lista di destinazione aggiornandone lo storico,
+     * la validità dello spostamento va controllata dal chiamante
+     * @param card card del progetto
+     * @param destination lista di destinazione
+     * @param actor utente che sposta la card
+     */
+    public void moveCard(Card card, CardState destination, String actor) {
+        changes |= CHANGED_CARDS;
+        if (moved == null)
+            moved = new ArrayList<>();
+        moved.add(card);
+        unsavedCards().add(card);
+        getList(card.state()).remove(card);
+        card.updateHistory(destination, actor);
+        CardHistory history = card.history();
+        addDwell(history, history.size() - 2);
+        getList(destination).add(card);
+        version++;
+        card.setListSequence(version);
+    }
+
+    /**
+     * aggiunge un membro al progetto
+     * @param nickname nome utente del nuovo membro (non deve essere già membro)
+     */
+    public void addMember(String nickname) {
+        members.add(nickname);
+        version++;
+        changes |= CHANGED_MEMBERS;
+        unsavedMembers = true;
+    }
+
+    /**
+     * pubblica lo stato corrente del progetto come nuova versione immutabile.
+     * Va chiamato dal server con il lock del progetto in scrittura dopo le modifiche
+     * (una sola volta per un batch, vedi WorthCore.persist)
+     */
+    public void publish() {
+        Project previous = snapshot;
+        snapshot = new Project(this, previous, previous == null ? ~0 : changes);
+        changes = 0;
+        if (moved != null)
+            moved.clear();
+    }
+
+    /**
+     * accoda le modifiche non ancora salvate (membri, se sono cambiati, e copie delle cards aggiunte
+     * o spostate), da scrivere con saveQueued dopo aver rilasciato il lock: il costo dipende dalle
+     * cards modificate e non dal numero di cards del progetto.
+     * Va chiamato con il lock del progetto in scrittura
+     */
+    public void queueSave() {
+        if (!unsavedMembers && (unsavedCards == null || unsavedCards.isEmpty()))
+            return;
+        ArrayList<Card> savedCards = new ArrayList<>(unsavedCards == null ? 0 : unsavedCards.size());
+        if (unsavedCards != null) {
+            for (Card card : unsavedCards)
+                savedCards.add(card.saved());
+            unsavedCards.clear();
+        }
+        pendingSaves.add(new Changes(name, unsavedMembers ? new ArrayList<>(members) : null, savedCards));
+        unsavedMembers = false;
+    }
+
+    /**
+     * scrive nell'ordine le modifiche accodate, se nessun altro thread lo sta già facendo: in quel
+     * caso le scrive quest'ultimo e il chiamante ritorna subito. Va chiamato senza il lock del progetto,
+     * salvo per attendere le scritture in corso prima di cancellare i file del progetto
+     *
+     * @param writer scrittura su file delle modifiche
+     * @param wait true per attendere il thread che sta scrivendo invece di lasciargli le modifiche
+     */
+    public void saveQueued(Consumer<Changes> writer, boolean wait) {
+        while (!pendingSaves.isEmpty()) {
+            if (wait)
+                saveLock.lock();
+            else if (!saveLock.tryLock())
+                return;
+            try {
+                Changes changes;
+                while ((changes = pendingSaves.poll()) != null)
+                    writer.accept(changes);
+            } finally {
+                saveLock.unlock();
+            }
+            //una modifica accodata mentre si rilasciava saveLock va scritta da questo thread
+        }
+    }
+
+    /**
+     * segna come salvato il progetto appena letto dai file
+     */
+    public void markSaved() {
+        unsavedCards = null;
+        unsavedMembers = false;
+    }
+
+    /**
+     * @return cards aggiunte o spostate dall'ultimo salvataggio
+     */
+    private LinkedHashSet<Card> unsavedCards() {
+        if (unsavedCards == null)
+            unsavedCards = new LinkedHashSet<>();
+        return unsavedCards;
+    }
+
+    /**
+     * @return true se il progetto ha modifiche non ancora pubblicate
+     */
+    public boolean hasUnpublishedChanges() {
+        return changes != 0;
+    }
+
+    /**
+     * @return ultima versione pubblicata del progetto (null se non è mai stato pubblicato),
+     * da non modificare
+     */
+    public Project snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return posizioni delle cards per nome, ricostruite se non contengono tutte le cards del progetto
+     */
+    private ConcurrentHashMap<String, Integer> positions() {
+        if (positions == null || positions.size() < cards.size()) {
+            ConcurrentHashMap<String, Integer> index = new ConcurrentHashMap<>();
+            for (int i = 0; i < cards.size(); i++)
+                index.put(cards.get(i).getName(), i);
+            positions = index;
+        }
+        return positions;
+    }
+
+    /**
+     * serializzazione java (callbacks RMI): delle versioni pubblicate vengono scritte
+     * le liste di stato ricostruite e una copia della lista delle cards
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", name);
+        fields.put("toDo", getToDo());
+        fields.put("inProgress", getInProgress());
+        fields.put("toBeRevised", getToBeRevised());
+        fields.put("done", getDone());
+        fields.put("cards", isPublished() ? new ArrayList<>(cards) : cards);
+        fields.put("members", members);
+        fields.put("chatAddress", chatAddress);
+        fields.put("version", version);
+        out.writeFields();
     }
 
     /**
@@ -151,6 +571,29 @@ public class Project implements Serializable {
         return this.name;
     }
 
+    /**
+     * @return lock del progetto (vedi WorthCore)
+     */
+    public ReentrantReadWriteLock lock() {
+        return lock;
+    }
+
+    /**
+     * @return posizione del progetto nell'ordine di creazione (vedi WorthCore)
+     */
+    @JsonIgnore
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param sequence posizione del progetto nell'ordine di creazione
+     */
+    @JsonIgnore
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     /**
      * @param obj oggetto da confrontare con this
      * @return true se i due oggetti sono uguali, false altrimenti
@@ -161,4 +604,46 @@ public class Project implements Serializable {
             return false;
         return this.name.equals(((Project) obj).getName());
     }
+
+    /**
+     * @return hash coerente con equals (basato sul nome)
+     */
+    @Override
+    public int hashCode() {
+        return this.name.hashCode();
+    }
+
+    /**
+     * modifiche di un progetto da scrivere su file (vedi queueSave): le copie non vengono più
+     * modificate, quindi possono essere scritte senza il lock del progetto
+     */
+    public static class Changes {
+
+        /** nome progetto */
+        private final String name;
+
+        /** membri del progetto, null se non sono cambiati */
+        private final List<String> members;
+
+        /** copie delle cards aggiunte o spostate, con il loro storico */
+        private final List<Card> cards;
+
+        private Changes(String name, List<String> members, List<Card> cards) {
+            this.name = name;
+            this.members = members;
+            this.cards = cards;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getMembers() {
+            return members;
+        }
+
+        public List<Card> getCards() {
+            return cards;
+        }
+    }
 }
@@ -0,0 +1,126 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Lista delle cards di una versione pubblicata di un progetto (vedi Project.publish), che non viene
+ * più modificata. Le cards sono divise in blocchi di dimensione fissa: una nuova versione condivide
+ * con la precedente tutti i blocchi che non contengono cards spostate, e copia solo quelli che le
+ * contengono. Le cards aggiunte vengono scritte oltre la dimensione delle versioni precedenti, anche
+ * in blocchi condivisi, e quindi restano invisibili a queste ultime.
+ * Va estesa solo a partire dall'ultima versione pubblicata (con il lock del progetto in scrittura)
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class PublishedCards extends AbstractList<Card> implements RandomAccess {
+
+    /** ogni blocco contiene 2^CHUNK_BITS cards */
+    private static final int CHUNK_BITS = 9;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** blocchi delle cards (gli elementi oltre la dimensione sono capacità di riserva) */
+    private final Card[][] chunks;
+
+    /** numero di cards della versione */
+    private final int size;
+
+    public PublishedCards() {
+        this(new Card[1][], 0);
+    }
+
+    private PublishedCards(Card[][] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    @Override
+    public Card get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Indice " + index + ", dimensione " + size);
+        return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return costruttore della versione successiva, a partire da questa
+     */
+    public Builder next() {
+        return new Builder(this);
+    }
+
+    /**
+     * costruisce la versione successiva: durante una pubblicazione ogni blocco viene copiato
+     * al più una volta, anche se contiene più cards spostate
+     */
+    public static class Builder {
+
+        private Card[][] chunks;
+        private int size;
+        /** true se l'indice dei blocchi è già stato copiato in questa pubblicazione */
+        private boolean ownChunks;
+        /** blocchi già copiati in questa pubblicazione */
+        private boolean[] ownChunk;
+
+        private Builder(PublishedCards previous) {
+            chunks = previous.chunks;
+            size = previous.size;
+        }
+
+        /**
+         * @return numero di cards della versione in costruzione
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * aggiunge una card in fondo
+         *
+         * @param card copia immutabile della card
+         */
+        public void add(Card card) {
+            int chunk = size >>> CHUNK_BITS;
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+                ownChunks = true;
+            }
+            if (chunks[chunk] == null)
+                chunks[chunk] = new Card[CHUNK_SIZE];
+            chunks[chunk][size & CHUNK_MASK] = card;
+            size++;
+        }
+
+        /**
+         * sostituisce una card (spostata) copiando il blocco che la contiene, se non è già stato copiato
+         *
+         * @param index posizione della card
+         * @param card nuova copia immutabile della card
+         */
+        public void set(int index, Card card) {
+            int chunk = index >>> CHUNK_BITS;
+            if (!ownChunks) {
+                chunks = chunks.clone();
+                ownChunks = true;
+            }
+            if (ownChunk == null || ownChunk.length < chunks.length)
+                ownChunk = ownChunk == null ? new boolean[chunks.length] : Arrays.copyOf(ownChunk, chunks.length);
+            if (!ownChunk[chunk]) {
+                chunks[chunk] = chunks[chunk].clone();
+                ownChunk[chunk] = true;
+            }
+            chunks[chunk][index & CHUNK_MASK] = card;
+        }
+
+        /**
+         * @return la nuova versione
+         */
+        public PublishedCards build() {
+            return new PublishedCards(chunks, size);
+        }
+    }
+}
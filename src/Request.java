@@ -12,5 +12,11 @@ public enum Request {
     SHOW_CARD,
     ADD_CARD,
     MOVE_CARD,
-    CANCEL_PROJECT
+    CANCEL_PROJECT,
+    BATCH,
+    PING,
+    STATS,
+    CARD_HISTORY,
+    SEARCH_CARDS,
+    BOARD_SUMMARY
 }
@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+
+/**
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class RequestDispatcher {
+
+    /** istanza del servizio contenente tutte le funzionalità */
+    private final WorthCore service;
+
+    public RequestDispatcher(WorthCore service) {
+        this.service = service;
+    }
+
+    /**
+     * verifica la corrispondenza della richiesta con quelle accettate dal servizio
+     * e invoca le funzionalità di quest'ultimo per risolverla.
+     * Usato sia dai ServerThread sia dai worker della modalità NIO
+     *
+     * @param reqMsg messaggio contenente la richiesta del client
+     * @return messaggio contenente il responso da inviare al client
+     */
+    public ResponseMessage dispatch(RequestMessage reqMsg) {
+        long start = LatencyStats.start();
+        try {
+            return execute(reqMsg);
+        } finally {
+            LatencyStats.SHARED.dispatched(reqMsg, start);
+        }
+    }
+
+    /**
+     * esegue la richiesta invocando la funzionalità corrispondente del servizio
+     *
+     * @param reqMsg messaggio contenente la richiesta del client
+     * @return messaggio contenente il responso da inviare al client
+     */
+    private ResponseMessage execute(RequestMessage reqMsg) {
+        String nickname = reqMsg.getNickname();
+        switch (reqMsg.getRequest()) {
+            case LOGIN:
+                return service.login(nickname, ((RequestMessage.Login) reqMsg).getPassword());
+
+            case LOGOUT:
+                return service.logout(nickname);
+
+            case LIST_ALL_PROJECTS: {
+                RequestMessage.ListProjects listProjects = (RequestMessage.ListProjects) reqMsg;
+                return service.listProjects(nickname, listProjects.getPageSize(), listProjects.getCursor());
+            }
+
+            case CREATE_PROJECT:
+                return service.createProject(nickname, ((RequestMessage.CreateProject) reqMsg).getProjectName());
+
+            case ADD_MEMBER: {
+                RequestMessage.AddMember addMember = (RequestMessage.AddMember) reqMsg;
+                return service.addMember(nickname, addMember.getProjectName(), addMember.getNewMember(),
+                        addMember.getExpectedVersion());
+            }
+
+            case SHOW_ALL_MEMBERS: {
+                RequestMessage.ShowMembers showMembers = (RequestMessage.ShowMembers) reqMsg;
+                return service.showMembers(nickname, showMembers.getProjectName(), showMembers.getPageSize(),
+                        showMembers.getCursor());
+            }
+
+            case SHOW_ALL_CARDS: {
+                RequestMessage.ShowCards showCards = (RequestMessage.ShowCards) reqMsg;
+                return service.showCards(nickname, showCards.getProjectName(), showCards.getPageSize(),
+                        showCards.getCursor());
+            }
+
+            case SHOW_CARD: {
+                RequestMessage.ShowCard showCard = (RequestMessage.ShowCard) reqMsg;
+                return service.showCard(nickname, showCard.getProjectName(), showCard.getCardName());
+            }
+
+            case CARD_HISTORY: {
+                RequestMessage.History history = (RequestMessage.History) reqMsg;
+                return service.cardHistory(nickname, history.getProjectName(), history.getCardName(),
+                        history.getPageSize(), history.getCursor());
+            }
+
+            case BOARD_SUMMARY:
+                return service.boardSummary(nickname, ((RequestMessage.BoardSummary) reqMsg).getProjectName());
+
+            case SEARCH_CARDS: {
+                RequestMessage.SearchCards search = (RequestMessage.SearchCards) reqMsg;
+                return service.searchCards(nickname, search.getQuery(), search.getPageSize(), search.getCursor());
+            }
+
+            case ADD_CARD: {
+                RequestMessage.AddCard addCard = (RequestMessage.AddCard) reqMsg;
+                return service.addCard(nickname, addCard.getProjectName(), addCard.getCardName(),
+                        addCard.getDescription());
+            }
+
+            case MOVE_CARD: {
+                RequestMessage.MoveCard moveCard = (RequestMessage.MoveCard) reqMsg;
+                return service.moveCard(nickname, moveCard.getProjectName(), moveCard.getCardName(),
+                        moveCard.getSourceList(), moveCard.getDestList(), moveCard.getExpectedVersion());
+            }
+
+            case CANCEL_PROJECT:
+                return service.cancelProject(nickname, ((RequestMessage.CancelProject) reqMsg).getProjectName());
+
+            case BATCH:
+                return dispatchBatch((RequestMessage.Batch) reqMsg);
+
+            case PING:
+                return new ResponseMessage(Request.PING, Response.OK);
+
+            case STATS: {
+                ResponseMessage.StatsResult stats = new ResponseMessage.StatsResult();
+                stats.setResponse(Response.OK);
+                stats.setLatencies(LatencyStats.SHARED.snapshot());
+                return stats;
+            }
+
+            default:
+                throw new IllegalArgumentException("Bad request: " + reqMsg.getRequest());
+        }
+    }
+
+    /**
+     * esegue in un solo round trip le sotto-operazioni di una richiesta BATCH, nell'ordine indicato.
+     * Ogni progetto modificato viene salvato una sola volta alla fine e nella sua chat viene inviato
+     * un unico messaggio di riepilogo (vedi WorthCore.commitBatch).
+     * Le sotto-operazioni vengono eseguite a nome dell'utente che ha inviato il batch; login, logout,
+     * cancellazione di progetti e batch annidati non sono ammessi e ricevono UNKNOWN_ERROR
+     *
+     * @param reqMsg richiesta BATCH
+     * @return messaggio con un responso per ogni sotto-operazione
+     */
+    private ResponseMessage dispatchBatch(RequestMessage.Batch reqMsg) {
+        ArrayList<ResponseMessage> results = new ArrayList<>();
+        service.beginBatch();
+        try {
+            if (reqMsg.getBatch() != null) {
+                for (RequestMessage operation : reqMsg.getBatch()) {
+                    switch (operation.getRequest()) {
+                        case LOGIN:
+                        case LOGOUT:
+                        case CANCEL_PROJECT:
+                        case BATCH:
+                            ResponseMessage refused = ResponseMessage.of(operation.getRequest());
+                            refused.setResponse(Response.UNKNOWN_ERROR);
+                            results.add(refused);
+                            break;
+                        default:
+                            operation.setNickname(reqMsg.getNickname());
+                            results.add(execute(operation));
+                    }
+                }
+            }
+        } finally {
+            service.commitBatch(reqMsg.getNickname());
+        }
+        ResponseMessage.BatchResult message = new ResponseMessage.BatchResult();
+        message.setResponse(Response.OK);
+        message.setBatch(results);
+        return message;
+    }
+
+    /**
+     * una richiesta con id può essere eseguita in parallelo alle altre richieste con id dello
+     * stesso client e la sua risposta può arrivare fuori ordine. Login e logout cambiano lo
+     * stato della sessione e vengono sempre eseguiti in ordine, come le richieste senza id
+     * inviate dai client che non usano la pipeline
+     *
+     * @param reqMsg richiesta del client
+     * @return true se la richiesta può essere eseguita in pipeline
+     */
+    public static boolean isPipelined(RequestMessage reqMsg) {
+        return reqMsg.getRequestId() != null
+                && reqMsg.getRequest() != Request.LOGIN
+                && reqMsg.getRequest() != Request.LOGOUT;
+    }
+
+    /**
+     * risposta da inviare quando l'esecuzione di una richiesta, o la codifica della sua risposta,
+     * fallisce: il client riceve comunque una risposta con lo stesso id invece di attenderla per sempre
+     *
+     * @param reqMsg richiesta fallita
+     * @return risposta UNKNOWN_ERROR con l'id della richiesta
+     */
+    public static ResponseMessage failed(RequestMessage reqMsg) {
+        ResponseMessage failed = ResponseMessage.of(reqMsg.getRequest());
+        failed.setResponse(Response.UNKNOWN_ERROR);
+        failed.setRequestId(reqMsg.getRequestId());
+        return failed;
+    }
+
+    /**
+     * utente della sessione aperta su una connessione dopo una richiesta: cambia solo con un login
+     * riuscito o con il logout dello stesso utente, così alla chiusura della connessione viene
+     * disconnesso solo chi si è autenticato su di essa (e non, ad esempio, l'utente di un login fallito)
+     *
+     * @param current utente della sessione prima della richiesta (null se nessuno)
+     * @param reqMsg richiesta eseguita
+     * @param ansMsg risposta alla richiesta (null se l'esecuzione è fallita)
+     * @return utente della sessione dopo la richiesta
+     */
+    public static String sessionUser(String current, RequestMessage reqMsg, ResponseMessage ansMsg) {
+        if (ansMsg == null || ansMsg.getResponse() != Response.OK)
+            return current;
+        if (reqMsg.getRequest() == Request.LOGIN)
+            return reqMsg.getNickname();
+        if (reqMsg.getRequest() == Request.LOGOUT && reqMsg.getNickname() != null
+                && reqMsg.getNickname().equals(current))
+            return null;
+        return current;
+    }
+
+    /**
+     * chiude la sessione di un client che si è disconnesso senza effettuare il logout
+     *
+     * @param nickname nome utente che ha effettuato il login sulla connessione (null se nessuno)
+     */
+    public void disconnected(String nickname) {
+        if (nickname != null)
+            service.logout(nickname);
+    }
+}
@@ -0,0 +1,730 @@
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+import java.util.ArrayList;
+
+/**
+ * Richiesta inviata dal client al server. Ogni operazione ha il proprio tipo con i soli campi
+ * che le servono; in json il tipo è indicato dal campo "request", lo stesso usato dal vecchio
+ * messaggio unico, quindi i frame json dei client precedenti vengono ancora riconosciuti.
+ * Tutte le richieste riportano il nome utente del client che le invia
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.EXISTING_PROPERTY, property = "request")
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = RequestMessage.Login.class, name = "LOGIN"),
+        @JsonSubTypes.Type(value = RequestMessage.Logout.class, name = "LOGOUT"),
+        @JsonSubTypes.Type(value = RequestMessage.ListProjects.class, name = "LIST_ALL_PROJECTS"),
+        @JsonSubTypes.Type(value = RequestMessage.CreateProject.class, name = "CREATE_PROJECT"),
+        @JsonSubTypes.Type(value = RequestMessage.AddMember.class, name = "ADD_MEMBER"),
+        @JsonSubTypes.Type(value = RequestMessage.ShowMembers.class, name = "SHOW_ALL_MEMBERS"),
+        @JsonSubTypes.Type(value = RequestMessage.ShowCards.class, name = "SHOW_ALL_CARDS"),
+        @JsonSubTypes.Type(value = RequestMessage.ShowCard.class, name = "SHOW_CARD"),
+        @JsonSubTypes.Type(value = RequestMessage.AddCard.class, name = "ADD_CARD"),
+        @JsonSubTypes.Type(value = RequestMessage.MoveCard.class, name = "MOVE_CARD"),
+        @JsonSubTypes.Type(value = RequestMessage.CancelProject.class, name = "CANCEL_PROJECT"),
+        @JsonSubTypes.Type(value = RequestMessage.Batch.class, name = "BATCH"),
+        @JsonSubTypes.Type(value = RequestMessage.Ping.class, name = "PING"),
+        @JsonSubTypes.Type(value = RequestMessage.Stats.class, name = "STATS"),
+        @JsonSubTypes.Type(value = RequestMessage.History.class, name = "CARD_HISTORY"),
+        @JsonSubTypes.Type(value = RequestMessage.SearchCards.class, name = "SEARCH_CARDS"),
+        @JsonSubTypes.Type(value = RequestMessage.BoardSummary.class, name = "BOARD_SUMMARY")
+})
+public abstract class RequestMessage extends WireMessage {
+
+    /** nome utente del client che ha inviato la richiesta */
+    private String nickname;
+
+    /** istante (System.nanoTime) in cui il server ha iniziato a decodificarla; non viene trasmesso */
+    @JsonIgnore
+    private transient long receivedAt;
+
+    /** dimensione del frame ricevuto e durate delle fasi, solo con il log delle richieste lente attivo */
+    @JsonIgnore
+    private transient int frameSize;
+    @JsonIgnore
+    private transient long[] phaseNanos;
+
+    /**
+     *
+     * @return nome utente del client che ha inviato la richiesta
+     */
+    public String getNickname() {
+        return nickname;
+    }
+
+    /**
+     *
+     * @param nickname nome utente del client che invia la richiesta
+     */
+    public void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+
+    /**
+     * @return istante (System.nanoTime) in cui il server ha iniziato a decodificare la richiesta
+     */
+    long receivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * @param receivedAt istante (System.nanoTime) in cui il server ha iniziato a decodificare la richiesta
+     */
+    void receivedAt(long receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * @return dimensione in byte del corpo del frame ricevuto
+     */
+    int frameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @param frameSize dimensione in byte del corpo del frame ricevuto
+     */
+    void frameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * @return durate delle fasi indicizzate per LatencyStats.Phase, null se non vengono raccolte
+     */
+    long[] phaseNanos() {
+        return phaseNanos;
+    }
+
+    /**
+     * @param phaseNanos array in cui raccogliere le durate delle fasi di questa richiesta
+     */
+    void phaseNanos(long[] phaseNanos) {
+        this.phaseNanos = phaseNanos;
+    }
+
+    /**
+     * crea una richiesta vuota del tipo corrispondente all'operazione (usato dalla decodifica binaria)
+     *
+     * @param request operazione richiesta
+     * @return richiesta con tutti i campi a null
+     */
+    public static RequestMessage of(Request request) {
+        switch (request) {
+            case LOGIN: return new Login();
+            case LOGOUT: return new Logout();
+            case LIST_ALL_PROJECTS: return new ListProjects();
+            case CREATE_PROJECT: return new CreateProject();
+            case ADD_MEMBER: return new AddMember();
+            case SHOW_ALL_MEMBERS: return new ShowMembers();
+            case SHOW_ALL_CARDS: return new ShowCards();
+            case SHOW_CARD: return new ShowCard();
+            case ADD_CARD: return new AddCard();
+            case MOVE_CARD: return new MoveCard();
+            case CANCEL_PROJECT: return new CancelProject();
+            case BATCH: return new Batch();
+            case PING: return new Ping();
+            case STATS: return new Stats();
+            case CARD_HISTORY: return new History();
+            case SEARCH_CARDS: return new SearchCards();
+            case BOARD_SUMMARY: return new BoardSummary();
+            default: throw new IllegalArgumentException("Bad request: " + request);
+        }
+    }
+
+    /**
+     * richieste che restituiscono una lista divisa in pagine: se pageSize è null la lista viene
+     * restituita per intero (come per i client precedenti), altrimenti al più pageSize elementi
+     * a partire dal cursore, che è null per la prima pagina e poi quello restituito dal server
+     * nella risposta (vedi ResponseMessage.PagedResult)
+     */
+    public interface Paged {
+
+        Integer getPageSize();
+
+        void setPageSize(Integer pageSize);
+
+        String getCursor();
+
+        void setCursor(String cursor);
+    }
+
+    /**
+     * login: nome utente e password
+     */
+    public static class Login extends RequestMessage {
+
+        private String password;
+
+        public Login() {}
+
+        public Login(String nickname, String password) {
+            setNickname(nickname);
+            this.password = password;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.LOGIN;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+    }
+
+    /**
+     * logout: solo il nome utente
+     */
+    public static class Logout extends RequestMessage {
+
+        public Logout() {}
+
+        public Logout(String nickname) {
+            setNickname(nickname);
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.LOGOUT;
+        }
+    }
+
+    /**
+     * lista dei progetti di cui l'utente fa parte
+     */
+    public static class ListProjects extends RequestMessage implements Paged {
+
+        private Integer pageSize;
+        private String cursor;
+
+        public ListProjects() {}
+
+        public ListProjects(String nickname) {
+            setNickname(nickname);
+        }
+
+        public ListProjects(String nickname, Integer pageSize, String cursor) {
+            setNickname(nickname);
+            this.pageSize = pageSize;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.LIST_ALL_PROJECTS;
+        }
+
+        @Override
+        public Integer getPageSize() {
+            return pageSize;
+        }
+
+        @Override
+        public void setPageSize(Integer pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public String getCursor() {
+            return cursor;
+        }
+
+        @Override
+        public void setCursor(String cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * parte comune delle richieste che riguardano un progetto
+     */
+    public abstract static class ProjectRequest extends RequestMessage {
+
+        private String projectName;
+
+        public String getProjectName() {
+            return projectName;
+        }
+
+        public void setProjectName(String projectName) {
+            this.projectName = projectName;
+        }
+
+        void init(String nickname, String projectName) {
+            setNickname(nickname);
+            this.projectName = projectName;
+        }
+    }
+
+    public static class CreateProject extends ProjectRequest {
+
+        public CreateProject() {}
+
+        public CreateProject(String nickname, String projectName) {
+            init(nickname, projectName);
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.CREATE_PROJECT;
+        }
+    }
+
+    public static class AddMember extends ProjectRequest {
+
+        private String newMember;
+        /** versione del progetto attesa dal client, null se non va controllata */
+        private Long expectedVersion;
+
+        public AddMember() {}
+
+        public AddMember(String nickname, String projectName, String newMember) {
+            this(nickname, projectName, newMember, null);
+        }
+
+        public AddMember(String nickname, String projectName, String newMember, Long expectedVersion) {
+            init(nickname, projectName);
+            this.newMember = newMember;
+            this.expectedVersion = expectedVersion;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.ADD_MEMBER;
+        }
+
+        public String getNewMember() {
+            return newMember;
+        }
+
+        public void setNewMember(String newMember) {
+            this.newMember = newMember;
+        }
+
+        public Long getExpectedVersion() {
+            return expectedVersion;
+        }
+
+        public void setExpectedVersion(Long expectedVersion) {
+            this.expectedVersion = expectedVersion;
+        }
+    }
+
+    public static class ShowMembers extends ProjectRequest implements Paged {
+
+        private Integer pageSize;
+        private String cursor;
+
+        public ShowMembers() {}
+
+        public ShowMembers(String nickname, String projectName) {
+            init(nickname, projectName);
+        }
+
+        public ShowMembers(String nickname, String projectName, Integer pageSize, String cursor) {
+            init(nickname, projectName);
+            this.pageSize = pageSize;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.SHOW_ALL_MEMBERS;
+        }
+
+        @Override
+        public Integer getPageSize() {
+            return pageSize;
+        }
+
+        @Override
+        public void setPageSize(Integer pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public String getCursor() {
+            return cursor;
+        }
+
+        @Override
+        public void setCursor(String cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    public static class ShowCards extends ProjectRequest implements Paged {
+
+        private Integer pageSize;
+        private String cursor;
+
+        public ShowCards() {}
+
+        public ShowCards(String nickname, String projectName) {
+            init(nickname, projectName);
+        }
+
+        public ShowCards(String nickname, String projectName, Integer pageSize, String cursor) {
+            init(nickname, projectName);
+            this.pageSize = pageSize;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.SHOW_ALL_CARDS;
+        }
+
+        @Override
+        public Integer getPageSize() {
+            return pageSize;
+        }
+
+        @Override
+        public void setPageSize(Integer pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public String getCursor() {
+            return cursor;
+        }
+
+        @Override
+        public void setCursor(String cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    public static class ShowCard extends ProjectRequest {
+
+        private String cardName;
+
+        public ShowCard() {}
+
+        public ShowCard(String nickname, String projectName, String cardName) {
+            init(nickname, projectName);
+            this.cardName = cardName;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.SHOW_CARD;
+        }
+
+        public String getCardName() {
+            return cardName;
+        }
+
+        public void setCardName(String cardName) {
+            this.cardName = cardName;
+        }
+    }
+
+    /**
+     * storico di una card, dal primo spostamento in avanti (un intervallo di eventi per pagina)
+     */
+    public static class History extends ProjectRequest implements Paged {
+
+        private String cardName;
+        private Integer pageSize;
+        private String cursor;
+
+        public History() {}
+
+        public History(String nickname, String projectName, String cardName) {
+            init(nickname, projectName);
+            this.cardName = cardName;
+        }
+
+        public History(String nickname, String projectName, String cardName, Integer pageSize, String cursor) {
+            init(nickname, projectName);
+            this.cardName = cardName;
+            this.pageSize = pageSize;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.CARD_HISTORY;
+        }
+
+        public String getCardName() {
+            return cardName;
+        }
+
+        public void setCardName(String cardName) {
+            this.cardName = cardName;
+        }
+
+        @Override
+        public Integer getPageSize() {
+            return pageSize;
+        }
+
+        @Override
+        public void setPageSize(Integer pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public String getCursor() {
+            return cursor;
+        }
+
+        @Override
+        public void setCursor(String cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * riepilogo della board di un progetto: card per lista e tempi medi di permanenza
+     */
+    public static class BoardSummary extends ProjectRequest {
+
+        public BoardSummary() {}
+
+        public BoardSummary(String nickname, String projectName) {
+            init(nickname, projectName);
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.BOARD_SUMMARY;
+        }
+    }
+
+    /**
+     * ricerca di parole nei nomi e nelle descrizioni delle card di tutti i progetti dell'utente
+     */
+    public static class SearchCards extends RequestMessage implements Paged {
+
+        private String query;
+        private Integer pageSize;
+        private String cursor;
+
+        public SearchCards() {}
+
+        public SearchCards(String nickname, String query, Integer pageSize, String cursor) {
+            setNickname(nickname);
+            this.query = query;
+            this.pageSize = pageSize;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.SEARCH_CARDS;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public void setQuery(String query) {
+            this.query = query;
+        }
+
+        @Override
+        public Integer getPageSize() {
+            return pageSize;
+        }
+
+        @Override
+        public void setPageSize(Integer pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public String getCursor() {
+            return cursor;
+        }
+
+        @Override
+        public void setCursor(String cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    public static class AddCard extends ProjectRequest {
+
+        private String cardName;
+        private String description;
+
+        public AddCard() {}
+
+        public AddCard(String nickname, String projectName, String cardName, String description) {
+            init(nickname, projectName);
+            this.cardName = cardName;
+            this.description = description;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.ADD_CARD;
+        }
+
+        public String getCardName() {
+            return cardName;
+        }
+
+        public void setCardName(String cardName) {
+            this.cardName = cardName;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public void setDescription(String description) {
+            this.description = description;
+        }
+    }
+
+    public static class MoveCard extends ProjectRequest {
+
+        private String cardName;
+        private String sourceList;
+        private String destList;
+        /** versione della card attesa dal client, null se non va controllata */
+        private Long expectedVersion;
+
+        public MoveCard() {}
+
+        public MoveCard(String nickname, String projectName, String cardName, String sourceList, String destList) {
+            this(nickname, projectName, cardName, sourceList, destList, null);
+        }
+
+        public MoveCard(String nickname, String projectName, String cardName, String sourceList, String destList,
+                        Long expectedVersion) {
+            init(nickname, projectName);
+            this.cardName = cardName;
+            this.sourceList = sourceList;
+            this.destList = destList;
+            this.expectedVersion = expectedVersion;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.MOVE_CARD;
+        }
+
+        public String getCardName() {
+            return cardName;
+        }
+
+        public void setCardName(String cardName) {
+            this.cardName = cardName;
+        }
+
+        public String getSourceList() {
+            return sourceList;
+        }
+
+        public void setSourceList(String sourceList) {
+            this.sourceList = sourceList;
+        }
+
+        public String getDestList() {
+            return destList;
+        }
+
+        public void setDestList(String destList) {
+            this.destList = destList;
+        }
+
+        public Long getExpectedVersion() {
+            return expectedVersion;
+        }
+
+        public void setExpectedVersion(Long expectedVersion) {
+            this.expectedVersion = expectedVersion;
+        }
+    }
+
+    public static class CancelProject extends ProjectRequest {
+
+        public CancelProject() {}
+
+        public CancelProject(String nickname, String projectName) {
+            init(nickname, projectName);
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.CANCEL_PROJECT;
+        }
+    }
+
+    /**
+     * heartbeat inviato dal client quando non ha altre richieste da fare, così il server non
+     * chiude la connessione per inattività (vedi ConnectionRegistry); la risposta (pong) è
+     * un ResponseMessage di tipo PING con responso OK
+     */
+    public static class Ping extends RequestMessage {
+
+        public Ping() {}
+
+        public Ping(String nickname) {
+            setNickname(nickname);
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.PING;
+        }
+    }
+
+    /**
+     * percentili delle latenze misurate dal server (vedi LatencyStats)
+     */
+    public static class Stats extends RequestMessage {
+
+        public Stats() {}
+
+        public Stats(String nickname) {
+            setNickname(nickname);
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.STATS;
+        }
+    }
+
+    /**
+     * più operazioni eseguite in un solo round trip (vedi RequestDispatcher.dispatchBatch)
+     */
+    public static class Batch extends RequestMessage {
+
+        private ArrayList<RequestMessage> batch;
+
+        public Batch() {}
+
+        public Batch(String nickname, ArrayList<RequestMessage> batch) {
+            setNickname(nickname);
+            this.batch = batch;
+        }
+
+        @Override
+        public Request getRequest() {
+            return Request.BATCH;
+        }
+
+        public ArrayList<RequestMessage> getBatch() {
+            return batch;
+        }
+
+        public void setBatch(ArrayList<RequestMessage> batch) {
+            this.batch = batch;
+        }
+    }
+}
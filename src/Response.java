@@ -16,5 +16,8 @@ public enum Response {      //methods:
     MOVE_CARD_FORBIDDEN,    //move_card
     UNKNOWN_ERROR,          //logout
     DELETE_FORBIDDEN,       //delete_project
-    UNABLE_CREATE_PROJECT   //create_project (indirizzi multicast esauriti)
+    UNABLE_CREATE_PROJECT,  //create_project (indirizzi multicast esauriti)
+    INVALID_CURSOR,         //list_projects, show_members, show_cards (cursore di pagina non valido)
+    SERVER_BUSY,            //tutte (server saturo, riprovare più tardi)
+    VERSION_CONFLICT        //add_member, move_card (versione attesa diversa da quella corrente)
 }
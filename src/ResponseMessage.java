@@ -0,0 +1,380 @@
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Risposta del server ad una richiesta: riporta l'operazione a cui risponde, il responso e, per le
+ * operazioni che restituiscono dati, il solo contenuto previsto per quell'operazione.
+ * Le operazioni senza dati di ritorno usano direttamente questa classe.
+ * In json il tipo è indicato dal campo "request", con i nomi dei campi del vecchio messaggio unico
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.EXISTING_PROPERTY, property = "request",
+        visible = true, defaultImpl = ResponseMessage.class)
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = ResponseMessage.LoginResult.class, name = "LOGIN"),
+        @JsonSubTypes.Type(value = ResponseMessage.ProjectList.class, name = "LIST_ALL_PROJECTS"),
+        @JsonSubTypes.Type(value = ResponseMessage.MemberList.class, name = "SHOW_ALL_MEMBERS"),
+        @JsonSubTypes.Type(value = ResponseMessage.CardList.class, name = "SHOW_ALL_CARDS"),
+        @JsonSubTypes.Type(value = ResponseMessage.CardDetail.class, name = "SHOW_CARD"),
+        @JsonSubTypes.Type(value = ResponseMessage.BatchResult.class, name = "BATCH"),
+        @JsonSubTypes.Type(value = ResponseMessage.StatsResult.class, name = "STATS"),
+        @JsonSubTypes.Type(value = ResponseMessage.HistoryPage.class, name = "CARD_HISTORY"),
+        @JsonSubTypes.Type(value = ResponseMessage.SearchResult.class, name = "SEARCH_CARDS"),
+        @JsonSubTypes.Type(value = ResponseMessage.BoardResult.class, name = "BOARD_SUMMARY")
+})
+public class ResponseMessage extends WireMessage {
+
+    /** operazione a cui si riferisce la risposta */
+    private Request request;
+
+    /** responso del server */
+    private Response response;
+
+    public ResponseMessage() {}
+
+    public ResponseMessage(Request request) {
+        this.request = request;
+    }
+
+    public ResponseMessage(Request request, Response response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    /**
+     * crea una risposta vuota del tipo previsto per l'operazione (usato dalla decodifica binaria)
+     *
+     * @param request operazione a cui si risponde
+     * @return risposta con tutti i campi a null
+     */
+    public static ResponseMessage of(Request request) {
+        switch (request) {
+            case LOGIN: return new LoginResult();
+            case LIST_ALL_PROJECTS: return new ProjectList();
+            case SHOW_ALL_MEMBERS: return new MemberList();
+            case SHOW_ALL_CARDS: return new CardList();
+            case SHOW_CARD: return new CardDetail();
+            case BATCH: return new BatchResult();
+            case STATS: return new StatsResult();
+            case CARD_HISTORY: return new HistoryPage();
+            case SEARCH_CARDS: return new SearchResult();
+            case BOARD_SUMMARY: return new BoardResult();
+            default: return new ResponseMessage(request);
+        }
+    }
+
+    @Override
+    public Request getRequest() {
+        return request;
+    }
+
+    /**
+     *
+     * @return  response del server
+     */
+    public Response getResponse() {
+        return response;
+    }
+
+    /**
+     *
+     * @param response  risposta del server per l'operazione richiesta dal client
+     */
+    public void setResponse(Response response) {
+        this.response = response;
+    }
+
+    /**
+     * risposta al login: l'user con la lista degli utenti registrati e delle chat
+     */
+    public static class LoginResult extends ResponseMessage {
+
+        private User user;
+
+        public LoginResult() {
+            super(Request.LOGIN);
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public void setUser(User user) {
+            this.user = user;
+        }
+    }
+
+    /**
+     * parte comune delle risposte che contengono una pagina di una lista (vedi RequestMessage.Paged)
+     */
+    public abstract static class PagedResult extends ResponseMessage {
+
+        /** numero totale di elementi della lista */
+        private int total;
+        /** cursore da inviare per ottenere la pagina successiva (null se questa è l'ultima) */
+        private String nextCursor;
+
+        PagedResult(Request request) {
+            super(request);
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public void setTotal(int total) {
+            this.total = total;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public void setNextCursor(String nextCursor) {
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    /**
+     * progetti di cui l'utente fa parte
+     */
+    public static class ProjectList extends PagedResult {
+
+        private ArrayList<Project> projects;
+
+        public ProjectList() {
+            super(Request.LIST_ALL_PROJECTS);
+        }
+
+        public ArrayList<Project> getProjects() {
+            return projects;
+        }
+
+        public void setProjects(ArrayList<Project> projects) {
+            this.projects = projects;
+        }
+    }
+
+    /**
+     * membri di un progetto
+     */
+    public static class MemberList extends PagedResult {
+
+        private List<String> members;
+
+        public MemberList() {
+            super(Request.SHOW_ALL_MEMBERS);
+        }
+
+        public List<String> getMembers() {
+            return members;
+        }
+
+        public void setMembers(List<String> members) {
+            this.members = members;
+        }
+    }
+
+    /**
+     * card di un progetto
+     */
+    public static class CardList extends PagedResult {
+
+        private List<Card> cards;
+
+        public CardList() {
+            super(Request.SHOW_ALL_CARDS);
+        }
+
+        public List<Card> getCards() {
+            return cards;
+        }
+
+        public void setCards(List<Card> cards) {
+            this.cards = cards;
+        }
+    }
+
+    /**
+     * una singola card
+     */
+    public static class CardDetail extends ResponseMessage {
+
+        private Card card;
+
+        public CardDetail() {
+            super(Request.SHOW_CARD);
+        }
+
+        public Card getCard() {
+            return card;
+        }
+
+        public void setCard(Card card) {
+            this.card = card;
+        }
+    }
+
+    /**
+     * eventi dello storico di una card
+     */
+    public static class HistoryPage extends PagedResult {
+
+        private ArrayList<CardHistory.Event> events;
+
+        public HistoryPage() {
+            super(Request.CARD_HISTORY);
+        }
+
+        public ArrayList<CardHistory.Event> getEvents() {
+            return events;
+        }
+
+        public void setEvents(ArrayList<CardHistory.Event> events) {
+            this.events = events;
+        }
+    }
+
+    /**
+     * card trovate dalla ricerca, in ordine di punteggio
+     */
+    public static class SearchResult extends PagedResult {
+
+        private ArrayList<CardIndex.Hit> hits;
+
+        public SearchResult() {
+            super(Request.SEARCH_CARDS);
+        }
+
+        public ArrayList<CardIndex.Hit> getHits() {
+            return hits;
+        }
+
+        public void setHits(ArrayList<CardIndex.Hit> hits) {
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * riepilogo della board di un progetto, letto dai contatori mantenuti dal server
+     */
+    public static class BoardResult extends ResponseMessage {
+
+        /** versione del progetto a cui si riferisce il riepilogo */
+        private long version;
+        /** card in lavorazione (liste INPROGRESS e TOBEREVISED) */
+        private int workInProgress;
+        /** una voce per ogni lista, nell'ordine di CardState */
+        private ArrayList<ListSummary> lists;
+
+        public BoardResult() {
+            super(Request.BOARD_SUMMARY);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public void setVersion(long version) {
+            this.version = version;
+        }
+
+        public int getWorkInProgress() {
+            return workInProgress;
+        }
+
+        public void setWorkInProgress(int workInProgress) {
+            this.workInProgress = workInProgress;
+        }
+
+        public ArrayList<ListSummary> getLists() {
+            return lists;
+        }
+
+        public void setLists(ArrayList<ListSummary> lists) {
+            this.lists = lists;
+        }
+    }
+
+    /**
+     * numero di card in una lista e tempo medio trascorso nella lista dalle card che l'hanno lasciata
+     */
+    public static class ListSummary {
+
+        private CardState list;
+        private int cards;
+        /** permanenze concluse su cui è calcolata la media */
+        private int completedStays;
+        /** tempo medio di permanenza in millisecondi (0 se nessuna card ha lasciato la lista) */
+        private long averageMillis;
+
+        public ListSummary() {}
+
+        public ListSummary(CardState list, int cards, int completedStays, long averageMillis) {
+            this.list = list;
+            this.cards = cards;
+            this.completedStays = completedStays;
+            this.averageMillis = averageMillis;
+        }
+
+        public CardState getList() {
+            return list;
+        }
+
+        public int getCards() {
+            return cards;
+        }
+
+        public int getCompletedStays() {
+            return completedStays;
+        }
+
+        public long getAverageMillis() {
+            return averageMillis;
+        }
+    }
+
+    /**
+     * un responso per ogni sotto-operazione di un batch, nello stesso ordine
+     */
+    public static class BatchResult extends ResponseMessage {
+
+        private ArrayList<ResponseMessage> batch;
+
+        public BatchResult() {
+            super(Request.BATCH);
+        }
+
+        public ArrayList<ResponseMessage> getBatch() {
+            return batch;
+        }
+
+        public void setBatch(ArrayList<ResponseMessage> batch) {
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * percentili delle latenze del server per tipo di richiesta e fase
+     */
+    public static class StatsResult extends ResponseMessage {
+
+        private ArrayList<LatencyStats.Entry> latencies;
+
+        public StatsResult() {
+            super(Request.STATS);
+        }
+
+        public ArrayList<LatencyStats.Entry> getLatencies() {
+            return latencies;
+        }
+
+        public void setLatencies(ArrayList<LatencyStats.Entry> latencies) {
+            this.latencies = latencies;
+        }
+    }
+}
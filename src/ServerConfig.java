@@ -0,0 +1,257 @@
+/**
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class ServerConfig {
+
+    /** modalità di gestione delle connessioni TCP */
+    public enum Transport {
+        /** un ServerThread bloccante per ogni client connesso */
+        THREADS,
+        /** event loop non bloccante basato su Selector e un piccolo pool di worker */
+        NIO,
+        /** un ServerThread per ogni client, eseguito su un virtual thread (JDK 21+) */
+        VIRTUAL
+    }
+
+    /** porta server socket */
+    private final int portTCP;
+
+    /** porta servizio di registry */
+    private final int portRegistry;
+
+    /** modalità di trasporto scelta all'avvio */
+    private Transport transport;
+
+    /** numero di thread worker usati dalla modalità NIO (e per le richieste in pipeline in modalità THREADS) */
+    private int workers;
+
+    /** numero massimo di thread del pool nella modalità THREADS (un thread per client connesso) */
+    private int maxThreads;
+
+    /** numero massimo di richieste NIO in attesa di un worker, oltre il quale si risponde SERVER_BUSY */
+    private int queueSize;
+
+    /** numero di thread (o event loop NIO) che accettano le connessioni */
+    private int acceptors;
+
+    /** lunghezza della coda delle connessioni in attesa di essere accettate */
+    private int backlog;
+
+    /** secondi senza richieste dopo i quali una connessione viene chiusa (0 = mai) */
+    private int idleTimeout;
+
+    /** dimensione in byte oltre la quale le risposte vengono compresse (0 = mai) */
+    private int compressionThreshold;
+
+    /** secondi tra due stampe periodiche delle latenze (0 = mai) */
+    private int statsInterval;
+
+    /** millisecondi oltre i quali una richiesta viene riportata nel log delle richieste lente (0 = mai) */
+    private int slowRequestMillis;
+
+    /** dimensione massima in byte di un frame ricevuto, anche dopo la decompressione */
+    private int maxFrameSize;
+
+    public ServerConfig(int portTCP, int portRegistry) {
+        this.portTCP = portTCP;
+        this.portRegistry = portRegistry;
+        this.transport = Transport.THREADS;
+        this.workers = Runtime.getRuntime().availableProcessors();
+        this.maxThreads = 256;
+        this.queueSize = 1024;
+        this.acceptors = 1;
+        this.backlog = 1024;
+        this.idleTimeout = 90;
+        this.compressionThreshold = 8 * 1024;
+        this.statsInterval = 0;
+        this.slowRequestMillis = 1000;
+        this.maxFrameSize = FrameCodec.DEFAULT_MAX_FRAME_SIZE;
+    }
+
+    /**
+     * legge le opzioni passate da linea di comando nella forma --chiave=valore
+     *
+     * @param args argomenti del main
+     * @return this, per concatenare le chiamate
+     * @throws IllegalArgumentException se un'opzione non è riconosciuta o ha un valore non valido
+     */
+    public ServerConfig parseArgs(String[] args) {
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2 || !option[0].startsWith("--"))
+                throw new IllegalArgumentException("Opzione non valida: " + arg);
+            String value = option[1];
+            switch (option[0]) {
+                case "--transport":
+                    transport = Transport.valueOf(value.toUpperCase());
+                    break;
+                case "--workers":
+                    workers = positive(option[0], value);
+                    break;
+                case "--max-threads":
+                    maxThreads = positive(option[0], value);
+                    break;
+                case "--queue-size":
+                    queueSize = positive(option[0], value);
+                    break;
+                case "--acceptors":
+                    acceptors = positive(option[0], value);
+                    break;
+                case "--backlog":
+                    backlog = positive(option[0], value);
+                    break;
+                case "--idle-timeout":
+                    idleTimeout = nonNegative(option[0], value);
+                    break;
+                case "--compression-threshold":
+                    compressionThreshold = nonNegative(option[0], value);
+                    break;
+                case "--stats-interval":
+                    statsInterval = nonNegative(option[0], value);
+                    break;
+                case "--slow-request-ms":
+                    slowRequestMillis = nonNegative(option[0], value);
+                    break;
+                case "--max-frame-size":
+                    maxFrameSize = positive(option[0], value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Opzione sconosciuta: " + option[0]);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return porta server socket
+     */
+    public int getPortTCP() {
+        return portTCP;
+    }
+
+    /**
+     * @return porta servizio di registry
+     */
+    public int getPortRegistry() {
+        return portRegistry;
+    }
+
+    /**
+     * @return modalità di trasporto scelta all'avvio
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return numero di thread worker usati dalla modalità NIO (e per le richieste in pipeline in
+     * modalità THREADS)
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return numero massimo di thread del pool nella modalità THREADS
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * @return numero massimo di richieste in attesa di un worker (modalità NIO; in modalità THREADS
+     * le connessioni non attendono mai un thread)
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @return numero di thread (o event loop NIO) che accettano le connessioni
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @return lunghezza della coda delle connessioni in attesa di essere accettate
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return secondi senza richieste dopo i quali una connessione viene chiusa (0 = mai)
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @return dimensione in byte oltre la quale le risposte vengono compresse (0 = mai)
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @return secondi tra due stampe periodiche delle latenze (0 = mai)
+     */
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * @return millisecondi oltre i quali una richiesta viene riportata nel log delle richieste lente (0 = mai)
+     */
+    public int getSlowRequestMillis() {
+        return slowRequestMillis;
+    }
+
+    /**
+     * @return dimensione massima in byte di un frame ricevuto, anche dopo la decompressione
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * converte il valore di un'opzione in un intero strettamente positivo
+     *
+     * @param name nome dell'opzione (usato nel messaggio di errore)
+     * @param value valore da convertire
+     * @return valore convertito
+     */
+    private static int positive(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0)
+            throw new IllegalArgumentException("Il valore di " + name + " deve essere positivo");
+        return n;
+    }
+
+    /**
+     * converte il valore di un'opzione in un intero maggiore o uguale a zero
+     *
+     * @param name nome dell'opzione (usato nel messaggio di errore)
+     * @param value valore da convertire
+     * @return valore convertito
+     */
+    private static int nonNegative(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n < 0)
+            throw new IllegalArgumentException("Il valore di " + name + " non può essere negativo");
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return "transport=" + transport + ", workers=" + workers +
+                ", maxThreads=" + maxThreads + ", queueSize=" + queueSize +
+                ", acceptors=" + acceptors + ", backlog=" + backlog +
+                ", idleTimeout=" + idleTimeout +
+                ", compressionThreshold=" + compressionThreshold +
+                ", statsInterval=" + statsInterval +
+                ", slowRequestMillis=" + slowRequestMillis +
+                ", maxFrameSize=" + maxFrameSize;
+    }
+}
@@ -10,6 +10,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -21,20 +22,37 @@ import java.rmi.server.RemoteObject;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Giuseppe Muschetta 564026 corso A
  */
 public class ServerCore extends RemoteObject implements ServerInterface {
 
+    /** configurazione scelta all'avvio */
+    private final ServerConfig config;
     /** threadpool usato per gestire le richieste dei client connessi */
     private final ExecutorService pool;
+    /** threadpool che esegue le richieste inviate in pipeline dai client gestiti da ServerThread */
+    private final ExecutorService pipelinePool;
     /** istanza del servizio worth contenente tutte le funzionalità */
     private final WorthCore service;
+    /** connessioni aperte, chiuse dopo idleTimeout secondi senza richieste */
+    private final ConnectionRegistry connections;
+    /** risponde SERVER_BUSY alle connessioni rifiutate dal pool */
+    private final BusyResponder busyResponder;
+    /** smista le richieste dei client verso le funzionalità del servizio */
+    private final RequestDispatcher dispatcher;
     /** lista degli stub dei clients registrati per le callbacks */
     private final ArrayList<ClientInterface> callbackClients;
+    /** utente di ogni client registrato per le callbacks con il nickname */
+    private final ConcurrentHashMap<ClientInterface, String> callbackNicknames;
     /** porta server socket */
     private final int portTCP;
     /** porta servizio di registry */
@@ -49,15 +67,40 @@ public class ServerCore extends RemoteObject implements ServerInterface {
     /** nome file che conserva i dati dei membri di un progetto */
     private final String membersFilename;
 
-    public ServerCore(int portTCP, int portRegistry){
-        pool = Executors.newCachedThreadPool();
-        service = new WorthCore(this);
+    public ServerCore(ServerConfig config){
+        this.config = config;
+        //in modalità NIO il pool esegue solo le richieste già decodificate, quindi bastano pochi worker;
+        //in modalità VIRTUAL ogni ServerThread gira su un proprio virtual thread.
+        //Negli altri casi il pool è limitato e senza coda: una connessione occupa il thread finché resta
+        //aperta, quindi se non c'è un thread libero il client riceve subito SERVER_BUSY invece di attendere
+        switch (config.getTransport()) {
+            case NIO:
+                pool = new WorkerPool(config.getWorkers(), config.getQueueSize());
+                break;
+            case VIRTUAL:
+                pool = newVirtualThreadPool();
+                break;
+            default:
+                pool = new WorkerPool(config.getMaxThreads(), 0);
+        }
+        //le richieste in pipeline non usano il pool delle connessioni: il thread della connessione
+        //le attende, e se fossero in coda dietro ad altre connessioni il server si bloccherebbe
+        pipelinePool = config.getTransport() == ServerConfig.Transport.VIRTUAL ? pool
+                : newPipelinePool(config.getWorkers());
+        SlowRequestLog.SHARED.setThreshold(config.getSlowRequestMillis());
+        busyResponder = new BusyResponder();
+        connections = new ConnectionRegistry(config.getIdleTimeout());
+        service = new WorthCore(this, config.getTransport() == ServerConfig.Transport.VIRTUAL);
+        dispatcher = new RequestDispatcher(service);
         callbackClients = new ArrayList<>();
-        this.portTCP = portTCP;
-        this.portRegistry = portRegistry;
+        callbackNicknames = new ConcurrentHashMap<>();
+        new ServerMonitor(config, pool, connections, service, callbackClients).register();
+        this.portTCP = config.getPortTCP();
+        this.portRegistry = config.getPortRegistry();
         mapper = new ObjectMapper();
         mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
         mapper.setDateFormat(new SimpleDateFormat("dd-MMM-yy"));
+        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
         saveFolder = "res";
         usersFilename = "users.json";
         membersFilename = "members.json";
@@ -68,6 +111,10 @@ public class ServerCore extends RemoteObject implements ServerInterface {
      * Il server accetta le richieste di connessione in entrata e delega la gestione del
      * client ad un threadpool che esegue il task ServerThread che si occupa dell'intera
      * comunicazione con il client.
+     * Con il trasporto NIO invece un solo thread gestisce tutte le connessioni e il threadpool
+     * esegue soltanto le singole richieste (vedi NioServer).
+     * Con più acceptor (--acceptors) le connessioni vengono accettate da più thread, o da più
+     * event loop NIO, ognuno sul proprio socket di ascolto se possibile (vedi Listeners).
      */
     public void begin(){
         //loadingResources() carica un file generale per tutti glli utenti registrati
@@ -77,17 +124,57 @@ public class ServerCore extends RemoteObject implements ServerInterface {
         loadingResources();
         try{
             exportingRMIobject();
-            ServerSocket ss = new ServerSocket(portTCP);
+            int acceptors = config.getAcceptors();
+            if (config.getTransport() == ServerConfig.Transport.NIO) {
+                ServerSocketChannel[] channels = Listeners.channels(portTCP, acceptors, config.getBacklog());
+                System.out.println("Server (NIO) in attesa di connessioni sulla porta " + portTCP);
+                for (int i = 1; i < acceptors; i++) {
+                    NioServer loop = new NioServer(channels[i], dispatcher, pool, connections,
+                            config.getCompressionThreshold(), config.getMaxFrameSize());
+                    new Thread(loop, "nio-" + i).start();
+                }
+                new NioServer(channels[0], dispatcher, pool, connections, config.getCompressionThreshold(),
+                        config.getMaxFrameSize()).run();
+                return;
+            }
+            ServerSocket[] sockets = Listeners.serverSockets(portTCP, acceptors, config.getBacklog());
             System.out.println("Server in attesa di connessioni sulla porta "+portTCP);
-            while(true){
-                Socket clientSocket = ss.accept();
-                pool.submit(new ServerThread(clientSocket, service));
+            for (int i = 1; i < acceptors; i++) {
+                ServerSocket ss = sockets[i];
+                new Thread(() -> acceptLoop(ss), "acceptor-" + i).start();
             }
+            acceptLoop(sockets[0]);
         }catch(IOException e){
             e.printStackTrace();
         }
     }
 
+    /**
+     * accetta le connessioni su un socket di ascolto e passa ogni client al threadpool
+     *
+     * @param ss socket di ascolto
+     */
+    private void acceptLoop(ServerSocket ss) {
+        while(true){
+            Socket clientSocket;
+            try {
+                clientSocket = ss.accept();
+            } catch (IOException e) {
+                //errore sulla singola connessione (es. descrittori esauriti): l'acceptor continua
+                e.printStackTrace();
+                continue;
+            }
+            ServerStats.SHARED.accepted();
+            try {
+                pool.execute(new ServerThread(clientSocket, dispatcher, pipelinePool, connections,
+                        config.getCompressionThreshold(), config.getMaxFrameSize()));
+            } catch (RejectedExecutionException e) {
+                //pool saturo: il client riceve SERVER_BUSY senza occupare un thread del pool
+                busyResponder.reject(clientSocket);
+            }
+        }
+    }
+
     /**
      * registra l'utente al servizio con nickname e password forniti
      *
@@ -105,17 +192,11 @@ public class ServerCore extends RemoteObject implements ServerInterface {
         } catch (Exception e) {
             e.printStackTrace();
         }
-        //sincronizzo sulla lista di utenti registrati perchè in un dato momento ci possono essere
+        //l'aggiunta avviene in mutua esclusione perchè in un dato momento ci possono essere
         //diversi thread ServerThread che per soddisfare le richieste del client possono invocare metodi
         //della classe WorthCore i quali modificano lo stato di questa lista
-        synchronized (service.getRegisteredUsers()) {
-            //l'utente esiste già
-            if (service.getRegisteredUsers().contains(user)) {
-                return Response.USER_EXISTS;
-            }
-            //aggiungo l'utente alla lista degli utenti registrati
-            service.getRegisteredUsers().add(user);
-            saveUsers();
+        if (!service.addUser(user)) {
+            return Response.USER_EXISTS;
         }
         //arrivati qui c'è stato un cambiamento di stato degli utenti registrati al servizio,
         //faccio la update per innescare le callbacks ai clients registrati
@@ -144,6 +225,22 @@ public class ServerCore extends RemoteObject implements ServerInterface {
         }
     }
 
+    /**
+     * registra il client per le callbacks; le notifiche sui progetti gli invieranno solo
+     * i progetti di cui l'utente è membro, invece di tutti i progetti creati
+     *
+     * @param clientStub stub/proxy corrispondente al riferimento remoto dell'oggetto client
+     *                   utilizzato dal server per le callbacks
+     * @param nickname nome utente che ha effettuato il login sul client
+     * @throws RemoteException -
+     */
+    @Override
+    public synchronized void registerForCallback(ClientInterface clientStub, String nickname) throws RemoteException {
+        if (nickname != null)
+            callbackNicknames.put(clientStub, nickname);
+        registerForCallback(clientStub);
+    }
+
     /**
      * annulla la registrazione del client per le callbacks
      *
@@ -154,6 +251,7 @@ public class ServerCore extends RemoteObject implements ServerInterface {
     @Override
     public synchronized void unregisterForCallback(ClientInterface clientStub) throws RemoteException {
         callbackClients.remove(clientStub);
+        callbackNicknames.remove(clientStub);
         //l'update vero e proprio della callback lo faccio dentro alla classe Worthcore nel metodo logout
         //perchè se un client si chiude con ctrl-c anzichè effettuare correttamente il logout
         //l'update agli altri client non perviene.
@@ -162,41 +260,45 @@ public class ServerCore extends RemoteObject implements ServerInterface {
 
     /** scrive il file degli utenti registrati */
     public void saveUsers() {
+        long start = ServerStats.SHARED.saveStarted();
         try {
             File userFile = new File(saveFolder + File.separator + usersFilename);
             //mapper.writeValue(userFile, service.getRegisteredUsers());
             writeFile(userFile.toString(), service.getRegisteredUsers());
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            ServerStats.SHARED.saveFinished(start);
         }
     }
 
 
     /**
      * utility usata dalla classe WorthCore
-     * scrive i file di un progetto nella directory relativa
+     * scrive le modifiche di un progetto nella directory relativa: il file dei membri,
+     * se sono cambiati, e i file delle sole cards aggiunte o spostate
      */
-    public void saveProject(Project project) {
-        File projectDir = new File(saveFolder + File.separator + project.getName());
+    public void saveProject(Project.Changes changes) {
+        File projectDir = new File(saveFolder + File.separator + changes.getName());
         File membersFile = new File(projectDir + File.separator + membersFilename);
+        long start = ServerStats.SHARED.saveStarted();
         try {
-            if (!projectDir.exists()) {
+            if (!projectDir.exists())
                 projectDir.mkdir();
-                membersFile.createNewFile();
-                //mapper.writeValue(membersFile, project.getMembers());
-                writeFile(membersFile.toString(), project.getMembers());
-            } else {
-                //se la directory del progetto esiste gia' aggiorno membri e card
-                //mapper.writeValue(membersFile, project.getMembers());
-                writeFile(membersFile.toString(), project.getMembers());
-                for (Card card : project.getCards()) {
-                    File cardFile = new File(projectDir + File.separator + card.getName() + ".json");
-                    //mapper.writeValue(cardFile, card);
-                    writeFile(cardFile.toString(), card);
-                }
+            //il primo salvataggio di un progetto contiene sempre i membri (e, se il progetto
+            //è stato creato all'interno di un batch, anche le card già aggiunte)
+            //mapper.writeValue(membersFile, project.getMembers());
+            if (changes.getMembers() != null)
+                writeFile(membersFile.toString(), changes.getMembers());
+            for (Card card : changes.getCards()) {
+                File cardFile = new File(projectDir + File.separator + card.getName() + ".json");
+                //mapper.writeValue(cardFile, card);
+                writeFile(cardFile.toString(), card);
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            ServerStats.SHARED.saveFinished(start);
         }
     }
 
@@ -206,7 +308,12 @@ public class ServerCore extends RemoteObject implements ServerInterface {
      */
     public void deleteProject(Project project){
         String projectPath = saveFolder + File.separator + project.getName();
-        deleteDirectory(projectPath);
+        long start = ServerStats.SHARED.saveStarted();
+        try {
+            deleteDirectory(projectPath);
+        } finally {
+            ServerStats.SHARED.saveFinished(start);
+        }
     }
 
     /**
@@ -234,7 +341,7 @@ public class ServerCore extends RemoteObject implements ServerInterface {
                         .readValue(readFile(userFile.toString()).getBytes(StandardCharsets.UTF_8));
                 for (User user : users) {
                     user.setOnline(false);
-                    service.getRegisteredUsers().add(user);
+                    service.restoreUser(user);
                 }
             }
             //leggo i progetti
@@ -256,7 +363,7 @@ public class ServerCore extends RemoteObject implements ServerInterface {
                             .readValue(readFile(membersFile.toString()).getBytes(StandardCharsets.UTF_8));
 
                     for (String member : members) {
-                        project.getMembers().add(member);
+                        project.addMember(member);
                     }
                     // leggo le card del progetto
                     String[] cardfiles = projectDirectory.list();
@@ -270,16 +377,15 @@ public class ServerCore extends RemoteObject implements ServerInterface {
                                     })
                                     .readValue(readFile(cardFile.toString()).getBytes(StandardCharsets.UTF_8));
 
-                            //prendo da ogni card l'ultima lista in cui si trovava
-                            project.parseList(card.getPosition()).add(card);
-                            project.getCards().add(card);
+                            //la card viene inserita nella lista in cui si trovava
+                            project.addCard(card);
                         }
                     }
                     //all'avvio del server carico i progetti e assegno nuovi indirizzi di chat ad ognuno
                     //ogni progetto ha la sua chat multicast con il suo proprio indirizzo IP di chat
                     //ad ogni avvio del server riassegno gli indirizzi ai progetti (e quindi alla sua chat)
                     service.bindChatAddress(project);
-                    service.getCreatedProjects().add(project);
+                    service.restoreProject(project);
                 }
             }
         } catch (IOException e) {
@@ -287,6 +393,35 @@ public class ServerCore extends RemoteObject implements ServerInterface {
         }
     }
 
+    /**
+     * crea il pool per le richieste in pipeline: al più maxThreads thread e nessuna coda, un task
+     * viene eseguito subito da un thread del pool oppure dal thread che lo sottomette. Chi attende
+     * una richiesta in pipeline attende quindi sempre un task già in esecuzione
+     *
+     * @param maxThreads numero massimo di thread (i thread inattivi terminano dopo un minuto)
+     * @return pool per le richieste in pipeline
+     */
+    private static ExecutorService newPipelinePool(int maxThreads) {
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * crea un executor che avvia un nuovo virtual thread per ogni task.
+     * Il metodo viene cercato via reflection così il server si compila ed esegue anche
+     * su JVM precedenti alla 21, dove si ripiega su un cached thread pool
+     *
+     * @return executor con un virtual thread per task, se disponibile
+     */
+    private static ExecutorService newVirtualThreadPool() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Server: virtual thread non disponibili su questa JVM, uso un cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     /** esportazione oggetto RMI */
     private void exportingRMIobject() throws RemoteException {
         //esporto l'oggetto this per l'invocazione dei metodi remoti da parte del client
@@ -311,16 +446,23 @@ public class ServerCore extends RemoteObject implements ServerInterface {
      *  lista dei client registrati per le callback
      */
     public void updateClientChats() {
+        long start = System.nanoTime();
         int i = 0;
         while (i < callbackClients.size()) {
             try {
-                callbackClients.get(i).notifyChatsEvent(service.getCreatedProjects());
+                ClientInterface client = callbackClients.get(i);
+                //ai client registrati con il nickname vengono inviati solo i progetti dell'utente,
+                //sempre nella versione pubblicata che può essere serializzata senza lock
+                String nickname = callbackNicknames.get(client);
+                client.notifyChatsEvent(service.publishedProjectsOf(nickname));
             } catch (Exception e){
+                callbackNicknames.remove(callbackClients.get(i));
                 if(callbackClients.remove(callbackClients.get(i)))
                     continue;
             }
             i++;
         }
+        LatencyStats.add(LatencyStats.Phase.CALLBACK, System.nanoTime() - start);
     }
 
 
@@ -338,16 +480,19 @@ public class ServerCore extends RemoteObject implements ServerInterface {
      * lista dei client registrati per le callback
      */
     public void updateClientUsers() {
+        long start = System.nanoTime();
         int i = 0;
         while (i < callbackClients.size()) {
             try {
                 callbackClients.get(i).notifyUserEvent(service.getRegisteredUsers());
             } catch (Exception e){
+                callbackNicknames.remove(callbackClients.get(i));
                 if(callbackClients.remove(callbackClients.get(i)))
                     continue;
             }
             i++;
         }
+        LatencyStats.add(LatencyStats.Phase.CALLBACK, System.nanoTime() - start);
     }
 
     /**
@@ -376,12 +521,13 @@ public class ServerCore extends RemoteObject implements ServerInterface {
      */
     private void writeFile(String pathName, Object objToWrite) throws IOException {
         Path path = Paths.get(pathName);
-        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-        byte[] arrayDiByte = mapper.writeValueAsString(objToWrite).getBytes();
+        byte[] arrayDiByte = mapper.writeValueAsBytes(objToWrite);
         ByteBuffer byteBuffer = ByteBuffer.wrap(arrayDiByte);
-        while (byteBuffer.hasRemaining())
-            fileChannel.write(byteBuffer);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (byteBuffer.hasRemaining())
+                fileChannel.write(byteBuffer);
+        }
     }
 
     /**
@@ -393,15 +539,16 @@ public class ServerCore extends RemoteObject implements ServerInterface {
      */
     private String readFile(String filename) throws IOException {
         Path path = Paths.get(filename);
-        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
         ByteBuffer byteBuffer = ByteBuffer.allocate(8192);
         StringBuilder stringBuilder = new StringBuilder();
-        while (fileChannel.read(byteBuffer) != -1) {
-            byteBuffer.flip();
-            while (byteBuffer.hasRemaining()) {
-                stringBuilder.append(StandardCharsets.UTF_8.decode(byteBuffer).toString());
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (fileChannel.read(byteBuffer) != -1) {
+                byteBuffer.flip();
+                while (byteBuffer.hasRemaining()) {
+                    stringBuilder.append(StandardCharsets.UTF_8.decode(byteBuffer).toString());
+                }
+                byteBuffer.clear();
             }
-            byteBuffer.clear();
         }
         return stringBuilder.toString();
     }
@@ -25,6 +25,17 @@ public interface ServerInterface extends Remote {
      */
     void registerForCallback(ClientInterface clientStub) throws RemoteException;
 
+    /**
+     * registra il client per le callbacks indicando l'utente che ha effettuato il login:
+     * le notifiche sui progetti riporteranno solo i progetti di cui l'utente è membro
+     *
+     * @param clientStub stub/proxy corrispondente al riferimento remoto dell'oggetto client
+     *                   utilizzato dal server per le callbacks
+     * @param nickname nome utente che ha effettuato il login sul client
+     * @throws RemoteException -
+     */
+    void registerForCallback(ClientInterface clientStub, String nickname) throws RemoteException;
+
     /**
      * deregistra il client per le callbacks
      *
@@ -1,3 +1,7 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Giuseppe Muschetta 564026 corso A
  */
@@ -9,10 +13,24 @@ public class ServerMain {
 
     public static void main(String[] args) {
 
-        ServerCore server = new ServerCore(portTCP, portRegistry);
+        ServerConfig config = new ServerConfig(portTCP, portRegistry).parseArgs(args);
+        ServerCore server = new ServerCore(config);
+        //alla chiusura del server stampa i contatori raccolti
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                System.out.println("Server: " + ServerStats.SHARED.report())));
+        //stampa periodica delle latenze per tipo di richiesta, se richiesta con --stats-interval
+        if (config.getStatsInterval() > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "stats-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() ->
+                    System.out.println("Server: latenze\n" + LatencyStats.format(LatencyStats.SHARED.snapshot())),
+                    config.getStatsInterval(), config.getStatsInterval(), TimeUnit.SECONDS);
+        }
         server.begin();
 
     }
 
 }
-
@@ -0,0 +1,174 @@
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Implementazione dell'MXBean del server: ogni attributo viene letto al momento della
+ * richiesta dalle strutture del server, senza copie né contatori aggiuntivi
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class ServerMonitor implements ServerMonitorMXBean {
+
+    /** nome con cui l'MXBean è registrato nel platform MBeanServer */
+    public static final String OBJECT_NAME = "WORTH:type=Server";
+
+    private final ServerConfig config;
+    /** pool del server (null se non è un ThreadPoolExecutor, come con i virtual thread) */
+    private final ThreadPoolExecutor pool;
+    private final ConnectionRegistry connections;
+    private final WorthCore service;
+    private final ArrayList<ClientInterface> callbackClients;
+
+    /**
+     * @param config configurazione del server
+     * @param pool pool che esegue le richieste
+     * @param connections registro delle connessioni aperte
+     * @param service servizio con utenti e progetti
+     * @param callbackClients stub dei client registrati per le callbacks
+     */
+    public ServerMonitor(ServerConfig config, ExecutorService pool, ConnectionRegistry connections,
+                         WorthCore service, ArrayList<ClientInterface> callbackClients) {
+        this.config = config;
+        this.pool = pool instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) pool : null;
+        this.connections = connections;
+        this.service = service;
+        this.callbackClients = callbackClients;
+    }
+
+    /**
+     * registra l'MXBean nel platform MBeanServer; un errore non impedisce l'avvio del server
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String getTransport() {
+        return config.getTransport().name();
+    }
+
+    @Override
+    public int getPoolActiveThreads() {
+        return pool == null ? -1 : pool.getActiveCount();
+    }
+
+    @Override
+    public int getPoolThreads() {
+        return pool == null ? -1 : pool.getPoolSize();
+    }
+
+    @Override
+    public int getPoolMaxThreads() {
+        return pool == null ? -1 : pool.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getPoolQueueSize() {
+        return pool == null ? -1 : pool.getQueue().size();
+    }
+
+    @Override
+    public int getPoolQueueCapacity() {
+        return pool instanceof WorkerPool ? ((WorkerPool) pool).getQueueCapacity() : -1;
+    }
+
+    @Override
+    public long getRejectedTasks() {
+        return ServerStats.SHARED.rejectedTasks();
+    }
+
+    @Override
+    public long getBusyResponses() {
+        return ServerStats.SHARED.busyResponses();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return ServerStats.SHARED.acceptedConnections();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return connections.openConnections();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return connections.idleConnections();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return connections.reapedConnections();
+    }
+
+    @Override
+    public int getRegisteredUsers() {
+        return service.registeredUserCount();
+    }
+
+    @Override
+    public int getOnlineUsers() {
+        return service.onlineUserCount();
+    }
+
+    @Override
+    public int getProjects() {
+        return service.projectCount();
+    }
+
+    @Override
+    public int getCards() {
+        return service.cardCount();
+    }
+
+    @Override
+    public int getCallbackClients() {
+        //la lista è modificata dai metodi synchronized di ServerCore: qui basta una lettura approssimata
+        return callbackClients.size();
+    }
+
+    @Override
+    public int getAvailableChatAddresses() {
+        return service.availableAddressCount();
+    }
+
+    @Override
+    public int getPendingSaves() {
+        return ServerStats.SHARED.pendingSaves();
+    }
+
+    @Override
+    public long getCompletedSaves() {
+        return ServerStats.SHARED.completedSaves();
+    }
+
+    @Override
+    public double getLastSaveMillis() {
+        return ServerStats.SHARED.lastSaveNanos() / 1e6;
+    }
+
+    @Override
+    public double getMaxSaveMillis() {
+        return ServerStats.SHARED.maxSaveNanos() / 1e6;
+    }
+
+    @Override
+    public void resetCounters() {
+        ServerStats.SHARED.reset();
+        LatencyStats.SHARED.reset();
+    }
+
+    @Override
+    public String snapshot() {
+        return ServerStats.SHARED.report() + "\n" + LatencyStats.format(LatencyStats.SHARED.snapshot());
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Stato interno del server esposto via JMX (ObjectName WORTH:type=Server), leggibile da
+ * jconsole o da un qualunque client JMX locale senza riavviare il server.
+ * Le durate sono in millisecondi; i valori del pool valgono -1 con il trasporto VIRTUAL
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public interface ServerMonitorMXBean {
+
+    /** @return modalità di trasporto del server */
+    String getTransport();
+
+    /** @return thread del pool che stanno eseguendo un task */
+    int getPoolActiveThreads();
+
+    /** @return thread presenti nel pool */
+    int getPoolThreads();
+
+    /** @return numero massimo di thread del pool */
+    int getPoolMaxThreads();
+
+    /** @return task in attesa nella coda del pool */
+    int getPoolQueueSize();
+
+    /** @return capacità della coda del pool */
+    int getPoolQueueCapacity();
+
+    /** @return task rifiutati dal pool */
+    long getRejectedTasks();
+
+    /** @return risposte SERVER_BUSY inviate */
+    long getBusyResponses();
+
+    /** @return connessioni accettate */
+    long getAcceptedConnections();
+
+    /** @return connessioni aperte */
+    int getOpenConnections();
+
+    /** @return connessioni senza richieste da più di metà del timeout di inattività */
+    int getIdleConnections();
+
+    /** @return connessioni chiuse per inattività */
+    long getReapedConnections();
+
+    /** @return utenti registrati */
+    int getRegisteredUsers();
+
+    /** @return utenti online */
+    int getOnlineUsers();
+
+    /** @return progetti creati */
+    int getProjects();
+
+    /** @return card di tutti i progetti */
+    int getCards();
+
+    /** @return client registrati per le callbacks */
+    int getCallbackClients();
+
+    /** @return indirizzi multicast ancora assegnabili a nuovi progetti */
+    int getAvailableChatAddresses();
+
+    /** @return salvataggi su file in corso */
+    int getPendingSaves();
+
+    /** @return salvataggi su file completati */
+    long getCompletedSaves();
+
+    /** @return durata dell'ultimo salvataggio su file */
+    double getLastSaveMillis();
+
+    /** @return durata del salvataggio su file più lento */
+    double getMaxSaveMillis();
+
+    /**
+     * azzera i contatori del server e gli istogrammi delle latenze
+     */
+    void resetCounters();
+
+    /**
+     * @return riepilogo dei contatori e tabella delle latenze per tipo di richiesta
+     */
+    String snapshot();
+}
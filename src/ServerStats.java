@@ -0,0 +1,287 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contatori del server aggiornati dai thread che gestiscono le connessioni.
+ * I contatori sono LongAdder, così gli aggiornamenti concorrenti non si contendono
+ * la stessa variabile; la lettura (report) somma le celle e non blocca nessuno.
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class ServerStats {
+
+    /** contatori condivisi da tutte le connessioni */
+    public static final ServerStats SHARED = new ServerStats();
+
+    /** usato per misurare il tempo di CPU del thread corrente, se la JVM lo supporta */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    /** frame compressi e byte prima/dopo la compressione */
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    /** frame sopra la soglia inviati non compressi perché la compressione non li riduceva */
+    private final LongAdder incompressibleFrames = new LongAdder();
+    /** tempo di CPU (o tempo trascorso, se la CPU non è misurabile) speso a comprimere */
+    private final LongAdder compressionNanos = new LongAdder();
+
+    /** connessioni accettate e istante (System.nanoTime) del primo accept */
+    private final LongAdder acceptedConnections = new LongAdder();
+    private volatile long firstAccept;
+    /** secondo in corso, connessioni accettate in quel secondo e massimo per secondo osservato */
+    private volatile long acceptSecond;
+    private final AtomicInteger acceptsInSecond = new AtomicInteger();
+    private final LongAccumulator peakAcceptRate = new LongAccumulator(Math::max, 0);
+
+    /** task rifiutati dal pool perché thread e coda erano pieni */
+    private final LongAdder rejectedTasks = new LongAdder();
+    /** risposte SERVER_BUSY inviate ai client */
+    private final LongAdder busyResponses = new LongAdder();
+    /** task usciti dalla coda del pool, tempo complessivo e massimo passato in coda */
+    private final LongAdder dequeuedTasks = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAccumulator maxQueueWaitNanos = new LongAccumulator(Math::max, 0);
+    /** salvataggi su file in corso, completati, durata dell'ultimo e massima */
+    private final AtomicInteger pendingSaves = new AtomicInteger();
+    private final LongAdder completedSaves = new LongAdder();
+    private volatile long lastSaveNanos;
+    private final LongAccumulator maxSaveNanos = new LongAccumulator(Math::max, 0);
+    /** pool del server, letto solo per riportare la profondità della coda */
+    private volatile WorkerPool workerPool;
+    /** registro delle connessioni, letto per riportare connessioni aperte, inattive e chiuse */
+    private volatile ConnectionRegistry connections;
+
+    /**
+     * @return istante da passare alle misure dei tempi di CPU
+     */
+    public static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * registra un frame compresso
+     *
+     * @param before dimensione del corpo prima della compressione
+     * @param after dimensione del corpo compresso
+     * @param startCpu valore di cpuTime() all'inizio della compressione
+     */
+    public void compressed(int before, int after, long startCpu) {
+        compressionNanos.add(cpuTime() - startCpu);
+        compressedFrames.increment();
+        uncompressedBytes.add(before);
+        compressedBytes.add(after);
+    }
+
+    /**
+     * registra un frame sopra la soglia che non è stato compresso perché non si riduceva
+     *
+     * @param startCpu valore di cpuTime() all'inizio del tentativo di compressione
+     */
+    public void incompressible(long startCpu) {
+        compressionNanos.add(cpuTime() - startCpu);
+        incompressibleFrames.increment();
+    }
+
+    /**
+     * registra il pool del server, di cui il report riporta thread attivi e task in coda
+     *
+     * @param pool pool del server
+     */
+    public void workerPool(WorkerPool pool) {
+        workerPool = pool;
+    }
+
+    /**
+     * registra il registro delle connessioni del server
+     *
+     * @param registry registro delle connessioni
+     */
+    public void connectionRegistry(ConnectionRegistry registry) {
+        connections = registry;
+    }
+
+    /**
+     * registra una connessione accettata; il conteggio per secondo è approssimato
+     * (due acceptor che cambiano secondo insieme possono perdere qualche accept)
+     */
+    public void accepted() {
+        long now = System.nanoTime();
+        if (acceptedConnections.sum() == 0)
+            firstAccept = now;
+        acceptedConnections.increment();
+        long second = TimeUnit.NANOSECONDS.toSeconds(now);
+        if (second != acceptSecond) {
+            acceptSecond = second;
+            acceptsInSecond.set(0);
+        }
+        peakAcceptRate.accumulate(acceptsInSecond.incrementAndGet());
+    }
+
+    /**
+     * registra un task rifiutato dal pool
+     */
+    public void rejected() {
+        rejectedTasks.increment();
+    }
+
+    /**
+     * registra una risposta SERVER_BUSY inviata ad un client
+     */
+    public void busy() {
+        busyResponses.increment();
+    }
+
+    /**
+     * registra il tempo passato in coda da un task prima di essere eseguito
+     *
+     * @param nanos attesa in nanosecondi
+     */
+    public void queueWait(long nanos) {
+        dequeuedTasks.increment();
+        queueWaitNanos.add(nanos);
+        maxQueueWaitNanos.accumulate(nanos);
+    }
+
+    /**
+     * registra l'inizio di un salvataggio su file
+     *
+     * @return istante da passare a saveFinished
+     */
+    public long saveStarted() {
+        pendingSaves.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * registra la fine di un salvataggio su file
+     *
+     * @param start valore restituito da saveStarted
+     */
+    public void saveFinished(long start) {
+        long nanos = System.nanoTime() - start;
+        pendingSaves.decrementAndGet();
+        completedSaves.increment();
+        lastSaveNanos = nanos;
+        maxSaveNanos.accumulate(nanos);
+    }
+
+    /**
+     * @return salvataggi su file in corso
+     */
+    public int pendingSaves() {
+        return pendingSaves.get();
+    }
+
+    /**
+     * @return salvataggi su file completati
+     */
+    public long completedSaves() {
+        return completedSaves.sum();
+    }
+
+    /**
+     * @return durata in nanosecondi dell'ultimo salvataggio completato
+     */
+    public long lastSaveNanos() {
+        return lastSaveNanos;
+    }
+
+    /**
+     * @return durata in nanosecondi del salvataggio più lento
+     */
+    public long maxSaveNanos() {
+        return maxSaveNanos.get();
+    }
+
+    /**
+     * @return connessioni accettate
+     */
+    public long acceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    /**
+     * @return task rifiutati dal pool
+     */
+    public long rejectedTasks() {
+        return rejectedTasks.sum();
+    }
+
+    /**
+     * @return risposte SERVER_BUSY inviate
+     */
+    public long busyResponses() {
+        return busyResponses.sum();
+    }
+
+    /**
+     * azzera tutti i contatori
+     */
+    public void reset() {
+        compressedFrames.reset();
+        uncompressedBytes.reset();
+        compressedBytes.reset();
+        incompressibleFrames.reset();
+        compressionNanos.reset();
+        acceptedConnections.reset();
+        peakAcceptRate.reset();
+        rejectedTasks.reset();
+        busyResponses.reset();
+        dequeuedTasks.reset();
+        queueWaitNanos.reset();
+        maxQueueWaitNanos.reset();
+        completedSaves.reset();
+        maxSaveNanos.reset();
+        ConnectionRegistry registry = connections;
+        if (registry != null)
+            registry.reset();
+    }
+
+    /**
+     * @return riepilogo leggibile delle connessioni
+     */
+    private String connectionReport() {
+        ConnectionRegistry registry = connections;
+        if (registry == null)
+            return "connessioni: -";
+        long accepted = acceptedConnections.sum();
+        double seconds = (System.nanoTime() - firstAccept) / 1e9;
+        return String.format("connessioni: %d accettate (media %.1f/s, picco %d/s), %d aperte, %d inattive, " +
+                        "%d chiuse per inattività",
+                accepted, accepted == 0 || seconds <= 0 ? 0.0 : accepted / seconds, peakAcceptRate.get(),
+                registry.openConnections(), registry.idleConnections(), registry.reapedConnections());
+    }
+
+    /**
+     * @return riepilogo leggibile dello stato del pool e delle richieste rifiutate
+     */
+    private String poolReport() {
+        WorkerPool pool = workerPool;
+        long tasks = dequeuedTasks.sum();
+        String state = pool == null ? "" : String.format("%d/%d thread attivi, coda %d/%d, ",
+                pool.getActiveCount(), pool.getMaximumPoolSize(), pool.getQueue().size(), pool.getQueueCapacity());
+        return String.format("pool: %s%d rifiutati, %d SERVER_BUSY, attesa in coda media %.2f ms max %.2f ms",
+                state, rejectedTasks.sum(), busyResponses.sum(),
+                tasks == 0 ? 0.0 : queueWaitNanos.sum() / 1e6 / tasks, maxQueueWaitNanos.get() / 1e6);
+    }
+
+    /**
+     * @return riepilogo leggibile dei contatori
+     */
+    public String report() {
+        long frames = compressedFrames.sum();
+        long before = uncompressedBytes.sum();
+        long after = compressedBytes.sum();
+        return String.format("compressione: %d frame (%d non comprimibili), %d -> %d byte, rapporto %.2f, " +
+                        "%s %.1f ms",
+                frames, incompressibleFrames.sum(), before, after,
+                after == 0 ? 0.0 : (double) before / after,
+                CPU_TIME ? "CPU" : "tempo", compressionNanos.sum() / 1e6)
+                + "; " + poolReport() + "; " + connectionReport();
+    }
+}
@@ -1,12 +1,12 @@
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-
 import java.io.*;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Giuseppe Muschetta 564026 corso A
@@ -15,90 +15,91 @@ public class ServerThread implements Runnable {
 
     /** socket utilizzato per la comunicazione con il client */
     private final Socket clientSocket;
-    /** nome utente dell'user gestito dal client */
+    /** nome utente che ha effettuato il login su questa connessione (null se nessuno) */
     private String clientUser;
-    /** istanza del servizio contenente tutte le funzionalità */
-    private final WorthCore service;
+    /** smista le richieste verso le funzionalità del servizio */
+    private final RequestDispatcher dispatcher;
     /** flag che indica la fine della comunicazione con il client */
     private boolean done;
 
+    /** numero massimo di richieste con id in esecuzione contemporaneamente per questo client */
+    private static final int MAX_PIPELINED = 64;
+    /** pool su cui eseguire le richieste con id inviate in pipeline dal client */
+    private final ExecutorService pipelinePool;
+    /** richieste in pipeline ancora in esecuzione (usata solo dal thread che legge dal socket) */
+    private final ArrayList<Future<?>> inFlight;
+    /** mutua esclusione sulle scritture delle risposte, che possono arrivare da più thread */
+    private final ReentrantLock writeLock;
+
+    /** stream associati al socket, creati una sola volta per non perdere i byte bufferizzati */
+    private DataInputStream inStream;
+    private OutputStream outStream;
+    /** codifica/decodifica dei frame con buffer riutilizzati per tutta la connessione */
+    private final FrameCodec<RequestMessage> codec;
+
+    /** registro in cui la connessione segnala l'ultima attività */
+    private final ConnectionRegistry registry;
+    private ConnectionRegistry.Handle connection;
+
 
-    public ServerThread(Socket clientSocket, WorthCore service) {
+    public ServerThread(Socket clientSocket, RequestDispatcher dispatcher, ExecutorService pipelinePool,
+                        ConnectionRegistry registry, int compressionThreshold, int maxFrameSize) {
         this.clientSocket = clientSocket;
-        this.service = service;
+        this.dispatcher = dispatcher;
+        this.pipelinePool = pipelinePool;
+        this.registry = registry;
+        inFlight = new ArrayList<>();
+        writeLock = new ReentrantLock();
+        codec = new FrameCodec<>(RequestMessage.class, compressionThreshold, maxFrameSize);
         done = false;
     }
 
     /**
-     * verifica la corrispondenza della richiesta letta con quelle accettate dal servizio
-     * e invoca le funzionalità di quest'ultimo per risolverla.
+     * legge le richieste del client e le passa al dispatcher che invoca le funzionalità
+     * del servizio per risolverle.
      * Dopo aver ricevuto il responso lo invia al client tramite il metodo sendToClient.
+     * Le richieste con un id (vedi RequestDispatcher.isPipelined) vengono eseguite in parallelo
+     * sul pipelinePool e le risposte, che riportano lo stesso id, possono arrivare in ordine diverso;
+     * quelle senza id attendono il completamento delle precedenti e vengono eseguite in ordine.
      * Quando la richiesta è un'operazione di logout viene impostato il flag done a true e viene
-     * chiuso il socket di comunicazione con il client
+     * chiuso il socket di comunicazione con il client.
+     * Se il client resta troppo a lungo senza inviare richieste il ConnectionRegistry chiude il
+     * socket: la lettura bloccata fallisce e l'utente viene disconnesso come dopo una chiusura
      */
     @Override
     public void run() {
+        connection = registry.register(this::closeSocket);
+        try {
+            inStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            //ogni frame viene scritto con una sola write, non serve un ulteriore buffer
+            outStream = clientSocket.getOutputStream();
+            //se il client chiede un formato diverso dal json lo concordiamo prima del primo frame
+            codec.acceptFormat(inStream, outStream);
+        } catch (IOException e) {
+            //il client ha chiuso la connessione prima di inviare qualsiasi richiesta
+            if (!(e instanceof EOFException) && !clientSocket.isClosed())
+                e.printStackTrace();
+            closeSocket();
+            connection.close();
+            codec.close();
+            return;
+        }
         while (!done) {
             try {
-                Message reqMsg = receiveFromClient();
-                clientUser = reqMsg.getNickname();
+                RequestMessage reqMsg = receiveFromClient();
+                if (reqMsg == null)
+                    break;
+                connection.touch();
                 //a questo punto dall'oggetto "ricostruito" leggiamo la richiesta del client
-                Message ansMsg;
-                switch (reqMsg.getRequest()) {
-                    case LOGIN:
-                        ansMsg = service.login(reqMsg.getNickname(), reqMsg.getPassword());
-                        break;
-
-                    case LOGOUT:
-                        ansMsg = service.logout(reqMsg.getNickname());
-                        break;
-
-                    case LIST_ALL_PROJECTS:
-                        ansMsg = service.listProjects(reqMsg.getNickname());
-                        break;
-
-                    case CREATE_PROJECT:
-                        ansMsg = service.createProject(reqMsg.getNickname(), reqMsg.getProjectName());
-                        break;
-
-                    case ADD_MEMBER:
-                        ansMsg = service.addMember(reqMsg.getNickname(), reqMsg.getProjectName(),
-                                reqMsg.getNewMember());
-                        break;
-
-                    case SHOW_ALL_MEMBERS:
-                        ansMsg = service.showMembers(reqMsg.getNickname(), reqMsg.getProjectName());
-                        break;
-
-                    case SHOW_ALL_CARDS:
-                        ansMsg = service.showCards(reqMsg.getNickname(), reqMsg.getProjectName());
-                        break;
-
-                    case SHOW_CARD:
-                        ansMsg = service.showCard(reqMsg.getNickname(), reqMsg.getProjectName(),
-                                reqMsg.getCardName());
-                        break;
-
-                    case ADD_CARD:
-                        ansMsg = service.addCard(reqMsg.getNickname(), reqMsg.getProjectName(),
-                                reqMsg.getCardName(), reqMsg.getDescription());
-                        break;
-
-                    case MOVE_CARD:
-                        ansMsg = service.moveCard(reqMsg.getNickname(), reqMsg.getProjectName(),
-                                reqMsg.getCardName(), reqMsg.getSourceList(),
-                                reqMsg.getDestList());
-                        break;
-
-                    case CANCEL_PROJECT:
-                        ansMsg = service.cancelProject(reqMsg.getNickname(), reqMsg.getProjectName());
-                        break;
-
-                    default:
-                        throw new IllegalArgumentException("Bad request: " + reqMsg.getRequest());
+                if (RequestDispatcher.isPipelined(reqMsg)) {
+                    pipeline(reqMsg);
+                    continue;
                 }
+                awaitInFlight(0);
+                ResponseMessage ansMsg = execute(reqMsg);
+                clientUser = RequestDispatcher.sessionUser(clientUser, reqMsg, ansMsg);
 
-                sendToClient(ansMsg);
+                sendToClient(reqMsg, ansMsg);
                 if (reqMsg.getRequest() == Request.LOGOUT) {
                     done = true;
                     clientSocket.close();
@@ -107,63 +108,132 @@ public class ServerThread implements Runnable {
                 e.printStackTrace();
             }
         }
+        connection.close();
+        codec.close();
     }
 
     /**
-     * legge dallo stream associato al socket i byte inviati dal client e li deserializza in un oggetto di tipo
-     * Message contenente i campi della richiesta
-     * @return messaggio contenente la richiesta del client
-     * @throws IOException -
+     * chiude il socket; usato anche dal ConnectionRegistry per le connessioni inattive
+     */
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * esegue una richiesta con id sul pipelinePool; la risposta viene inviata dal thread del pool
+     * appena pronta. Se ci sono già MAX_PIPELINED richieste in esecuzione attende la più vecchia.
+     * Se il pool non ha thread liberi la richiesta viene eseguita da questo thread (il pool non ha
+     * coda), che intanto smette di leggere: il client che invia troppo viene rallentato senza
+     * ricevere errori, e le richieste attese sono sempre già in esecuzione
+     *
+     * @param reqMsg richiesta da eseguire
+     */
+    private void pipeline(RequestMessage reqMsg) {
+        awaitInFlight(MAX_PIPELINED - 1);
+        Runnable task = () -> {
+            ResponseMessage ansMsg = execute(reqMsg);
+            try {
+                sendToClient(reqMsg, ansMsg);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        };
+        try {
+            inFlight.add(pipelinePool.submit(task));
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * esegue una richiesta; se l'esecuzione fallisce il client riceve UNKNOWN_ERROR
+     *
+     * @param reqMsg richiesta da eseguire
+     * @return risposta con l'id della richiesta
      */
-    private Message receiveFromClient() throws IOException {
-        Message message = null;
+    private ResponseMessage execute(RequestMessage reqMsg) {
+        ResponseMessage ansMsg;
         try {
-            DataInputStream inStream = new DataInputStream(
-                    new BufferedInputStream(clientSocket.getInputStream()));
+            ansMsg = dispatcher.dispatch(reqMsg);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            ansMsg = RequestDispatcher.failed(reqMsg);
+        }
+        ansMsg.setRequestId(reqMsg.getRequestId());
+        return ansMsg;
+    }
 
-            //leggo dal socket la dimensione dell'oggetto
-            int dim = inStream.readInt();
-            byte[] arrayDiByte = new byte[dim];
-            //leggere dal socket l'oggetto in .json
-            inStream.readFully(arrayDiByte);
-            //FINISCO DI LEGGERE
+    /**
+     * attende che le richieste in pipeline ancora in esecuzione scendano sotto la soglia indicata
+     *
+     * @param max numero massimo di richieste che possono restare in esecuzione
+     */
+    private void awaitInFlight(int max) {
+        inFlight.removeIf(Future::isDone);
+        while (inFlight.size() > max) {
+            try {
+                inFlight.remove(0).get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
 
-            //INIZIA LA DESERIALIZZAZIONE
-            //ora ho l'oggetto dentro l'array di byte che possiamo deserializzare con Jackson
-            ObjectMapper mapper = new ObjectMapper();
-            //rende visibile all'ObjectMapper gli attributi privati della classe dell'oggetto da deserializzare
-            mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
-            // configura la formattazione della data
-            mapper.setDateFormat(new SimpleDateFormat("dd-MM-yy"));
-            message = mapper.reader()
-                    .forType(new TypeReference<Message>() {
-                    })
-                    .readValue(arrayDiByte);
-        } catch (EOFException e) {
-            service.logout(clientUser);
-            clientSocket.close();
-            done = true;
+    /**
+     * legge dallo stream associato al socket i byte inviati dal client e li deserializza nella
+     * sottoclasse di RequestMessage corrispondente alla richiesta.
+     * Qualsiasi errore di lettura chiude la connessione: il client si è disconnesso, la
+     * connessione è caduta oppure è stata chiusa per inattività
+     * @return messaggio contenente la richiesta del client, null se la connessione è stata chiusa
+     */
+    private RequestMessage receiveFromClient() {
+        try {
+            //il codec legge la dimensione e poi il corpo nel buffer riutilizzato
+            //della connessione, e lo decodifica nel formato concordato con l'handshake
+            RequestMessage message = codec.read(inStream);
+            LatencyStats.SHARED.decoded(message, codec);
+            return message;
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!(e instanceof EOFException) && !clientSocket.isClosed())
+                e.printStackTrace();
+            awaitInFlight(0);
+            dispatcher.disconnected(clientUser);
+            closeSocket();
+            done = true;
+            return null;
         }
-        return message;
     }
 
     /**
      * serializza il responso dell'operazione richiesta dal client e scrive i byte sullo stream associato al socket
+     * @param request richiesta a cui si risponde (per le misure di latenza e l'eventuale UNKNOWN_ERROR)
      * @param message messaggio contenente il responso dell'operazione richiesta
      * @throws IOException -
      */
-    private void sendToClient(Message message) throws IOException {
-        DataOutputStream outStream = new DataOutputStream(
-                new BufferedOutputStream(clientSocket.getOutputStream()));
-        ObjectMapper tiSerializzo = new ObjectMapper();
-        tiSerializzo.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
-        tiSerializzo.setDateFormat(new SimpleDateFormat("dd-MMM-yy"));
-        tiSerializzo.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-        byte[] arrayDiBait = tiSerializzo.writeValueAsString(message).getBytes();
-        outStream.writeInt(arrayDiBait.length);
-        outStream.write(arrayDiBait);
-        outStream.flush();
+    private void sendToClient(RequestMessage request, ResponseMessage message) throws IOException {
+        //la serializzazione avviene fuori dal lock, direttamente in un buffer del pool
+        long encodeStart = System.nanoTime();
+        ByteBuffer frame;
+        try {
+            frame = codec.encode(message);
+        } catch (IOException | RuntimeException e) {
+            //risposta non codificabile: il client riceve comunque una risposta con lo stesso id
+            e.printStackTrace();
+            frame = codec.encode(RequestDispatcher.failed(request));
+        }
+        LatencyStats.SHARED.encoded(request, encodeStart);
+        writeLock.lock();
+        try {
+            outStream.write(frame.array(), 0, frame.limit());
+            outStream.flush();
+        } finally {
+            writeLock.unlock();
+            codec.release(frame);
+        }
     }
 }
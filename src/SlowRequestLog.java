@@ -0,0 +1,81 @@
+import java.util.concurrent.TimeUnit;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Log delle richieste lente: ogni richiesta il cui tempo totale supera la soglia produce una
+ * sola riga chiave=valore con nickname, progetto, tipo di richiesta, dimensione del frame e
+ * durata di ogni fase (vedi LatencyStats.Phase), in millisecondi.
+ * La scrittura passa da un AsyncLogHandler, quindi non aggiunge latenza alla richiesta
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class SlowRequestLog {
+
+    /** log condiviso da tutto il server */
+    public static final SlowRequestLog SHARED = new SlowRequestLog();
+
+    /** capacità della coda dell'handler asincrono */
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final Logger logger;
+    /** soglia oltre la quale una richiesta viene registrata (0 = log disattivato) */
+    private volatile long thresholdNanos;
+
+    private SlowRequestLog() {
+        logger = Logger.getLogger("WORTH.slow");
+        logger.setUseParentHandlers(false);
+    }
+
+    /**
+     * attiva il log con la soglia indicata; la prima attivazione installa l'handler asincrono
+     *
+     * @param thresholdMillis durata totale oltre la quale una richiesta è lenta (0 = log disattivato)
+     */
+    public synchronized void setThreshold(int thresholdMillis) {
+        if (thresholdMillis > 0 && logger.getHandlers().length == 0) {
+            ConsoleHandler console = new ConsoleHandler();
+            console.setFormatter(new Formatter() {
+                @Override
+                public String format(LogRecord record) {
+                    return String.format("%1$tF %1$tT.%1$tL %2$s%n", record.getMillis(), record.getMessage());
+                }
+            });
+            logger.addHandler(new AsyncLogHandler(console, QUEUE_CAPACITY));
+        }
+        thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    /**
+     * @return true se le durate delle fasi di ogni richiesta devono essere conservate
+     */
+    public boolean enabled() {
+        return thresholdNanos > 0;
+    }
+
+    /**
+     * registra la richiesta se il suo tempo totale supera la soglia
+     *
+     * @param reqMsg richiesta a cui si è appena risposto, con le durate delle fasi
+     */
+    void check(RequestMessage reqMsg) {
+        long threshold = thresholdNanos;
+        long[] phases = reqMsg.phaseNanos();
+        if (threshold == 0 || phases == null || phases[LatencyStats.Phase.TOTAL.ordinal()] < threshold)
+            return;
+        String project = reqMsg instanceof RequestMessage.ProjectRequest ?
+                ((RequestMessage.ProjectRequest) reqMsg).getProjectName() : null;
+        StringBuilder line = new StringBuilder("slow request=").append(reqMsg.getRequest())
+                .append(" nickname=").append(reqMsg.getNickname())
+                .append(" project=").append(project)
+                .append(" bytes=").append(reqMsg.frameSize());
+        for (LatencyStats.Phase phase : LatencyStats.PHASE_ORDER) {
+            line.append(' ').append(phase.name().toLowerCase()).append('=')
+                    .append(String.format("%.3f", phases[phase.ordinal()] / 1e6));
+        }
+        logger.log(Level.WARNING, line.toString());
+    }
+}
@@ -6,12 +6,13 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Giuseppe Muschetta 564026 corso A
  */
 public class User implements Serializable {
-    private static final long serialVersionUID = -6124934665897979046L;
+    private static final long serialVersionUID = 3318305216902671184L;
 
 
     /** istanza del client che gestisce l'utente, non viene serializzato */
@@ -24,8 +25,15 @@ public class User implements Serializable {
     /** password utente */
     private String password;
 
-    /** status utente */
-    private boolean online;
+    /**
+     * stati di presenza dell'utente sul server: il login passa da OFFLINE a LOGGING_IN a ONLINE
+     * con operazioni atomiche, così due login concorrenti non possono riuscire entrambi
+     */
+    public enum Presence { OFFLINE, LOGGING_IN, ONLINE }
+
+    /** status utente (in json viene scritto come booleano "online", tramite isOnline/setOnline) */
+    @JsonIgnore
+    private final AtomicReference<Presence> presence = new AtomicReference<>(Presence.OFFLINE);
 
     /** lista utenti registrati al servizio (aggiornata tramite callback) */
     private ArrayList<User> users;
@@ -38,7 +46,6 @@ public class User implements Serializable {
     public User(String nickname, String password) {
         this.nickname = nickname;
         this.password = password;
-        this.online = false;
         this.users = new ArrayList<>();
         this.chats = new ArrayList<>();
     }
@@ -64,7 +71,7 @@ public class User implements Serializable {
      * @return true se l'utente è online, false altrimenti
      */
     public boolean isOnline() {
-        return this.online;
+        return presence.get() == Presence.ONLINE;
     }
 
     /**
@@ -110,7 +117,32 @@ public class User implements Serializable {
      * @param online booleano che indica lo stato con il quale si vuole impostare l'utente
      */
     public void setOnline(boolean online) {
-        this.online = online;
+        presence.set(online ? Presence.ONLINE : Presence.OFFLINE);
+    }
+
+    /**
+     * inizia il login dell'utente, portandolo da OFFLINE a LOGGING_IN
+     *
+     * @return true se l'utente era offline, false se è già online o un altro login è in corso
+     */
+    public boolean beginLogin() {
+        return presence.compareAndSet(Presence.OFFLINE, Presence.LOGGING_IN);
+    }
+
+    /**
+     * conclude il login iniziato con beginLogin, portando l'utente da LOGGING_IN a ONLINE
+     */
+    public void completeLogin() {
+        presence.compareAndSet(Presence.LOGGING_IN, Presence.ONLINE);
+    }
+
+    /**
+     * effettua il logout dell'utente, portandolo da ONLINE a OFFLINE
+     *
+     * @return true se l'utente era online, false altrimenti
+     */
+    public boolean logout() {
+        return presence.compareAndSet(Presence.ONLINE, Presence.OFFLINE);
     }
 
     /**
@@ -202,7 +234,7 @@ public class User implements Serializable {
      */
     @Override
     public String toString() {
-        String state = (this.online ? "online" : "offline");
+        String state = (isOnline() ? "online" : "offline");
         return nickname + ": " + state;
     }
 
@@ -0,0 +1,168 @@
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+/**
+ * Formati con cui può essere codificato il corpo di un frame. Il formato viene scelto
+ * con l'handshake all'apertura della connessione (vedi FrameCodec); l'ordinale del formato
+ * è il byte scambiato nell'handshake, quindi i nuovi formati vanno aggiunti in fondo.
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public enum WireFormat {
+
+    /** json di Jackson: è il formato dei client senza handshake */
+    JSON {
+        @Override
+        public <T extends WireMessage> T decode(byte[] buffer, int offset, int length, Class<T> type)
+                throws IOException {
+            //jackson decodifica ricorsivamente: la profondità viene controllata prima di decodificare
+            checkDepth(buffer, offset, length);
+            ObjectReader reader = type == RequestMessage.class ? REQUEST_READER : RESPONSE_READER;
+            T message = type.cast(reader.readValue(buffer, offset, length));
+            rejectNestedBatch(message);
+            return message;
+        }
+
+        @Override
+        public void encode(WireMessage message, OutputStream out) throws IOException {
+            WRITER.writeValue(out, message);
+        }
+    },
+
+    /** codifica binaria compatta con soli i campi presenti (vedi BinaryCodec) */
+    BINARY {
+        @Override
+        public <T extends WireMessage> T decode(byte[] buffer, int offset, int length, Class<T> type)
+                throws IOException {
+            return BinaryCodec.decode(buffer, offset, length, type);
+        }
+
+        @Override
+        public void encode(WireMessage message, OutputStream out) throws IOException {
+            BinaryCodec.encode(message, out);
+        }
+    };
+
+    /**
+     * profondità massima di oggetti e array annidati in un messaggio json: i messaggi validi
+     * ne usano meno di 10 (batch, lista, responso, lista di card, card, storico)
+     */
+    private static final int MAX_JSON_DEPTH = 64;
+
+    /** reader/writer json thread-safe, costruiti una sola volta */
+    private static final ObjectReader REQUEST_READER;
+    private static final ObjectReader RESPONSE_READER;
+    private static final ObjectWriter WRITER;
+
+    static {
+        ObjectMapper mapper = new ObjectMapper();
+        //rende visibili all'ObjectMapper gli attributi privati delle classi da (de)serializzare
+        mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+        mapper.setDateFormat(new SimpleDateFormat("dd-MMM-yy"));
+        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        //i client precedenti inviano tutti i campi del vecchio messaggio unico, anche quelli che
+        //non appartengono al tipo della richiesta
+        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        REQUEST_READER = mapper.readerFor(RequestMessage.class);
+        RESPONSE_READER = mapper.readerFor(ResponseMessage.class);
+        WRITER = mapper.writer();
+    }
+
+    /**
+     * decodifica il corpo di un frame
+     *
+     * @param buffer array che contiene il frame
+     * @param offset posizione del primo byte del corpo
+     * @param length lunghezza del corpo
+     * @param type RequestMessage o ResponseMessage, a seconda del lato della connessione
+     * @return messaggio decodificato
+     * @throws IOException se il corpo non è valido
+     */
+    public abstract <T extends WireMessage> T decode(byte[] buffer, int offset, int length, Class<T> type)
+            throws IOException;
+
+    /**
+     * codifica il messaggio scrivendolo sullo stream
+     *
+     * @param message messaggio da codificare
+     * @param out stream di destinazione
+     * @throws IOException errore di serializzazione
+     */
+    public abstract void encode(WireMessage message, OutputStream out) throws IOException;
+
+    /**
+     * scorre il corpo json senza decodificarlo e rifiuta i messaggi annidati oltre MAX_JSON_DEPTH,
+     * così un frame annidato in profondità (es. batch dentro batch) è solo un frame non valido,
+     * che chiude la connessione come gli altri, invece di esaurire lo stack del thread
+     *
+     * @throws IOException se il messaggio è annidato troppo in profondità
+     */
+    private static void checkDepth(byte[] buffer, int offset, int length) throws IOException {
+        int depth = 0;
+        boolean string = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = buffer[i];
+            if (string) {
+                if (b == '\\')
+                    i++;
+                else if (b == '"')
+                    string = false;
+            } else if (b == '"') {
+                string = true;
+            } else if (b == '{' || b == '[') {
+                if (++depth > MAX_JSON_DEPTH)
+                    throw new IOException("Messaggio json annidato oltre " + MAX_JSON_DEPTH + " livelli");
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * come la decodifica binaria (vedi BinaryCodec.readRequest), un'operazione di un BATCH può essere
+     * un batch solo se è vuoto (il dispatcher lo rifiuta comunque)
+     *
+     * @param message messaggio decodificato
+     * @throws IOException se un'operazione del batch è a sua volta un batch non vuoto
+     */
+    private static void rejectNestedBatch(WireMessage message) throws IOException {
+        List<? extends WireMessage> operations = batchOf(message);
+        if (operations == null)
+            return;
+        for (WireMessage operation : operations) {
+            List<? extends WireMessage> nested = batchOf(operation);
+            if (nested != null && !nested.isEmpty())
+                throw new IOException("Batch annidato non ammesso nel messaggio json");
+        }
+    }
+
+    /**
+     * @return operazioni della richiesta o risultati del responso BATCH, null se il messaggio non è un batch
+     */
+    private static List<? extends WireMessage> batchOf(WireMessage message) {
+        if (message instanceof RequestMessage.Batch)
+            return ((RequestMessage.Batch) message).getBatch();
+        if (message instanceof ResponseMessage.BatchResult)
+            return ((ResponseMessage.BatchResult) message).getBatch();
+        return null;
+    }
+
+    /**
+     * @param id byte ricevuto nell'handshake
+     * @return formato corrispondente, oppure null se sconosciuto
+     */
+    public static WireFormat fromId(int id) {
+        WireFormat[] formats = values();
+        return id >= 0 && id < formats.length ? formats[id] : null;
+    }
+}
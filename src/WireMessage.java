@@ -0,0 +1,33 @@
+/**
+ * Parte comune di tutti i messaggi scambiati tra client e server (vedi RequestMessage e
+ * ResponseMessage): il tipo di operazione e l'id di correlazione usato dalla pipeline
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public abstract class WireMessage {
+
+    /** id di correlazione della richiesta (null se il client non usa la pipeline) */
+    private Long requestId;
+
+    /**
+     *
+     * @return operazione a cui si riferisce il messaggio
+     */
+    public abstract Request getRequest();
+
+    /**
+     *
+     * @return id di correlazione della richiesta (null se il client non usa la pipeline)
+     */
+    public Long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     *
+     * @param requestId id di correlazione, riportato dal server nella risposta
+     */
+    public void setRequestId(Long requestId) {
+        this.requestId = requestId;
+    }
+}
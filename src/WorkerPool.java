@@ -0,0 +1,79 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool di thread limitato usato dal server: al più maxThreads thread e una coda di attesa
+ * di capacità fissa. Quando entrambi sono pieni il task viene rifiutato subito con una
+ * RejectedExecutionException, così chi lo ha sottomesso può rispondere SERVER_BUSY invece
+ * di far crescere senza limite thread e coda.
+ * Con capacità 0 non c'è coda: il task viene passato direttamente ad un thread inattivo, o ne avvia
+ * uno nuovo se non si è al massimo, altrimenti viene rifiutato
+ * Il tempo trascorso in coda da ogni task viene registrato in ServerStats
+ *
+ * @author Giuseppe Muschetta 564026 corso A
+ */
+public class WorkerPool extends ThreadPoolExecutor {
+
+    /** capacità della coda di attesa */
+    private final int queueCapacity;
+
+    /**
+     * @param maxThreads numero massimo di thread (i thread inattivi terminano dopo un minuto)
+     * @param queueCapacity numero massimo di task in attesa di un thread (0 = nessuna attesa)
+     */
+    public WorkerPool(int maxThreads, int queueCapacity) {
+        super(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                queueCapacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity),
+                (task, pool) -> {
+                    ServerStats.SHARED.rejected();
+                    throw new RejectedExecutionException("Server saturo");
+                });
+        this.queueCapacity = queueCapacity;
+        allowCoreThreadTimeOut(true);
+        ServerStats.SHARED.workerPool(this);
+    }
+
+    /**
+     * @return capacità della coda di attesa
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * esegue il task annotando l'istante in cui entra in coda (anche submit passa di qui)
+     *
+     * @throws RejectedExecutionException se tutti i thread sono occupati e la coda è piena (o assente)
+     */
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new Queued(command));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        if (r instanceof Queued)
+            ServerStats.SHARED.queueWait(System.nanoTime() - ((Queued) r).queuedAt);
+    }
+
+    /**
+     * task con l'istante in cui è stato sottomesso al pool
+     */
+    private static class Queued implements Runnable {
+
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        Queued(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
@@ -4,7 +4,17 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Giuseppe Muschetta 564026 corso A
@@ -25,14 +35,78 @@ public class WorthCore implements WorthInterface{
     /** porta utilizzata dalle chat */
     private final int chatsPort = 13731;
 
+    /** numero massimo di elementi restituiti in una pagina, qualunque sia la dimensione richiesta */
+    private static final int MAX_PAGE_SIZE = 500;
+
     /** lista di utenti registrati */
     private final ArrayList<User> registeredUsers;
 
     /** lista dei progetti creati */
     private final ArrayList<Project> createdProjects;
 
+    /**
+     * indici per nome degli utenti registrati e dei progetti creati, aggiornati insieme alle liste:
+     * le ricerche per nome non scorrono le liste, che restano per l'ordine di iterazione
+     * (callbacks, file degli utenti e lista dei progetti inviata ai client) */
+    private final ConcurrentHashMap<String, User> usersByName;
+    private final ConcurrentHashMap<String, Project> projectsByName;
+
+    /**
+     * indice inverso dei membri: per ogni nickname i progetti di cui l'utente è membro, così
+     * la lista dei progetti di un utente costa quanto i suoi progetti e non quanto tutti i progetti */
+    private final ConcurrentHashMap<String, Set<Project>> projectsByMember;
+
+    /** indice inverso delle parole di nomi e descrizioni delle card, per SEARCH_CARDS */
+    private final CardIndex cardIndex;
+
+    /** prossima posizione nell'ordine di creazione dei progetti (protetto da projectsLock) */
+    private long nextSequence;
+
+    /**
+     * lock usati al posto dei blocchi synchronized: un virtual thread che si sospende
+     * (ad esempio per le scritture su file di saveProject) mentre possiede un monitor
+     * resta "pinned" al suo carrier thread, mentre con un ReentrantLock lo rilascia.
+     * projectsLock protegge solo l'inserimento e la rimozione dei progetti (sezione critica breve):
+     * le operazioni su un progetto usano il lock del progetto (Project.lock), così le modifiche
+     * e i salvataggi di un progetto non bloccano gli altri e le letture procedono in parallelo.
+     * usersLock protegge solo la registrazione (lista e file degli utenti): login e logout
+     * cambiano lo stato di presenza dell'utente con operazioni atomiche (vedi User.Presence) */
+    private final ReentrantLock projectsLock;
+    private final ReentrantLock usersLock;
+    private final ReentrantLock addressesLock;
+
+    /**
+     * pool di thread di piattaforma su cui eseguire il controllo PBKDF2 delle password,
+     * usato solo quando le connessioni sono servite da virtual thread (null altrimenti):
+     * il calcolo dell'hash è puramente CPU-bound e occuperebbe a lungo i carrier thread */
+    private final ExecutorService hashPool;
+
+    /**
+     * batch in corso sul thread corrente (null se il thread non sta eseguendo una BATCH):
+     * durante un batch il salvataggio dei progetti e le notifiche vengono rimandati a commitBatch */
+    private final ThreadLocal<Batch> currentBatch;
+
     public WorthCore(ServerCore server) {
+        this(server, false);
+    }
+
+    /**
+     * @param server server che gestisce il servizio
+     * @param virtualThreads true se le richieste vengono eseguite su virtual thread
+     */
+    public WorthCore(ServerCore server, boolean virtualThreads) {
         this.server = server;
+        projectsLock = new ReentrantLock();
+        usersLock = new ReentrantLock();
+        addressesLock = new ReentrantLock();
+        currentBatch = new ThreadLocal<>();
+        //thread daemon come gli altri thread di servizio: il pool non impedisce alla JVM di terminare
+        hashPool = virtualThreads ?
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                    Thread thread = new Thread(task, "password-hash");
+                    thread.setDaemon(true);
+                    return thread;
+                }) : null;
         //indirizzo di partenza per le chat multicast
         //ad ogni nuovo indirizzo assegnato aggiorniamo questa stringa
         //la quale rappresenterà l'ultimo indirizzo di multicast assegnato
@@ -71,6 +145,10 @@ public class WorthCore implements WorthInterface{
         }
         registeredUsers = new ArrayList<>();
         createdProjects = new ArrayList<>();
+        usersByName = new ConcurrentHashMap<>();
+        projectsByName = new ConcurrentHashMap<>();
+        projectsByMember = new ConcurrentHashMap<>();
+        cardIndex = new CardIndex();
     }
 
 
@@ -90,6 +168,206 @@ public class WorthCore implements WorthInterface{
         return createdProjects;
     }
 
+    /**
+     * aggiunge un utente letto dai file salvati (usato all'avvio da ServerCore.loadingResources)
+     *
+     * @param user utente registrato
+     */
+    public void restoreUser(User user) {
+        usersLock.lock();
+        try {
+            if (usersByName.putIfAbsent(user.getNickname(), user) == null)
+                registeredUsers.add(user);
+        } finally {
+            usersLock.unlock();
+        }
+    }
+
+    /**
+     * aggiunge un progetto letto dai file salvati (usato all'avvio da ServerCore.loadingResources)
+     *
+     * @param project progetto creato
+     */
+    public void restoreProject(Project project) {
+        project.publish();
+        project.markSaved();
+        projectsLock.lock();
+        try {
+            if (projectsByName.putIfAbsent(project.getName(), project) == null) {
+                project.setSequence(nextSequence++);
+                createdProjects.add(project);
+                for (String member : project.getMembers())
+                    indexMember(member, project);
+                cardIndex.addAll(project);
+            }
+        } finally {
+            projectsLock.unlock();
+        }
+    }
+
+    /**
+     * aggiunge il progetto all'indice inverso dei membri
+     *
+     * @param nickname membro del progetto
+     * @param project progetto
+     */
+    private void indexMember(String nickname, Project project) {
+        projectsByMember.computeIfAbsent(nickname, n -> ConcurrentHashMap.newKeySet()).add(project);
+    }
+
+    /**
+     * toglie il progetto dall'indice inverso di tutti i suoi membri
+     *
+     * @param project progetto cancellato
+     */
+    private void unindexMembers(Project project) {
+        for (String member : project.getMembers()) {
+            Set<Project> projects = projectsByMember.get(member);
+            if (projects != null)
+                projects.remove(project);
+        }
+    }
+
+    /**
+     * @param nickname nome utente
+     * @return progetti di cui l'utente è membro, nell'ordine di creazione
+     */
+    public ArrayList<Project> projectsOf(String nickname) {
+        Set<Project> projects = nickname == null ? null : projectsByMember.get(nickname);
+        if (projects == null)
+            return new ArrayList<>();
+        ArrayList<Project> userProjects = new ArrayList<>(projects);
+        userProjects.sort((p1, p2) -> Long.compare(p1.getSequence(), p2.getSequence()));
+        return userProjects;
+    }
+
+    /**
+     * versioni pubblicate dei progetti da inviare con le callbacks: vengono serializzate da RMI
+     * senza lock, quindi non vanno mai inviati i progetti su cui lavorano le richieste
+     *
+     * @param nickname nome utente, null per tutti i progetti creati
+     * @return versioni pubblicate dei progetti dell'utente (o di tutti), nell'ordine di creazione
+     */
+    public ArrayList<Project> publishedProjectsOf(String nickname) {
+        ArrayList<Project> projects;
+        if (nickname != null) {
+            projects = projectsOf(nickname);
+        } else {
+            lockProjects();
+            try {
+                projects = new ArrayList<>(createdProjects);
+            } finally {
+                projectsLock.unlock();
+            }
+        }
+        ArrayList<Project> published = new ArrayList<>(projects.size());
+        for (Project project : projects) {
+            Project snapshot = project.snapshot();
+            if (snapshot != null)
+                published.add(snapshot);
+        }
+        return published;
+    }
+
+    /**
+     * @param nickname nome utente
+     * @return utente registrato con quel nome, null se non esiste
+     */
+    private User findUser(String nickname) {
+        return nickname == null ? null : usersByName.get(nickname);
+    }
+
+    /**
+     * @param projectName nome progetto
+     * @return progetto creato con quel nome, null se non esiste
+     */
+    private Project findProject(String projectName) {
+        return projectName == null ? null : projectsByName.get(projectName);
+    }
+
+    /**
+     * @return numero di utenti registrati
+     */
+    public int registeredUserCount() {
+        usersLock.lock();
+        try {
+            return registeredUsers.size();
+        } finally {
+            usersLock.unlock();
+        }
+    }
+
+    /**
+     * @return numero di utenti online
+     */
+    public int onlineUserCount() {
+        int online = 0;
+        for (User user : usersByName.values()) {
+            if (user.isOnline())
+                online++;
+        }
+        return online;
+    }
+
+    /**
+     * @return numero di progetti creati
+     */
+    public int projectCount() {
+        projectsLock.lock();
+        try {
+            return createdProjects.size();
+        } finally {
+            projectsLock.unlock();
+        }
+    }
+
+    /**
+     * @return numero di card di tutti i progetti
+     */
+    public int cardCount() {
+        projectsLock.lock();
+        try {
+            int cards = 0;
+            for (Project project : createdProjects)
+                cards += project.snapshot().getCards().size();
+            return cards;
+        } finally {
+            projectsLock.unlock();
+        }
+    }
+
+    /**
+     * @return numero di indirizzi multicast ancora assegnabili a nuovi progetti
+     */
+    public int availableAddressCount() {
+        addressesLock.lock();
+        try {
+            return availableAddresses.size();
+        } finally {
+            addressesLock.unlock();
+        }
+    }
+
+    /**
+     * aggiunge un nuovo utente alla lista degli utenti registrati, se non è già presente,
+     * e aggiorna il file degli utenti
+     *
+     * @param user utente da registrare
+     * @return true se l'utente è stato aggiunto, false se esisteva già
+     */
+    public boolean addUser(User user) {
+        usersLock.lock();
+        try {
+            if (usersByName.putIfAbsent(user.getNickname(), user) != null)
+                return false;
+            registeredUsers.add(user);
+            server.saveUsers();
+            return true;
+        } finally {
+            usersLock.unlock();
+        }
+    }
+
     /**
      * effettua il login dell'utente
      *
@@ -98,26 +376,22 @@ public class WorthCore implements WorthInterface{
      * @return messaggio contentente il responso per l'operazione richiesta
      */
     @Override
-    public Message login(String nickname, String password) {
-        Message message = new Message();
-        User tmp = new User(nickname, password);
-        int index = registeredUsers.indexOf(tmp);
+    public ResponseMessage.LoginResult login(String nickname, String password) {
+        ResponseMessage.LoginResult message = new ResponseMessage.LoginResult();
+        User user = findUser(nickname);
         //utente non registrato
-        if (index == -1) {
+        if (user == null) {
             message.setResponse(Response.NOT_REGISTERED);
         } else {
             try {   //check password
-                if (!HashPassword.check(password, registeredUsers.get(index).getPassword())) {
+                if (!checkPassword(password, user.getPassword())) {
                     message.setResponse(Response.WRONG_PASSWORD);
-                } else if (registeredUsers.get(index).isOnline()) {
+                } else if (!user.beginLogin()) {
+                    //l'utente è già online oppure un login concorrente lo ha preceduto
                     message.setResponse(Response.ALREADY_LOGGED);
                 } else {
-                    //sincronizzazione sulla lista perchè può essere modificata concorrentemente
-                    //dai thread che eseguono i task ServerThread
-                    synchronized (registeredUsers) {
-                        registeredUsers.get(index).setOnline(true);
-                    }
-                    User user = registeredUsers.get(index);
+                    //il passaggio di stato è atomico sull'utente: nessun lock globale
+                    user.completeLogin();
                     message.setUser(user);
                     message.setResponse(Response.OK);
                 }
@@ -136,16 +410,15 @@ public class WorthCore implements WorthInterface{
      * @return messaggio contentente il responso per l'operazione richiesta
      */
     @Override
-    public Message logout(String nickname) {
-        Message message = new Message();
-        int index = registeredUsers.indexOf(new User(nickname, null));
-        if (index != -1) {
-            synchronized (registeredUsers) {
-                registeredUsers.get(index).setOnline(false);
-            }
+    public ResponseMessage logout(String nickname) {
+        ResponseMessage message = new ResponseMessage(Request.LOGOUT);
+        User user = findUser(nickname);
+        if (user != null) {
             message.setResponse(Response.OK);
             //aggiorna le liste locali degli utenti registrati quando un utente effettua il logout
-            server.updateClientUsers();
+            //(solo se lo stato è cambiato: un logout ripetuto non genera callbacks)
+            if (user.logout())
+                server.updateClientUsers();
             return message;
         }
         message.setResponse(Response.UNKNOWN_ERROR);
@@ -154,22 +427,39 @@ public class WorthCore implements WorthInterface{
 
 
     /**
-     * costruisce la lista dei progetti di cui l'utente fa parte
+     * costruisce la lista dei progetti di cui l'utente fa parte.
+     * Senza pageSize i progetti vengono restituiti tutti nell'ordine di creazione; con pageSize
+     * sono ordinati per nome e il cursore è il nome dell'ultimo progetto della pagina precedente,
+     * così la paginazione resta stabile anche se nel frattempo vengono creati o cancellati progetti
      *
      * @param nickname nome utente che ha richiesto la lista dei progetti
+     * @param pageSize numero massimo di progetti da restituire (null per averli tutti)
+     * @param cursor cursore della pagina richiesta (null per la prima)
      * @return messaggio da inviare al client contenente la lista dei progetti di cui fa parte
      */
     @Override
-    public Message listProjects(String nickname) {
-        Message message = new Message();
-        //costruiamo la lista dei progetti dell'utente
-        ArrayList<Project> userProjects = new ArrayList<>();
-        for (Project project : createdProjects) {
-            if (project.getMembers().contains(nickname))
-                userProjects.add(project);
-        }
+    public ResponseMessage.ProjectList listProjects(String nickname, Integer pageSize, String cursor) {
+        ResponseMessage.ProjectList message = new ResponseMessage.ProjectList();
+        //costruiamo la lista dei progetti dell'utente dall'indice inverso dei membri
+        ArrayList<Project> userProjects = projectsOf(nickname);
+        //ai client vengono inviate le versioni pubblicate, serializzate senza lock
+        userProjects.replaceAll(Project::snapshot);
         message.setResponse(Response.OK);
-        message.setProjects(userProjects);
+        message.setTotal(userProjects.size());
+        if (pageSize == null) {
+            message.setProjects(userProjects);
+            return message;
+        }
+        userProjects.sort((p1, p2) -> p1.getName().compareTo(p2.getName()));
+        int from = 0;
+        if (cursor != null) {
+            while (from < userProjects.size() && userProjects.get(from).getName().compareTo(cursor) <= 0)
+                from++;
+        }
+        int to = Math.min(userProjects.size(), from + pageLimit(pageSize));
+        message.setProjects(new ArrayList<>(userProjects.subList(from, to)));
+        if (to < userProjects.size())
+            message.setNextCursor(userProjects.get(to - 1).getName());
         return message;
     }
 
@@ -183,26 +473,46 @@ public class WorthCore implements WorthInterface{
      * @return messaggio contentente il responso per l'operazione richiesta
      */
     @Override
-    public Message createProject(String nickname, String projectName) {
-        Message message = new Message();
+    public ResponseMessage createProject(String nickname, String projectName) {
+        ResponseMessage message = new ResponseMessage(Request.CREATE_PROJECT);
         Project project = new Project(projectName, nickname);
         if (!bindChatAddress(project)) {
             message.setResponse(Response.UNABLE_CREATE_PROJECT);
             return message;
         }
-        // controllo e modifica atomici
-        synchronized (createdProjects) {
-            if (createdProjects.contains(project)) {
-                message.setResponse(Response.PROJECT_EXISTS);
-            } else {
+        //il lock del nuovo progetto viene preso prima di renderlo visibile,
+        //così nessun altro thread lo modifica prima del primo salvataggio
+        writeLock(project);
+        try {
+            //prima versione pubblicata, letta da chi trova il progetto appena inserito
+            project.publish();
+            // controllo e inserimento atomici
+            boolean created;
+            lockProjects();
+            try {
+                created = projectsByName.putIfAbsent(projectName, project) == null;
                 //aggiorno la lista di tutti i progetti lato server
-                createdProjects.add(project);
-                server.saveProject(project);
-                message.setResponse(Response.OK);
-                server.updateClientChats();
-                sendChatMsg(project, nickname + " ha creato il progetto " + projectName);
+                if (created) {
+                    project.setSequence(nextSequence++);
+                    createdProjects.add(project);
+                    indexMember(nickname, project);
+                }
+            } finally {
+                projectsLock.unlock();
+            }
+            if (!created) {
+                unBindChatAddress(project.getChatAddress());
+                message.setResponse(Response.PROJECT_EXISTS);
+                return message;
             }
+            persist(project);
+        } finally {
+            project.lock().writeLock().unlock();
         }
+        saveProject(project);
+        message.setResponse(Response.OK);
+        updateClientChats();
+        notifyChat(project, Request.CREATE_PROJECT, nickname + " ha creato il progetto " + projectName);
         return message;
     }
 
@@ -214,42 +524,57 @@ public class WorthCore implements WorthInterface{
      * @param nickname nome utente che ha richiesto l'aggiunta di un nuovo membro
      * @param projectName nome progetto a cui aggiungere il nuovo membro
      * @param nickNewMember nome utente del membro da aggiungere
+     * @param expectedVersion versione del progetto attesa dal client (null per non controllarla)
      * @return messaggio contentente il responso per l'operazione richiesta
      */
     @Override
-    public Message addMember(String nickname, String projectName, String nickNewMember) {
-        Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
+    public ResponseMessage addMember(String nickname, String projectName, String nickNewMember, Long expectedVersion) {
+        ResponseMessage message = new ResponseMessage(Request.ADD_MEMBER);
+        Project project = findProject(projectName);
         // controllo esistenza del progetto
-        if (projectIndex == -1) {
-            message.setResponse(Response.NONEXISTENT_PROJECT);
-            return message;
-        }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        if (project == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        // controllo esistenza negli utenti registrati del nuovo membro
-        int newMemberIndex = registeredUsers.indexOf(new User(nickNewMember, null));
-        if (newMemberIndex == -1) {
-            message.setResponse(Response.NOT_REGISTERED);
+        // un conflitto di versione viene rilevato sulla versione pubblicata, senza attendere il lock
+        Project published = published(project, nickname);
+        if (published != null && expectedVersion != null && published.getVersion() != expectedVersion) {
+            message.setResponse(Response.VERSION_CONFLICT);
             return message;
         }
-        synchronized (createdProjects) {
+        writeLock(project);
+        try {
+            // controllo appartenenza dell'utente al progetto
+            if (!isMember(project, nickname)) {
+                message.setResponse(Response.NONEXISTENT_PROJECT);
+                return message;
+            }
+            // compare-and-set: il progetto non deve essere cambiato dalla versione attesa
+            if (expectedVersion != null && project.getVersion() != expectedVersion) {
+                message.setResponse(Response.VERSION_CONFLICT);
+                return message;
+            }
+            // controllo esistenza negli utenti registrati del nuovo membro
+            if (findUser(nickNewMember) == null) {
+                message.setResponse(Response.NOT_REGISTERED);
+                return message;
+            }
             // controllo che il nuovo membro non sia già membro del progetto
             if (project.getMembers().contains(nickNewMember)) {
                 message.setResponse(Response.MEMBER_EXISTS);
                 return message;
             }
             // modifico nella lista createdProject (aggiungo il nuovo membro al progetto)
-            project.getMembers().add(nickNewMember);
-            server.saveProject(project);
+            project.addMember(nickNewMember);
+            indexMember(nickNewMember, project);
+            persist(project);
+        } finally {
+            project.lock().writeLock().unlock();
         }
+        saveProject(project);
         message.setResponse(Response.OK);
-        server.updateClientChats();
-        sendChatMsg(project, nickname + " ha aggiunto un nuovo membro: " + nickNewMember);
+        updateClientChats();
+        notifyChat(project, Request.ADD_MEMBER, nickname + " ha aggiunto un nuovo membro: " + nickNewMember);
         return message;
     }
 
@@ -262,22 +587,28 @@ public class WorthCore implements WorthInterface{
      * @return messaggio da inviare al client contenente la lista dei membri del progetto
      */
     @Override
-    public Message showMembers(String nickname, String projectName) {
-        Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
+    public ResponseMessage.MemberList showMembers(String nickname, String projectName, Integer pageSize, String cursor) {
+        ResponseMessage.MemberList message = new ResponseMessage.MemberList();
+        Project project = findProject(projectName);
         // controllo esistenza del progetto
-        if (projectIndex == -1) {
+        if (project == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
+        // versione pubblicata del progetto, letta senza lock
+        Project published = published(project, nickname);
         // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        if (published == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
+        List<String> members = offsetPage(published.getMembers(), pageSize, cursor, message);
+        if (members == null) {
+            message.setResponse(Response.INVALID_CURSOR);
+            return message;
+        }
         message.setResponse(Response.OK);
-        message.setMembers(project.getMembers());
+        message.setMembers(members);
         return message;
     }
 
@@ -290,27 +621,101 @@ public class WorthCore implements WorthInterface{
      * @return messaggio da inviare al client contenente la lista delle cards del progetto
      */
     @Override
-    public Message showCards(String nickname, String projectName) {
-        Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
+    public ResponseMessage.CardList showCards(String nickname, String projectName, Integer pageSize, String cursor) {
+        ResponseMessage.CardList message = new ResponseMessage.CardList();
+        Project project = findProject(projectName);
         // controllo esistenza progetto
-        if (projectIndex == -1) {
+        if (project == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
+        // versione pubblicata del progetto, letta senza lock
+        Project published = published(project, nickname);
         // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        if (published == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-
-        ArrayList<Card> cards = new ArrayList<>(project.getCards());
+        List<Card> cards = offsetPage(published.getCards(), pageSize, cursor, message);
+        if (cards == null) {
+            message.setResponse(Response.INVALID_CURSOR);
+            return message;
+        }
         message.setResponse(Response.OK);
         message.setCards(cards);
         return message;
     }
 
+    /**
+     * estrae una pagina da una lista a cui gli elementi vengono soltanto aggiunti in fondo (membri e
+     * card di un progetto): la posizione del primo elemento non ancora restituito è quindi un
+     * cursore stabile. Va chiamato su una versione pubblicata del progetto, che non viene più
+     * modificata: se è richiesta l'intera lista viene restituita senza copiarla, altrimenti
+     * la copia riguarda solo la pagina
+     *
+     * @param source lista da cui estrarre la pagina
+     * @param pageSize numero massimo di elementi (null per averli tutti)
+     * @param cursor posizione da cui partire (null per la prima pagina)
+     * @param message risposta in cui impostare il totale e il cursore della pagina successiva
+     * @return elementi della pagina, oppure null se il cursore non è valido
+     */
+    private static <T> List<T> offsetPage(List<T> source, Integer pageSize, String cursor,
+                                               ResponseMessage.PagedResult message) {
+        int size = source.size();
+        int from = pageStart(cursor, size);
+        if (from < 0)
+            return null;
+        int to = pageEnd(from, size, pageSize, message);
+        if (from == 0 && to == size)
+            return source;
+        ArrayList<T> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++)
+            page.add(source.get(i));
+        return page;
+    }
+
+    /**
+     * @param cursor cursore inviato dal client (null per la prima pagina)
+     * @param size numero di elementi della lista
+     * @return posizione del primo elemento della pagina, oppure -1 se il cursore non è valido
+     */
+    private static int pageStart(String cursor, int size) {
+        if (cursor == null)
+            return 0;
+        int from;
+        try {
+            from = Integer.parseInt(cursor);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return from > size ? -1 : from;
+    }
+
+    /**
+     * imposta nella risposta il totale e il cursore della pagina successiva
+     *
+     * @param from posizione del primo elemento della pagina
+     * @param size numero di elementi della lista
+     * @param pageSize numero massimo di elementi (null per averli tutti)
+     * @param message risposta da completare
+     * @return posizione successiva all'ultimo elemento della pagina
+     */
+    private static int pageEnd(int from, int size, Integer pageSize, ResponseMessage.PagedResult message) {
+        message.setTotal(size);
+        int to = pageSize == null ? size : Math.min(size, from + pageLimit(pageSize));
+        if (to < size)
+            message.setNextCursor(Integer.toString(to));
+        return to;
+    }
+
+    /**
+     * @param pageSize dimensione della pagina richiesta dal client
+     * @return dimensione effettiva, compresa tra 1 e MAX_PAGE_SIZE
+     */
+    private static int pageLimit(int pageSize) {
+        return Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+    }
+
 
     /**
      * recupera la card richiesta
@@ -321,29 +726,158 @@ public class WorthCore implements WorthInterface{
      * @return messaggio da inviare al client contenente la card richiesta
      */
     @Override
-    public Message showCard(String nickname, String projectName, String cardName) {
-        Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
+    public ResponseMessage.CardDetail showCard(String nickname, String projectName, String cardName) {
+        ResponseMessage.CardDetail message = new ResponseMessage.CardDetail();
+        Project project = findProject(projectName);
         // controllo esistenza progetto
-        if (projectIndex == -1) {
+        if (project == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
+        // versione pubblicata del progetto, letta senza lock
+        Project published = published(project, nickname);
         // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        if (published == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        int cardIndex = project.getCards().indexOf(new Card(cardName, null));
+        Card card = published.getCard(cardName);
         // controllo esistenza della carta nel progetto
-        if (cardIndex == -1) {
+        if (card == null) {
             message.setResponse(Response.NONEXISTENT_CARD);
             return message;
         }
         // scrivo la carta nel messaggio
         message.setResponse(Response.OK);
-        message.setCard(project.getCards().get(cardIndex));
+        message.setCard(card);
+        return message;
+    }
+
+
+    /**
+     * recupera un intervallo dello storico della card richiesta: lo storico viene solo esteso in
+     * fondo, quindi la posizione del primo evento non ancora restituito è un cursore stabile.
+     * Gli eventi vengono letti dalla versione pubblicata della card, senza lock e senza
+     * costruire la stringa dell'intero storico
+     *
+     * @param nickname nome utente che ha richiesto lo storico
+     * @param projectName nome progetto a cui appartiene la card
+     * @param cardName nome card di cui leggere lo storico
+     * @param pageSize numero massimo di eventi da restituire (null per averli tutti)
+     * @param cursor cursore della pagina richiesta (null per la prima)
+     * @return messaggio da inviare al client contenente gli eventi richiesti
+     */
+    @Override
+    public ResponseMessage.HistoryPage cardHistory(String nickname, String projectName, String cardName,
+                                                   Integer pageSize, String cursor) {
+        ResponseMessage.HistoryPage message = new ResponseMessage.HistoryPage();
+        Project project = findProject(projectName);
+        // controllo esistenza progetto
+        if (project == null) {
+            message.setResponse(Response.NONEXISTENT_PROJECT);
+            return message;
+        }
+        // versione pubblicata del progetto, letta senza lock
+        Project published = published(project, nickname);
+        // controllo appartenenza dell'utente al progetto
+        if (published == null) {
+            message.setResponse(Response.NONEXISTENT_PROJECT);
+            return message;
+        }
+        Card card = published.getCard(cardName);
+        // controllo esistenza della carta nel progetto
+        if (card == null) {
+            message.setResponse(Response.NONEXISTENT_CARD);
+            return message;
+        }
+        CardHistory history = card.history();
+        int from = pageStart(cursor, history.size());
+        if (from < 0) {
+            message.setResponse(Response.INVALID_CURSOR);
+            return message;
+        }
+        int to = pageEnd(from, history.size(), pageSize, message);
+        message.setResponse(Response.OK);
+        message.setEvents(history.events(from, to));
+        return message;
+    }
+
+
+    /**
+     * recupera il riepilogo della board del progetto dalla versione pubblicata, senza lock:
+     * i conteggi sono le dimensioni delle liste e i tempi medi vengono dai contatori aggiornati
+     * ad ogni aggiunta e spostamento di card (vedi Project.moveCard), quindi non si scorrono le card
+     *
+     * @param nickname nome utente che ha richiesto il riepilogo
+     * @param projectName nome progetto
+     * @return messaggio da inviare al client contenente il riepilogo
+     */
+    @Override
+    public ResponseMessage.BoardResult boardSummary(String nickname, String projectName) {
+        ResponseMessage.BoardResult message = new ResponseMessage.BoardResult();
+        Project project = findProject(projectName);
+        // controllo esistenza progetto
+        if (project == null) {
+            message.setResponse(Response.NONEXISTENT_PROJECT);
+            return message;
+        }
+        // versione pubblicata del progetto, letta senza lock
+        Project published = published(project, nickname);
+        // controllo appartenenza dell'utente al progetto
+        if (published == null) {
+            message.setResponse(Response.NONEXISTENT_PROJECT);
+            return message;
+        }
+        ArrayList<ResponseMessage.ListSummary> lists = new ArrayList<>(CardState.values().length);
+        for (CardState state : CardState.values()) {
+            lists.add(new ResponseMessage.ListSummary(state, published.listSize(state),
+                    published.completedStays(state), published.averageDwell(state)));
+        }
+        message.setResponse(Response.OK);
+        message.setVersion(published.getVersion());
+        message.setWorkInProgress(published.listSize(CardState.INPROGRESS) + published.listSize(CardState.TOBEREVISED));
+        message.setLists(lists);
+        return message;
+    }
+
+
+    /**
+     * cerca le parole richieste nei nomi e nelle descrizioni delle card dei progetti dell'utente,
+     * senza lock sulle versioni pubblicate dei progetti. I risultati sono ordinati per punteggio e
+     * il cursore è la posizione nella classifica: vengono costruiti solo i risultati fino alla pagina richiesta
+     *
+     * @param nickname nome utente che ha richiesto la ricerca
+     * @param query parole da cercare
+     * @param pageSize numero massimo di card da restituire (null per averle tutte)
+     * @param cursor cursore della pagina richiesta (null per la prima)
+     * @return messaggio da inviare al client contenente le card trovate, in ordine di punteggio
+     */
+    @Override
+    public ResponseMessage.SearchResult searchCards(String nickname, String query, Integer pageSize, String cursor) {
+        ResponseMessage.SearchResult message = new ResponseMessage.SearchResult();
+        int from = pageStart(cursor, Integer.MAX_VALUE);
+        if (from < 0) {
+            message.setResponse(Response.INVALID_CURSOR);
+            return message;
+        }
+        // versioni pubblicate dei progetti dell'utente, nell'ordine di creazione
+        ArrayList<Project> projects = projectsOf(nickname);
+        ArrayList<Project> published = new ArrayList<>(projects.size());
+        for (Project project : projects) {
+            Project snapshot = published(project, nickname);
+            if (snapshot != null)
+                published.add(snapshot);
+        }
+        int limit = pageSize == null ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE,
+                (long) from + pageLimit(pageSize));
+        ArrayList<CardIndex.Hit> hits = cardIndex.search(published, query, limit, message);
+        if (from > message.getTotal()) {
+            message.setResponse(Response.INVALID_CURSOR);
+            return message;
+        }
+        int to = pageEnd(from, message.getTotal(), pageSize, message);
+        message.setResponse(Response.OK);
+        message.setHits(from == 0 && to == hits.size() ? hits : new ArrayList<>(hits.subList(from, to)));
         return message;
     }
 
@@ -359,34 +893,37 @@ public class WorthCore implements WorthInterface{
      * @return messaggio contentente il responso per l'operazione richiesta
      */
     @Override
-    public Message addCard(String nickname, String projectName, String cardName, String description) {
-        Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
+    public ResponseMessage addCard(String nickname, String projectName, String cardName, String description) {
+        ResponseMessage message = new ResponseMessage(Request.ADD_CARD);
+        Project project = findProject(projectName);
         // controllo esistenza progetto
-        if (projectIndex == -1) {
+        if (project == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
-            message.setResponse(Response.NONEXISTENT_PROJECT);
-            return message;
-        }
-        synchronized (createdProjects) {
+        writeLock(project);
+        try {
+            // controllo appartenenza dell'utente al progetto
+            if (!isMember(project, nickname)) {
+                message.setResponse(Response.NONEXISTENT_PROJECT);
+                return message;
+            }
             // controllo se la carta esiste già
-            Card card = new Card(cardName, description);
-            if (project.getCards().contains(card)) {
+            if (project.getCard(cardName) != null) {
                 message.setResponse(Response.CARD_EXISTS);
                 return message;
             }
             // la aggiungo al progetto (nella lista delle carte totali e nella lista to_do)
-            project.getCards().add(card);
-            project.getToDo().add(card);
-            server.saveProject(project);
+            Card card = new Card(cardName, description, nickname);
+            project.addCard(card);
+            cardIndex.add(project, card, project.getCards().size() - 1);
+            persist(project);
+        } finally {
+            project.lock().writeLock().unlock();
         }
+        saveProject(project);
         message.setResponse(Response.OK);
-        sendChatMsg(project, nickname + " ha aggiunto la carta " + cardName);
+        notifyChat(project, Request.ADD_CARD, nickname + " ha aggiunto la carta " + cardName);
         return message;
     }
 
@@ -400,95 +937,85 @@ public class WorthCore implements WorthInterface{
      * @param cardName nome card da spostare
      * @param sourceList lista di partenza da cui spostare la card
      * @param destList lista di destinazione in cui spostare la card
+     * @param expectedVersion versione della card attesa dal client (null per non controllarla)
      * @return messaggio contentente il responso per l'operazione richiesta
      */
     @Override
-    public Message moveCard(String nickname, String projectName, String cardName, String sourceList, String destList) {
-        Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
+    public ResponseMessage moveCard(String nickname, String projectName, String cardName, String sourceList,
+                                    String destList, Long expectedVersion) {
+        ResponseMessage message = new ResponseMessage(Request.MOVE_CARD);
+        Project project = findProject(projectName);
         // controllo esistenza progetto
-        if (projectIndex == -1) {
+        if (project == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
+        // la validazione avviene senza lock sulla versione pubblicata del progetto
+        Project published = published(project, nickname);
         // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        if (published == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        // prendo il riferimento alla lista di partenza
-        ArrayList<Card> sList;
-        switch (sourceList) {
-            case "todo" : sList = createdProjects.get(projectIndex).getToDo(); break;
-            case "inprogress" : sList = createdProjects.get(projectIndex).getInProgress(); break;
-            case "toberevised" : sList = createdProjects.get(projectIndex).getToBeRevised(); break;
-            case "done" : sList = createdProjects.get(projectIndex).getDone(); break;
-            default :
-                message.setResponse(Response.NONEXISTENT_LIST);
-                return message;
-        }
-        // prendo il riferimento alla lista di destinazione
-        ArrayList<Card> dList;
-        switch (destList) {
-            case "todo" : dList = createdProjects.get(projectIndex).getToDo(); break;
-            case "inprogress" : dList = createdProjects.get(projectIndex).getInProgress(); break;
-            case "toberevised" : dList = createdProjects.get(projectIndex).getToBeRevised(); break;
-            case "done" : dList = createdProjects.get(projectIndex).getDone(); break;
-            default :
-                message.setResponse(Response.NONEXISTENT_LIST);
-                return message;
+        // controllo esistenza delle liste di partenza e di destinazione
+        CardState source = CardState.parse(sourceList);
+        CardState destination = CardState.parse(destList);
+        if (source == null || destination == null) {
+            message.setResponse(Response.NONEXISTENT_LIST);
+            return message;
         }
         // controllo che lista di partenza e di destinazione non siano uguali
-        if (sourceList.equals(destList)) {
+        if (source == destination) {
             message.setResponse(Response.CARD_EXISTS);
             return message;
         }
         // controllo che siano rispettati i vincoli sullo spostamento
-        switch (destList) {
-            case "todo" :
-                message.setResponse(Response.MOVE_CARD_FORBIDDEN);
+        if (!source.canMoveTo(destination)) {
+            message.setResponse(Response.MOVE_CARD_FORBIDDEN);
+            return message;
+        }
+        // controllo che la carta da spostare sia effettivamente nella lista di partenza
+        Card seen = published.getCard(cardName);
+        if (seen == null || seen.state() != source) {
+            message.setResponse(Response.NONEXISTENT_CARD);
+            return message;
+        }
+        // controllo della versione della card attesa dal client
+        if (expectedVersion != null && seen.getVersion() != expectedVersion) {
+            message.setResponse(Response.VERSION_CONFLICT);
+            return message;
+        }
+        writeLock(project);
+        try {
+            // il progetto potrebbe essere stato cancellato mentre si attendeva il lock
+            if (!isMember(project, nickname)) {
+                message.setResponse(Response.NONEXISTENT_PROJECT);
                 return message;
-
-            case "inprogress" :
-                if (sourceList.equals("done")) {
-                    message.setResponse(Response.MOVE_CARD_FORBIDDEN);
-                    return message;
-                }
-                break;
-            case "toberevised" :
-                if (!sourceList.equals("inprogress")) {
-                    message.setResponse(Response.MOVE_CARD_FORBIDDEN);
+            }
+            // compare-and-set: se la card è cambiata rispetto alla versione validata è stata spostata
+            // da un'altra richiesta, e lo spostamento si ripete solo se era richiesto senza versione
+            // e la card è ancora nella lista di partenza
+            Card card = project.getCard(cardName);
+            if (card.getVersion() != seen.getVersion()) {
+                if (expectedVersion != null) {
+                    message.setResponse(Response.VERSION_CONFLICT);
                     return message;
                 }
-                break;
-            case "done" :
-                if (sourceList.equals("todo")){
-                    message.setResponse(Response.MOVE_CARD_FORBIDDEN);
+                if (card.state() != source) {
+                    message.setResponse(Response.NONEXISTENT_CARD);
                     return message;
                 }
-                break;
-            default :
-        }
-        synchronized (createdProjects) {
-            // controllo che la carta da spostare sia effettivamente nella lista di partenza
-            int cardIndex = sList.indexOf(new Card(cardName, null));
-            if (cardIndex == -1) {
-                message.setResponse(Response.NONEXISTENT_CARD);
-                return message;
             }
             // sposto la carta da sourceList a destList, e aggiorno la sua history
-            Card card = sList.remove(cardIndex);
-            card.updateHistory(destList);
-            dList.add(card);
-            // aggiorno anche nella lista di tutte le carte create
-            int cardIndex2 = project.getCards().indexOf(card);
-            project.getCards().set(cardIndex2, card);
-            server.saveProject(project);
+            project.moveCard(card, destination, nickname);
+            persist(project);
+        } finally {
+            project.lock().writeLock().unlock();
         }
+        saveProject(project);
         // ritorno il messaggio per il client
         message.setResponse(Response.OK);
-        sendChatMsg(project, nickname + " ha spostato la carta " + cardName +
+        notifyChat(project, Request.MOVE_CARD, nickname + " ha spostato la carta " + cardName +
                 " dalla lista " + sourceList + " alla lista " + destList + ".");
         return message;
     }
@@ -503,59 +1030,244 @@ public class WorthCore implements WorthInterface{
      * @return messaggio contentente il responso per l'operazione richiesta
      */
     @Override
-    public Message cancelProject(String nickname, String projectName) {
-        Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
+    public ResponseMessage cancelProject(String nickname, String projectName) {
+        ResponseMessage message = new ResponseMessage(Request.CANCEL_PROJECT);
+        Project project = findProject(projectName);
         // controllo esistenza progetto
-        if (projectIndex == -1) {
-            message.setResponse(Response.NONEXISTENT_PROJECT);
-            return message;
-        }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        if (project == null) {
             message.setResponse(Response.NONEXISTENT_PROJECT);
             return message;
         }
-        // controllo che tutte le carte siano nella lista DONE
-        synchronized (createdProjects) {
-            boolean ok = true;
-            for (Card card : project.getCards()) {
-                if (!card.getPosition().equals("DONE")) {
-                    ok = false;
-                    break;
-                }
+        writeLock(project);
+        try {
+            // controllo appartenenza dell'utente al progetto
+            if (!isMember(project, nickname)) {
+                message.setResponse(Response.NONEXISTENT_PROJECT);
+                return message;
             }
-            if (!ok) {
+            // controllo che tutte le carte siano nella lista DONE
+            if (project.getDone().size() != project.getCards().size()) {
                 message.setResponse(Response.DELETE_FORBIDDEN);
                 return message;
             }
-            unBindChatAddress(project.getChatAddress());
-            createdProjects.remove(project);
+            //le modifiche ancora da scrivere vanno scritte prima di cancellare i file, e i file
+            //vanno cancellati prima che un nuovo progetto con lo stesso nome possa essere creato
+            long saveStart = System.nanoTime();
+            project.saveQueued(server::saveProject, true);
             server.deleteProject(project);
+            LatencyStats.add(LatencyStats.Phase.SAVE, System.nanoTime() - saveStart);
+            lockProjects();
+            try {
+                projectsByName.remove(project.getName());
+                createdProjects.remove(project);
+                unindexMembers(project);
+                cardIndex.remove(project);
+            } finally {
+                projectsLock.unlock();
+            }
+            unBindChatAddress(project.getChatAddress());
+        } finally {
+            project.lock().writeLock().unlock();
         }
         message.setResponse(Response.OK);
         server.updateClientChats();
         return message;
     }
 
+    /**
+     * inizia un batch sul thread corrente: fino alla chiamata di commitBatch le operazioni
+     * eseguite da questo thread non salvano i progetti modificati e non inviano notifiche
+     */
+    public void beginBatch() {
+        currentBatch.set(new Batch());
+    }
+
+    /**
+     * conclude il batch del thread corrente: salva una sola volta ogni progetto modificato,
+     * invia in ogni chat di progetto un unico messaggio di riepilogo e, se necessario,
+     * aggiorna una sola volta le chat dei client registrati per le callbacks
+     *
+     * @param nickname nome utente che ha richiesto il batch
+     */
+    public void commitBatch(String nickname) {
+        Batch batch = currentBatch.get();
+        currentBatch.remove();
+        if (batch == null)
+            return;
+        for (Project project : batch.operations.keySet()) {
+            writeLock(project);
+            try {
+                //il progetto potrebbe essere stato cancellato nel frattempo da un altro client
+                if (projectsByName.get(project.getName()) == project) {
+                    project.publish();
+                    project.queueSave();
+                }
+            } finally {
+                project.lock().writeLock().unlock();
+            }
+            saveProject(project);
+        }
+        if (batch.chatsChanged)
+            server.updateClientChats();
+        for (Map.Entry<Project, Batch.Summary> entry : batch.operations.entrySet()) {
+            Batch.Summary summary = entry.getValue();
+            if (summary.lastMessage == null)
+                continue;
+            if (summary.total == 1) {
+                sendChatMsg(entry.getKey(), summary.lastMessage);
+                continue;
+            }
+            StringBuilder chatMsg = new StringBuilder(nickname)
+                    .append(" ha eseguito ").append(summary.total).append(" operazioni (");
+            String separator = "";
+            for (Map.Entry<Request, Integer> count : summary.counts.entrySet()) {
+                chatMsg.append(separator).append(count.getKey()).append(": ").append(count.getValue());
+                separator = ", ";
+            }
+            sendChatMsg(entry.getKey(), chatMsg.append(")").toString());
+        }
+    }
+
+    /**
+     * pubblica la nuova versione del progetto modificato e ne accoda le modifiche da salvare
+     * (scritte da saveProject dopo aver rilasciato il lock), oppure, se è in corso un batch,
+     * lo segna come da pubblicare e salvare una sola volta in commitBatch
+     *
+     * @param project progetto modificato, con il lock in scrittura
+     */
+    private void persist(Project project) {
+        Batch batch = currentBatch.get();
+        if (batch == null) {
+            project.publish();
+            project.queueSave();
+        } else {
+            batch.summaryOf(project);
+        }
+    }
+
+    /**
+     * scrive su file le modifiche accodate del progetto, misurando il tempo impiegato.
+     * Va chiamato dopo aver rilasciato il lock del progetto: se un altro thread sta già scrivendo
+     * le modifiche del progetto, scrive anche queste e il metodo ritorna subito
+     *
+     * @param project progetto modificato
+     */
+    private void saveProject(Project project) {
+        long start = System.nanoTime();
+        project.saveQueued(server::saveProject, false);
+        LatencyStats.add(LatencyStats.Phase.SAVE, System.nanoTime() - start);
+    }
+
+    /**
+     * acquisisce il lock del progetto in scrittura, misurando il tempo di attesa
+     *
+     * @param project progetto da modificare
+     */
+    private void writeLock(Project project) {
+        long start = System.nanoTime();
+        project.lock().writeLock().lock();
+        LatencyStats.add(LatencyStats.Phase.LOCK_WAIT, System.nanoTime() - start);
+    }
+
+    /**
+     * va chiamato con il lock del progetto: il progetto potrebbe essere stato cancellato
+     * tra la ricerca per nome e l'acquisizione del lock
+     *
+     * @param project progetto trovato con findProject
+     * @param nickname nome utente
+     * @return true se il progetto esiste ancora e l'utente ne è membro
+     */
+    private boolean isMember(Project project, String nickname) {
+        return projectsByName.get(project.getName()) == project && project.getMembers().contains(nickname);
+    }
+
+    /**
+     * controllo di appartenenza senza lock, sull'ultima versione pubblicata del progetto
+     *
+     * @param project progetto trovato con findProject
+     * @param nickname nome utente
+     * @return versione pubblicata del progetto, null se il progetto non esiste più o l'utente non ne è membro
+     */
+    private Project published(Project project, String nickname) {
+        // durante un batch le modifiche vengono pubblicate solo se un'operazione successiva le legge
+        if (currentBatch.get() != null && project.hasUnpublishedChanges()) {
+            writeLock(project);
+            try {
+                project.publish();
+            } finally {
+                project.lock().writeLock().unlock();
+            }
+        }
+        Project published = project.snapshot();
+        if (published == null || projectsByName.get(project.getName()) != project
+                || !published.getMembers().contains(nickname))
+            return null;
+        return published;
+    }
+
+    /**
+     * acquisisce il lock sull'insieme dei progetti creati, misurando il tempo di attesa
+     */
+    private void lockProjects() {
+        long start = System.nanoTime();
+        projectsLock.lock();
+        LatencyStats.add(LatencyStats.Phase.LOCK_WAIT, System.nanoTime() - start);
+    }
+
+    /**
+     * aggiorna le chat dei client registrati per le callbacks, oppure lo rimanda
+     * alla fine del batch in corso
+     */
+    private void updateClientChats() {
+        Batch batch = currentBatch.get();
+        if (batch == null)
+            server.updateClientChats();
+        else
+            batch.chatsChanged = true;
+    }
+
+    /**
+     * invia il messaggio nella chat di progetto, oppure lo conteggia nel riepilogo
+     * del batch in corso
+     *
+     * @param project progetto della chat in cui inviare il messaggio
+     * @param operation operazione che ha generato il messaggio
+     * @param message messaggio da inviare
+     */
+    private void notifyChat(Project project, Request operation, String message) {
+        Batch batch = currentBatch.get();
+        if (batch == null) {
+            sendChatMsg(project, message);
+            return;
+        }
+        Batch.Summary summary = batch.summaryOf(project);
+        summary.counts.merge(operation, 1, Integer::sum);
+        summary.total++;
+        summary.lastMessage = message;
+    }
+
     /**
      * associa al progetto un indirizzo multicast per la chat
      *
      * @param project nome progetto da associare all'indirizzo della chat
      * @return true se riesce ad associare l'indirizzo, altrimenti false
      */
-    public synchronized boolean bindChatAddress(Project project) {
-        //se l'insieme è vuoto non ci sono indirizzi disponibili
-        if (availableAddresses.isEmpty())
-            return false;
-
+    public boolean bindChatAddress(Project project) {
+        addressesLock.lock();
         try {
-            project.setChatAddress(InetAddress.getByName(availableAddresses.pollFirst()));
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
+            //se l'insieme è vuoto non ci sono indirizzi disponibili
+            if (availableAddresses.isEmpty())
+                return false;
+
+            try {
+                project.setChatAddress(InetAddress.getByName(availableAddresses.pollFirst()));
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+            }
+            return true;
+        } finally {
+            addressesLock.unlock();
         }
-        return true;
     }
 
     /**
@@ -566,8 +1278,33 @@ public class WorthCore implements WorthInterface{
     //se devo cancellare un progetto e la sua relativa chat
     //devo rimettere il suo indirizzo nuovamente a disposizione aggiungendolo alla lista degli
     //indirizzi disopnibili
-    public synchronized void unBindChatAddress(InetAddress address){
-        availableAddresses.add(address.getHostName());
+    public void unBindChatAddress(InetAddress address){
+        addressesLock.lock();
+        try {
+            //getHostAddress non effettua reverse lookup DNS, a differenza di getHostName
+            availableAddresses.add(address.getHostAddress());
+        } finally {
+            addressesLock.unlock();
+        }
+    }
+
+    /**
+     * confronta la password fornita con quella salvata; se le richieste sono eseguite da
+     * virtual thread il calcolo viene spostato sul pool hashPool e il virtual thread si sospende
+     *
+     * @param password password in plain text da confrontare
+     * @param stored password salvata nel server
+     * @return true se la password è corretta
+     * @throws Exception -
+     */
+    private boolean checkPassword(String password, String stored) throws Exception {
+        if (hashPool == null)
+            return HashPassword.check(password, stored);
+        try {
+            return hashPool.submit(() -> HashPassword.check(password, stored)).get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
     }
 
     /**
@@ -581,12 +1318,36 @@ public class WorthCore implements WorthInterface{
         String chatMsg = "Messaggio da WORTH: " + "\"" + message + "\"";
         byte[] buf = chatMsg.getBytes();
         DatagramPacket packet = new DatagramPacket(buf, buf.length, project.getChatAddress(), chatsPort);
+        long start = System.nanoTime();
         try (DatagramSocket socket = new DatagramSocket()) {
             socket.send(packet);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        LatencyStats.add(LatencyStats.Phase.MULTICAST, System.nanoTime() - start);
     }
 
-}
 
+    /**
+     * operazioni eseguite durante un batch, raggruppate per progetto
+     */
+    private static class Batch {
+
+        /** progetti modificati durante il batch, nell'ordine in cui sono stati modificati */
+        private final LinkedHashMap<Project, Summary> operations = new LinkedHashMap<>();
+        /** true se almeno un'operazione ha cambiato le chat degli utenti */
+        private boolean chatsChanged;
+
+        private Summary summaryOf(Project project) {
+            return operations.computeIfAbsent(project, p -> new Summary());
+        }
+
+        /** riepilogo delle notifiche di un progetto */
+        private static class Summary {
+            private final EnumMap<Request, Integer> counts = new EnumMap<>(Request.class);
+            private int total;
+            private String lastMessage;
+        }
+    }
+
+}
@@ -11,7 +11,7 @@ public interface WorthInterface {
      * @param password password fornita per accedere
      * @return messaggio contentente il responso per l'operazione richiesta
      */
-    Message login(String nickname, String password);
+    ResponseMessage.LoginResult login(String nickname, String password);
 
     /**
      * effettua il logout dell'utente
@@ -19,15 +19,17 @@ public interface WorthInterface {
      * @param nickname nome utente che ha richiesto il logout
      * @return messaggio contentente il responso per l'operazione richiesta
      */
-    Message logout(String nickname);
+    ResponseMessage logout(String nickname);
 
     /**
      * costruisce la lista dei progetti di cui l'utente fa parte
      *
      * @param nickname nome utente che ha richiesto la lista dei progetti
+     * @param pageSize numero massimo di progetti da restituire (null per averli tutti)
+     * @param cursor cursore della pagina richiesta (null per la prima)
      * @return messaggio da inviare al client contenente la lista dei progetti di cui fa parte
      */
-    Message listProjects(String nickname);
+    ResponseMessage.ProjectList listProjects(String nickname, Integer pageSize, String cursor);
 
     /**
      * crea un nuovo progetto
@@ -37,7 +39,7 @@ public interface WorthInterface {
      * @param projectName nome progetto da creare
      * @return messaggio contentente il responso per l'operazione richiesta
      */
-    Message createProject(String nickname, String projectName);
+    ResponseMessage createProject(String nickname, String projectName);
 
     /**
      * aggiunge un nuovo membro al progetto indicato
@@ -46,27 +48,32 @@ public interface WorthInterface {
      * @param nickname nome utente che ha richiesto l'aggiunta di un nuovo membro
      * @param projectName nome progetto a cui aggiungere il nuovo membro
      * @param nickNewMember nome utente del membro da aggiungere
+     * @param expectedVersion versione del progetto attesa dal client (null per non controllarla)
      * @return messaggio contentente il responso per l'operazione richiesta
      */
-    Message addMember(String nickname, String projectName, String nickNewMember);
+    ResponseMessage addMember(String nickname, String projectName, String nickNewMember, Long expectedVersion);
 
     /**
      * recupera la lista dei membri del progetto
      *
      * @param nickname nome utente che ha richiesto la lista dei membri del progetto
      * @param projectName nome progetto del quale è stata richiesta la lista dei membri
+     * @param pageSize numero massimo di membri da restituire (null per averli tutti)
+     * @param cursor cursore della pagina richiesta (null per la prima)
      * @return messaggio da inviare al client contenente la lista dei membri del progetto
      */
-    Message showMembers(String nickname, String projectName);
+    ResponseMessage.MemberList showMembers(String nickname, String projectName, Integer pageSize, String cursor);
 
     /**
      * recupera la lista di cards del progetto
      *
      * @param nickname nome utente che ha richiesto la lista di cards del progetto
      * @param projectName nome progetto del quale e' stata richiesta la lita di cards
+     * @param pageSize numero massimo di cards da restituire (null per averle tutte)
+     * @param cursor cursore della pagina richiesta (null per la prima)
      * @return messaggio da inviare al client contenente la lista delle cards del progetto
      */
-    Message showCards(String nickname, String projectName);
+    ResponseMessage.CardList showCards(String nickname, String projectName, Integer pageSize, String cursor);
 
     /**
      * recupera la card richiesta
@@ -76,7 +83,41 @@ public interface WorthInterface {
      * @param cardName nome card richiesta
      * @return messaggio da inviare al client contenente la card richiesta
      */
-    Message showCard(String nickname, String projectName, String cardName);
+    ResponseMessage.CardDetail showCard(String nickname, String projectName, String cardName);
+
+    /**
+     * recupera un intervallo dello storico della card richiesta
+     *
+     * @param nickname nome utente che ha richiesto lo storico
+     * @param projectName nome progetto a cui appartiene la card
+     * @param cardName nome card di cui leggere lo storico
+     * @param pageSize numero massimo di eventi da restituire (null per averli tutti)
+     * @param cursor cursore della pagina richiesta (null per la prima)
+     * @return messaggio da inviare al client contenente gli eventi richiesti
+     */
+    ResponseMessage.HistoryPage cardHistory(String nickname, String projectName, String cardName,
+                                            Integer pageSize, String cursor);
+
+    /**
+     * cerca le parole richieste nei nomi e nelle descrizioni delle card dei progetti dell'utente
+     *
+     * @param nickname nome utente che ha richiesto la ricerca
+     * @param query parole da cercare
+     * @param pageSize numero massimo di card da restituire (null per averle tutte)
+     * @param cursor cursore della pagina richiesta (null per la prima)
+     * @return messaggio da inviare al client contenente le card trovate, in ordine di punteggio
+     */
+    ResponseMessage.SearchResult searchCards(String nickname, String query, Integer pageSize, String cursor);
+
+    /**
+     * recupera il riepilogo della board del progetto: card per lista, card in lavorazione
+     * e tempo medio di permanenza in ogni lista
+     *
+     * @param nickname nome utente che ha richiesto il riepilogo
+     * @param projectName nome progetto
+     * @return messaggio da inviare al client contenente il riepilogo
+     */
+    ResponseMessage.BoardResult boardSummary(String nickname, String projectName);
 
     /**
      * aggiunge la card con i dettagli forniti al progetto
@@ -88,7 +129,7 @@ public interface WorthInterface {
      * @param description descrizione card da aggiungere
      * @return messaggio contentente il responso per l'operazione richiesta
      */
-    Message addCard(String nickname, String projectName, String cardName, String description);
+    ResponseMessage addCard(String nickname, String projectName, String cardName, String description);
 
     /**
      *  sposta la card, se consentito, da una lista di partenza a una di destinazione
@@ -99,9 +140,11 @@ public interface WorthInterface {
      * @param cardName nome card da spostare
      * @param sourceList lista di partenza da cui spostare la card
      * @param destList lista di destinazione in cui spostare la card
+     * @param expectedVersion versione della card attesa dal client (null per non controllarla)
      * @return messaggio contentente il responso per l'operazione richiesta
      */
-    Message moveCard(String nickname, String projectName, String cardName, String sourceList, String destList);
+    ResponseMessage moveCard(String nickname, String projectName, String cardName, String sourceList, String destList,
+                             Long expectedVersion);
 
     /**
      * cancella il progetto, controllando che tutte le card siano in done
@@ -111,6 +154,6 @@ public interface WorthInterface {
      * @param projectName nome progetto da cancellare
      * @return messaggio contentente il responso per l'operazione richiesta
      */
-    Message cancelProject(String nickname, String projectName);
+    ResponseMessage cancelProject(String nickname, String projectName);
 
 }